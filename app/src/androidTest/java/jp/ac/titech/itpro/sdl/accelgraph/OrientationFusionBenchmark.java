@@ -0,0 +1,100 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import android.hardware.SensorManager;
+import android.os.Debug;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Compares {@link OrientationFusion} with the SensorManager calls it
+ * replaces, counting time and allocations per event on the device.
+ */
+public class OrientationFusionBenchmark extends TestCase {
+
+    private final static String TAG = "OrientationFusionBench";
+    private final static int EVENTS = 20000;
+    private final static int WARMUP = 2000;
+
+    private float[] accel, magnetic;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // a slowly turning device, one accelerometer and one magnetometer
+        // event per step as the two sensors deliver them
+        accel = new float[EVENTS * 3];
+        magnetic = new float[EVENTS * 3];
+        for (int i = 0; i < EVENTS; i++) {
+            double a = i * 0.001;
+            accel[3 * i] = (float) (9.8 * Math.sin(a));
+            accel[3 * i + 1] = (float) (0.5 * Math.cos(3 * a));
+            accel[3 * i + 2] = (float) (9.8 * Math.cos(a));
+            magnetic[3 * i] = (float) (20 * Math.cos(2 * a));
+            magnetic[3 * i + 1] = (float) (20 * Math.sin(2 * a));
+            magnetic[3 * i + 2] = -40;
+        }
+    }
+
+    public void testFusionDoesNotAllocate() {
+        OrientationFusion fusion = new OrientationFusion();
+        float sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            fusion.updateAccel(accel, 3 * i);
+            fusion.updateMagnetic(magnetic, 3 * i);
+            sink += fusion.getAzimuth();
+        }
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < EVENTS; i++) {
+            fusion.updateAccel(accel, 3 * i);
+            fusion.updateMagnetic(magnetic, 3 * i);
+            sink += fusion.getAzimuth() + fusion.getPitch() + fusion.getRoll();
+        }
+        long t1 = System.nanoTime();
+        Debug.stopAllocCounting();
+        int allocs = Debug.getThreadAllocCount();
+
+        Log.i(TAG, "fusion: " + (t1 - t0) / (2 * EVENTS) + " ns/event, "
+                + allocs + " allocations (" + sink + ")");
+        assertEquals(0, allocs);
+    }
+
+    public void testSensorManagerBaseline() {
+        float[] a = new float[3];
+        float[] m = new float[3];
+        float[] attitude = new float[3];
+        float sink = 0;
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < EVENTS; i++) {
+            // what OrientationActivity used to do per event
+            for (int k = 0; k < 2; k++) {
+                // event.values.clone()
+                float[] values = Arrays.copyOfRange(k == 0 ? accel : magnetic, 3 * i, 3 * i + 3);
+                if (k == 0)
+                    a = values;
+                else
+                    m = values;
+                float[] in = new float[9];
+                float[] out = new float[9];
+                SensorManager.getRotationMatrix(in, null, a, m);
+                SensorManager.remapCoordinateSystem(in, SensorManager.AXIS_X, SensorManager.AXIS_Y, out);
+                SensorManager.getOrientation(out, attitude);
+                sink += attitude[0];
+            }
+        }
+        long t1 = System.nanoTime();
+        Debug.stopAllocCounting();
+        int allocs = Debug.getThreadAllocCount();
+
+        Log.i(TAG, "SensorManager: " + (t1 - t0) / (2 * EVENTS) + " ns/event, "
+                + allocs + " allocations (" + sink + ")");
+    }
+}
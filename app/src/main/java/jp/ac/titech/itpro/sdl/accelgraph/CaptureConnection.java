@@ -0,0 +1,45 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.util.Log;
+
+/**
+ * A screen's binding to {@link CaptureService}, held from onResume to
+ * onPause, which keeps the sensors running for the screen. The screens
+ * still take the {@link SensorSession} itself from
+ * {@link SensorSession#getInstance}; the binding only counts them as users.
+ */
+public class CaptureConnection implements ServiceConnection {
+
+    private final Context context;
+    private final String tag;
+
+    /** @param tag the log tag of the screen */
+    public CaptureConnection(Context context, String tag) {
+        this.context = context;
+        this.tag = tag;
+    }
+
+    public void bind() {
+        context.bindService(new Intent(context, CaptureService.class), this,
+                Context.BIND_AUTO_CREATE);
+    }
+
+    public void unbind() {
+        context.unbindService(this);
+    }
+
+    @Override
+    public void onServiceConnected(ComponentName name, IBinder service) {
+        Log.d(tag, "onServiceConnected");
+    }
+
+    @Override
+    public void onServiceDisconnected(ComponentName name) {
+        Log.d(tag, "onServiceDisconnected");
+    }
+}
@@ -0,0 +1,139 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Keeps the capture running independently of the screens.
+ * <p>
+ * The screens bind to this service while they show live data (from onResume
+ * to onPause, see {@link CaptureConnection}) instead of acquiring the
+ * {@link SensorSession} themselves; the first binding acquires the sensors
+ * and the last unbinding releases them. While a recording runs, the session
+ * also starts this service, which then goes to the foreground with an
+ * ongoing notification and holds a partial wake lock, so switching screens,
+ * rotating or turning the display off neither stops the capture nor lets
+ * the system reclaim the process. The notification has an action to stop
+ * the recording; once it stops, by any means, and the sensors have handed
+ * over what they buffered, the service leaves the foreground and stops
+ * itself.
+ * <p>
+ * The service runs in the application's process and shares the session
+ * with the screens, so its binder carries nothing.
+ */
+public class CaptureService extends Service {
+
+    private final static String TAG = "CaptureService";
+
+    /** Sent by the notification to stop recording. */
+    public final static String ACTION_STOP_RECORDING =
+            "jp.ac.titech.itpro.sdl.accelgraph.action.STOP_RECORDING";
+
+    private final static int NOTIFICATION_ID = 1;
+
+    // the screens only count as users through it, see CaptureConnection
+    private final IBinder binder = new Binder();
+    private SensorSession session;
+    private PowerManager.WakeLock wakeLock;
+    private boolean foreground = false;
+
+    /** Tells the service that recording started or stopped. */
+    static void recordingChanged(Context context) {
+        context.startService(new Intent(context, CaptureService.class));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.i(TAG, "onCreate");
+        session = SensorSession.getInstance(this);
+        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        wakeLock.setReferenceCounted(false);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        Log.i(TAG, "onStartCommand: " + (intent == null ? null : intent.getAction()));
+        if (intent != null && ACTION_STOP_RECORDING.equals(intent.getAction()))
+            session.stopRecording();
+        if (session.isRecording()) {
+            if (!foreground) {
+                startForeground(NOTIFICATION_ID, buildNotification());
+                foreground = true;
+            }
+            wakeLock.acquire();
+        } else if (!session.isStopping()) {
+            // a stop still flushing calls recordingChanged once the files
+            // are closed; until then the wake lock keeps the flush going
+            leaveForeground();
+            stopSelf(startId);
+        }
+        // the session lives in this process; after a restart there is
+        // nothing to resume
+        return START_NOT_STICKY;
+    }
+
+    private Notification buildNotification() {
+        PendingIntent open = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class), PendingIntent.FLAG_UPDATE_CURRENT);
+        PendingIntent stop = PendingIntent.getService(this, 0,
+                new Intent(this, CaptureService.class).setAction(ACTION_STOP_RECORDING),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        return new Notification.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(session.isTriggerMode()
+                        ? R.string.notification_trigger : R.string.notification_recording))
+                .setOngoing(true)
+                .setContentIntent(open)
+                // the Notification.Action overload needs API 20
+                .addAction(android.R.drawable.ic_menu_close_clear_cancel,
+                        getString(R.string.stopButton), stop)
+                .build();
+    }
+
+    private void leaveForeground() {
+        if (foreground) {
+            stopForeground(true);
+            foreground = false;
+        }
+        if (wakeLock.isHeld())
+            wakeLock.release();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        Log.i(TAG, "onBind");
+        session.acquire();
+        return binder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        Log.i(TAG, "onRebind");
+        session.acquire();
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        Log.i(TAG, "onUnbind");
+        session.release();
+        // get onRebind for the next screen if the service is still running
+        return true;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.i(TAG, "onDestroy");
+        leaveForeground();
+        super.onDestroy();
+    }
+}
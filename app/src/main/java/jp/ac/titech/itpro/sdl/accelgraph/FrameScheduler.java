@@ -0,0 +1,54 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import android.view.Choreographer;
+
+/**
+ * Calls a {@link Listener} once per display frame on the UI thread, in step
+ * with vsync. Reposts the same callback object every frame, so it does not
+ * allocate while running.
+ */
+public class FrameScheduler implements Choreographer.FrameCallback {
+
+    public interface Listener {
+        void onFrame(long frameTimeNanos);
+    }
+
+    private final Listener listener;
+    private Choreographer choreographer;
+    private boolean running = false;
+
+    public FrameScheduler(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Must be called on the UI thread. */
+    public void start() {
+        if (running)
+            return;
+        if (choreographer == null)
+            choreographer = Choreographer.getInstance();
+        running = true;
+        choreographer.postFrameCallback(this);
+    }
+
+    /** Must be called on the UI thread. */
+    public void stop() {
+        if (!running)
+            return;
+        running = false;
+        choreographer.removeFrameCallback(this);
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running)
+            return;
+        listener.onFrame(frameTimeNanos);
+        if (running)
+            choreographer.postFrameCallback(this);
+    }
+}
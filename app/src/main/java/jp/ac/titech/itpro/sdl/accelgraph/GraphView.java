@@ -1,11 +1,15 @@
 package jp.ac.titech.itpro.sdl.accelgraph;
 
 import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.View;
 
 public class GraphView extends View {
@@ -13,14 +17,34 @@ public class GraphView extends View {
     private final static String TAG = "GraphView";
     private final static float Ymax = 20;
     private final static int NDATA_INIT = 256;
+    private final static int[] CHANNEL_COLORS = {
+            Color.YELLOW, Color.GREEN, Color.MAGENTA, Color.WHITE
+    };
+
+    private final static long HISTORY_BASE_NS = 10L * 1000 * 1000;
+    private final static long HISTORY_MIN_NS = 5L * 1000 * 1000 * 1000;
+    private final static long HISTORY_MAX_NS = 20L * 60 * 1000 * 1000 * 1000;
+    public final static long HISTORY_DEFAULT_NS = 60L * 1000 * 1000 * 1000;
 
     private int ndata = NDATA_INIT;
-    private float[] vs = new float[NDATA_INIT];
-    private int idx = 0;
+    private final GraphTrace trace;
+
+    // full-rate history, drawn instead of the trace while historyWindowNs > 0
+    private final MinMaxHistory history;
+    private long historyWindowNs = 0;
+    private float[] historyPts = new float[0];
+    private final ScaleGestureDetector scaleDetector;
     private int x0, y0, ewidth;
     private int dw = 5, dh = 1;
 
-    private final Paint paint = new Paint();
+    private final Paint[] paints;
+    private final Paint gridPaint = new Paint();
+
+    // grid and y0 line, rendered once per size/scale change
+    private Bitmap gridLayer;
+
+    // time spent in onDraw, for PerfOverlay
+    private long drawCount = 0, drawNanos = 0, lastDrawNanos = 0;
 
     public GraphView(Context context) {
         this(context, null);
@@ -32,6 +56,27 @@ public class GraphView extends View {
 
     public GraphView(Context context, AttributeSet attrs, int defStyleAttr) {
         super(context, attrs, defStyleAttr);
+        TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.GraphView, defStyleAttr, 0);
+        int channels = Math.max(1, a.getInt(R.styleable.GraphView_channels, 1));
+        a.recycle();
+
+        trace = new GraphTrace(channels);
+        paints = new Paint[channels];
+        for (int c = 0; c < channels; c++) {
+            paints[c] = new Paint();
+            paints[c].setColor(CHANNEL_COLORS[c % CHANNEL_COLORS.length]);
+            paints[c].setStrokeWidth(2);
+        }
+        trace.setGeometry(ndata, x0, dw, y0, dh);
+
+        history = new MinMaxHistory(channels, HISTORY_BASE_NS, (int) (HISTORY_MAX_NS / HISTORY_BASE_NS));
+        scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                setHistoryWindow((long) (historyWindowNs / detector.getScaleFactor()));
+                return true;
+            }
+        });
     }
 
     @Override
@@ -45,48 +90,171 @@ public class GraphView extends View {
 
         if (y0 / Ymax >= dh + 1)
             dh = (int) (y0 / Ymax);
-        if (ndata > vs.length) {
-            idx = 0;
-            vs = new float[ndata];
-        }
+        trace.setGeometry(ndata, x0, dw, y0, dh);
+        if (historyWindowNs > 0)
+            layoutHistory();
+        buildGridLayer(w, h);
+    }
+
+    private void layoutHistory() {
+        int columns = ewidth - x0 + 1;
+        if (columns <= 0)
+            return;
+        history.setWindow(historyWindowNs, columns);
+        if (historyPts.length < 4 * columns)
+            historyPts = new float[4 * columns];
     }
 
     @Override
-    protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (gridLayer != null) {
+            gridLayer.recycle();
+            gridLayer = null;
+        }
+    }
+
+    private void buildGridLayer(int w, int h) {
+        if (gridLayer != null) {
+            gridLayer.recycle();
+            gridLayer = null;
+        }
+        if (w <= 0 || h <= 0)
+            return;
+        gridLayer = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(gridLayer);
 
         // grid lines
-        paint.setColor(Color.argb(75, 255, 255, 255));
-        paint.setStrokeWidth(1);
-        int h = canvas.getHeight();
+        gridPaint.setColor(Color.argb(75, 255, 255, 255));
+        gridPaint.setStrokeWidth(1);
         for (int y = y0; y < h; y += dh * 5)
-            canvas.drawLine(x0, y, ewidth, y, paint);
+            canvas.drawLine(x0, y, ewidth, y, gridPaint);
         for (int y = y0; y > 0; y -= dh * 5)
-            canvas.drawLine(x0, y, ewidth, y, paint);
+            canvas.drawLine(x0, y, ewidth, y, gridPaint);
         for (int x = x0; x < dw * ndata; x += dw * 5)
-            canvas.drawLine(x, 0, x, h, paint);
+            canvas.drawLine(x, 0, x, h, gridPaint);
 
         // y0 line
-        paint.setColor(Color.CYAN);
-        canvas.drawLine(0, y0, ewidth, y0, paint);
+        gridPaint.setColor(Color.CYAN);
+        canvas.drawLine(0, y0, ewidth, y0, gridPaint);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        long t0 = System.nanoTime();
+        super.onDraw(canvas);
+        drawGraph(canvas);
+        lastDrawNanos = System.nanoTime() - t0;
+        drawNanos += lastDrawNanos;
+        drawCount++;
+    }
+
+    private void drawGraph(Canvas canvas) {
+        if (gridLayer == null)
+            buildGridLayer(getWidth(), getHeight());
+        if (gridLayer != null)
+            canvas.drawBitmap(gridLayer, 0, 0, null);
 
         // graph
-        paint.setColor(Color.YELLOW);
-        paint.setStrokeWidth(2);
-        for (int i = 0; i < ndata - 1; i++) {
-            int j = (idx + i) % ndata;
-            int x1 = x0 + dw * i;
-            int x2 = x0 + dw * (i + 1);
-            int y1 = (int) (y0 + dh * vs[j]);
-            int y2 = (int) (y0 + dh * vs[(j + 1) % ndata]);
-            canvas.drawLine(x1, y1, x2, y2, paint);
+        if (historyWindowNs > 0) {
+            for (int c = 0; c < paints.length; c++) {
+                int n = history.fillPoints(c, historyPts, x0, 1, y0, dh);
+                canvas.drawLines(historyPts, 0, n, paints[c]);
+            }
+            return;
         }
+        canvas.save();
+        canvas.translate(trace.getTranslateX(), 0);
+        float[] pts = trace.getPoints();
+        int count = trace.getCount();
+        for (int c = 0; c < paints.length; c++)
+            canvas.drawLines(pts, trace.getOffset(c), count, paints[c]);
+        canvas.restore();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (historyWindowNs <= 0)
+            return super.onTouchEvent(event);
+        scaleDetector.onTouchEvent(event);
+        return true;
+    }
+
+    /** Number of onDraw calls so far. */
+    public long getDrawCount() {
+        return drawCount;
+    }
+
+    /**
+     * Total time spent in onDraw, in ns. With hardware acceleration this is
+     * the time to record the drawing, not to render it.
+     */
+    public long getDrawNanos() {
+        return drawNanos;
+    }
+
+    public long getLastDrawNanos() {
+        return lastDrawNanos;
+    }
+
+    public int getChannels() {
+        return paints.length;
+    }
+
+    public void setChannelColor(int channel, int color) {
+        paints[channel].setColor(color);
+        invalidate();
     }
 
     public void addData(float val, boolean invalidate) {
-        vs[idx] = val;
-        idx = (idx + 1) % ndata;
+        trace.add(val);
         if (invalidate)
             invalidate();
     }
+
+    /**
+     * Adds one value per channel, starting at {@code vals[0]}, with a single
+     * invalidate for all of them.
+     */
+    public void addData(float[] vals, boolean invalidate) {
+        trace.add(vals, 0);
+        if (invalidate)
+            invalidate();
+    }
+
+    /**
+     * Adds one full-rate sample (one value per channel, starting at
+     * {@code vals[offset]}) to the long history. Does not invalidate.
+     */
+    public void addSample(long timestamp, float[] vals, int offset) {
+        history.add(timestamp, vals, offset);
+    }
+
+    /** Empties the long history, e.g. when the timestamps start over. */
+    public void clearHistory() {
+        history.reset();
+        invalidate();
+    }
+
+    /**
+     * Shows the last {@code windowNs} of the long history, reduced to a
+     * min/max envelope per pixel column, instead of the live trace; 0 goes
+     * back to the live trace. Pinching zooms the window while it is shown.
+     */
+    public void setHistoryWindow(long windowNs) {
+        if (windowNs > 0)
+            windowNs = Math.min(Math.max(windowNs, HISTORY_MIN_NS), HISTORY_MAX_NS);
+        else
+            windowNs = 0;
+        if (windowNs == historyWindowNs)
+            return;
+        historyWindowNs = windowNs;
+        if (windowNs > 0 && getWidth() > 0)
+            layoutHistory();
+        invalidate();
+    }
+
+    public long getHistoryWindow() {
+        return historyWindowNs;
+    }
 }
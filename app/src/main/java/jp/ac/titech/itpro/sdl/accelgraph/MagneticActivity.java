@@ -5,12 +5,8 @@ import android.app.Activity;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.view.Menu;
@@ -20,40 +16,41 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.io.FileOutputStream;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.util.Locale;
+import java.io.File;
 
-public class MagneticActivity extends Activity implements SensorEventListener {
+public class MagneticActivity extends Activity implements FrameScheduler.Listener {
 
     private final static String TAG = "MagneticActivity";
 
-    private TextView rateView, accuracyView;
-    private GraphView xView, yView, zView;
+    private TextView intervalView, frameLatencyView, diskLatencyView, accuracyView;
+    private GraphView graphView;
 
-    private SensorManager sensorMgr;
-    private Sensor accelerometer;
+    private SensorSession session;
+    private SensorSession.Stream stream;
+    private int generation; // of the stream, see checkGeneration()
 
-    private final static long GRAPH_REFRESH_WAIT_MS = 20;
+    // bound while the screen is shown, which keeps the sensors running for it
+    private final CaptureConnection connection = new CaptureConnection(this, TAG);
 
-    private GraphRefreshThread th = null;
-    private Handler handler;
+    private final static int READ_CHUNK = 256;
 
-    private float vx, vy, vz;
-    private float rate;
-    private int accuracy;
-    private long prevts;
+    private FrameScheduler frameScheduler;
+    private PerfOverlay perfOverlay;
+    private long rendered = 0;
+    private NumberText intervalText, frameLatencyText, diskLatencyText, accuracyText;
 
-    private final static float alpha = 0.75F;
+    // from the sensor callback until a sample is drawn
+    private final LatencyHistogram frameLatency = new LatencyHistogram();
+
+    private FilterChain smoother;
+
+    private SampleRingBuffer.Cursor graphCursor;
+    private final long[] tsBuf = new long[READ_CHUNK];
+    private final float[] valBuf = new float[READ_CHUNK * 3];
 
-    Long startTime;
     private Button startButton, stopButton;
-    private Boolean writing = false;
-    OutputStream out;
-    PrintWriter writer;
     private final int REQUEST_PERMISSION = 1111;
+    private final static double REPLAY_FAST = 10;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -61,35 +58,47 @@ public class MagneticActivity extends Activity implements SensorEventListener {
         Log.i(TAG, "onCreate");
         setContentView(R.layout.activity_magne);
 
-        rateView = (TextView) findViewById(R.id.rate_view);
+        intervalView = (TextView) findViewById(R.id.interval_view);
+        frameLatencyView = (TextView) findViewById(R.id.frame_latency_view);
+        diskLatencyView = (TextView) findViewById(R.id.disk_latency_view);
         accuracyView = (TextView) findViewById(R.id.accuracy_view);
-        xView = (GraphView) findViewById(R.id.x_view);
-        yView = (GraphView) findViewById(R.id.y_view);
-        zView = (GraphView) findViewById(R.id.z_view);
+        graphView = (GraphView) findViewById(R.id.graph_view);
 
-        sensorMgr = (SensorManager) getSystemService(SENSOR_SERVICE);
-        accelerometer = sensorMgr.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
-        if (accelerometer == null) {
+        session = SensorSession.getInstance(this);
+        stream = session.getStream(Sensor.TYPE_MAGNETIC_FIELD);
+        if (stream == null) {
             Toast.makeText(this, getString(R.string.toast_no_magne_error),
                     Toast.LENGTH_SHORT).show();
             finish();
             return;
         }
+        generation = stream.getGeneration();
+
+        try {
+            smoother = FilterChain.parse(3, getString(R.string.filter_magne));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, e.toString());
+            smoother = new FilterChain(3);
+        }
 
-        handler = new Handler();
+        frameScheduler = new FrameScheduler(this);
+        perfOverlay = PerfOverlay.attach(this, session, new SensorSession.Stream[]{stream}, graphView);
+        intervalText = new NumberText(intervalView);
+        frameLatencyText = new NumberText(frameLatencyView);
+        diskLatencyText = new NumberText(diskLatencyView);
+        accuracyText = new NumberText(accuracyView);
         startButton = (Button) findViewById(R.id.startButton);
         stopButton = (Button) findViewById(R.id.stopButton);
         startButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
                 checkExternalStoragePermission();
-                writing = true;
             }
         });
         stopButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                writing = false;
+                session.stopRecording();
             }
         });
     }
@@ -98,73 +107,54 @@ public class MagneticActivity extends Activity implements SensorEventListener {
     protected void onResume() {
         super.onResume();
         Log.i(TAG, "onResume");
-        startTime = System.currentTimeMillis();
-        sensorMgr.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_FASTEST);
-        th = new GraphRefreshThread();
-        th.start();
+        connection.bind();
+        graphCursor = stream.ring.newCursor();
+        frameScheduler.start();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         Log.i(TAG, "onPause");
-        if (writer != null) writer.close();
-        if (out != null) {
-            try {
-                out.close();
-            } catch (Exception e) {
-                Log.e(TAG, e.toString());
-            }
-        }
-        writer = null;
-        out = null;
-        writing = false;
-        th = null;
-        sensorMgr.unregisterListener(this);
+        frameScheduler.stop();
+        connection.unbind();
     }
 
-    @Override
-    public void onSensorChanged(SensorEvent event) {
-        vx = alpha * vx + (1 - alpha) * event.values[0];
-        vy = alpha * vy + (1 - alpha) * event.values[1];
-        vz = alpha * vz + (1 - alpha) * event.values[2];
-        rate = ((float) (event.timestamp - prevts)) / (1000 * 1000);
-        prevts = event.timestamp;
+    // the session switched between the sensors and a replay, so the
+    // timestamps may have gone back: start the graph afresh
+    private void checkGeneration() {
+        if (stream.getGeneration() == generation)
+            return;
+        generation = stream.getGeneration();
+        graphCursor = stream.ring.newCursor();
+        smoother.reset();
+        graphView.clearHistory();
     }
 
     @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        Log.i(TAG, "onAccuracyChanged: ");
-        this.accuracy = accuracy;
-    }
-
-    private class GraphRefreshThread extends Thread {
-        public void run() {
-            try {
-                while (th != null) {
-                    handler.post(new Runnable() {
-                        public void run() {
-                            rateView.setText(String.format(Locale.getDefault(), "%f", rate));
-                            accuracyView.setText(String.format(Locale.getDefault(), "%d", accuracy));
-                            xView.addData(vx, true);
-                            yView.addData(vy, true);
-                            zView.addData(vz, true);
-                        }
-                    });
-                    if (writing && writer != null) {
-                        Long now = System.currentTimeMillis() - startTime;
-                        String str = now/1000+"."+now%1000 + ": " + vx + " " + vy + " " + vz;
-                        writer.println(str);
-                        writer.flush();
-                    }
-                    Thread.sleep(GRAPH_REFRESH_WAIT_MS);
-                }
-            }
-            catch (InterruptedException e) {
-                Log.e(TAG, e.toString());
-                th = null;
+    public void onFrame(long frameTimeNanos) {
+        checkGeneration();
+        int n;
+        long now = System.nanoTime();
+        while ((n = graphCursor.read(tsBuf, valBuf, READ_CHUNK)) > 0) {
+            long seq = graphCursor.getPosition() - n;
+            rendered += n;
+            for (int i = 0; i < n; i++) {
+                smoother.update(tsBuf[i], valBuf, 3 * i);
+                frameLatency.record(now - stream.getArrival(seq + i));
+                graphView.addSample(tsBuf[i], valBuf, 3 * i);
             }
         }
+
+        intervalText.setPercentiles(stream.getIntervals());
+        frameLatencyText.setPercentiles(frameLatency);
+        diskLatencyText.setPercentiles(session.getDiskLatency(stream));
+        accuracyText.setLong(stream.getAccuracy());
+        graphView.addData(smoother.getValues(), true);
+        perfOverlay.onFrame(frameTimeNanos, rendered);
+        if (session.takeRecordingError() != null)
+            Toast.makeText(this, getString(R.string.toast_record_error),
+                    Toast.LENGTH_SHORT).show();
     }
 
 
@@ -178,6 +168,14 @@ public class MagneticActivity extends Activity implements SensorEventListener {
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
         Log.d(TAG, "onPrepareOptionsMenu");
+        MenuItem batching = menu.findItem(R.id.menu_batching);
+        batching.setEnabled(session.isBatchingSupported());
+        batching.setChecked(session.isBatching());
+        menu.findItem(R.id.menu_perf_overlay).setChecked(PerfOverlay.isOn());
+        MenuItem trigger = menu.findItem(R.id.menu_trigger_mode);
+        // takes effect when the next recording starts
+        trigger.setEnabled(!session.isRecording());
+        trigger.setChecked(session.isTriggerMode());
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -204,6 +202,35 @@ public class MagneticActivity extends Activity implements SensorEventListener {
                 intent = new Intent(getApplication(), OrientationActivity.class);
                 startActivity(intent);
                 return true;
+            case R.id.menu_spectrum:
+                intent = new Intent(getApplication(), SpectrumActivity.class);
+                startActivity(intent);
+                return true;
+            case R.id.menu_history:
+                item.setChecked(!item.isChecked());
+                graphView.setHistoryWindow(item.isChecked() ? GraphView.HISTORY_DEFAULT_NS : 0);
+                return true;
+            case R.id.menu_perf_overlay:
+                PerfOverlay.setOn(!PerfOverlay.isOn());
+                return true;
+            case R.id.menu_trigger_mode:
+                session.setTriggerMode(!session.isTriggerMode());
+                return true;
+            case R.id.menu_batching:
+                session.setBatching(!session.isBatching());
+                return true;
+            case R.id.menu_replay_realtime:
+                startReplay(ReplaySource.REALTIME);
+                return true;
+            case R.id.menu_replay_fast:
+                startReplay(REPLAY_FAST);
+                return true;
+            case R.id.menu_replay_max:
+                startReplay(ReplaySource.MAX_SPEED);
+                return true;
+            case R.id.menu_replay_stop:
+                session.stopReplay();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -224,14 +251,21 @@ public class MagneticActivity extends Activity implements SensorEventListener {
         }
     }
 
+    private File recordingRoot() {
+        return new File(Environment.getExternalStorageDirectory(), getString(R.string.app_name));
+    }
+
     private void openExternalStorage() {
-        String path = Environment.getExternalStorageDirectory().getPath() + "/" + getString(R.string.magne_name_label) + ".txt";
-        try {
-            out = new FileOutputStream(path, false);
-            writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
-        } catch (Exception e) {
-            Log.e(TAG, e.toString());
-        }
+        if (!session.startRecording(recordingRoot()))
+            Toast.makeText(this, getString(R.string.toast_record_error),
+                    Toast.LENGTH_SHORT).show();
+    }
+
+    private void startReplay(double speed) {
+        File latest = SessionManifest.latestSession(recordingRoot());
+        if (latest == null || !session.startReplay(latest, speed))
+            Toast.makeText(this, getString(R.string.toast_replay_error),
+                    Toast.LENGTH_SHORT).show();
     }
 
     @Override
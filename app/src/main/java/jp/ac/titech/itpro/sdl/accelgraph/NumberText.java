@@ -0,0 +1,64 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import android.widget.TextView;
+
+/**
+ * Shows a number in a {@link TextView} through a reused char buffer, and
+ * only touches the view when the text actually changes.
+ */
+public class NumberText {
+
+    private final static int MAX_CHARS = 32;
+
+    private final TextView view;
+    private char[] buf = new char[MAX_CHARS];
+    private char[] shown = new char[MAX_CHARS];
+    private int shownLen = -1;
+
+    public NumberText(TextView view) {
+        this.view = view;
+    }
+
+    public void setFloat(float v, int decimals) {
+        show(CharFormat.formatFloat(buf, 0, v, decimals));
+    }
+
+    public void setLong(long v) {
+        show(CharFormat.formatLong(buf, 0, v));
+    }
+
+    /**
+     * Shows p50 / p99 / max of {@code h} in ms, or "-" if {@code h} is null
+     * or empty.
+     */
+    public void setPercentiles(LatencyHistogram h) {
+        if (h == null || h.getCount() == 0) {
+            buf[0] = '-';
+            show(1);
+            return;
+        }
+        int len = CharFormat.formatFloat(buf, 0, h.getPercentile(0.5) / 1e6f, 1);
+        buf[len++] = '/';
+        len = CharFormat.formatFloat(buf, len, h.getPercentile(0.99) / 1e6f, 1);
+        buf[len++] = '/';
+        len = CharFormat.formatFloat(buf, len, h.getMax() / 1e6f, 1);
+        show(len);
+    }
+
+    private void show(int len) {
+        if (len == shownLen) {
+            int i = 0;
+            while (i < len && buf[i] == shown[i])
+                i++;
+            if (i == len)
+                return;
+        }
+        // the view keeps a reference to the array it was given, so swap
+        // buffers instead of overwriting the one on screen
+        char[] t = shown;
+        shown = buf;
+        buf = t;
+        shownLen = len;
+        view.setText(shown, 0, len);
+    }
+}
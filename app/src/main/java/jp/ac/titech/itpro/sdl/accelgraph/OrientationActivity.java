@@ -5,12 +5,9 @@ import android.app.Activity;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.view.Menu;
@@ -20,74 +17,121 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.io.FileOutputStream;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.util.Locale;
+import java.io.File;
 
-public class OrientationActivity extends Activity implements SensorEventListener {
+public class OrientationActivity extends Activity implements FrameScheduler.Listener {
 
     private final static String TAG = "OrientationActivity";
 
-    private TextView rateView, accuracyView;
-    private GraphView xView, yView, zView;
+    private final static int SOURCE_ROTATION_VECTOR = 0;
+    private final static int SOURCE_ACCEL_MAGNETIC = 1;
+    private final static int SOURCE_GYRO_FILTER = 2;
 
-    private SensorManager sensorMgr;
-    private Sensor accelerometer;
-    private Sensor magneSensor;
+    private TextView intervalView, frameLatencyView, diskLatencyView, accuracyView;
+    private GraphView graphView;
 
-    private final static long GRAPH_REFRESH_WAIT_MS = 20;
+    private SensorSession session;
+    private SensorSession.Stream accelStream;
+    private SensorSession.Stream magneStream;
+    private SensorSession.Stream gyroStream;
+    private SensorSession.Stream rotationStream;
+    private int generation; // of the streams, see checkGeneration()
 
-    private GraphRefreshThread th = null;
-    private Handler handler;
+    // bound while the screen is shown, which keeps the sensors running for it
+    private final CaptureConnection connection = new CaptureConnection(this, TAG);
+    private int source;
 
-    private float[] accel = new float[3];
-    private float[] magnetic = new float[3];
-    private float[] attitude = new float[3];
-    private float vx, vy, vz;
-    private float rate;
-    private int accuracy;
-    private long prevts;
+    private final static int READ_CHUNK = 256;
 
-    private final static float alpha = 0.75F;
+    private FrameScheduler frameScheduler;
+    private PerfOverlay perfOverlay;
+    private long rendered = 0;
+    private NumberText intervalText, frameLatencyText, diskLatencyText, accuracyText;
+
+    private final OrientationFusion fusion = new OrientationFusion();
+    private final MadgwickFilter madgwick = new MadgwickFilter();
+    private final float[] quaternion = new float[4];
+    // intervals between attitude updates, and from the sensor callback
+    // until a sample is drawn
+    private final LatencyHistogram intervals = new LatencyHistogram();
+    private final LatencyHistogram frameLatency = new LatencyHistogram();
+    private long prevts = Long.MIN_VALUE;
+
+    // smoothing for the raw accel + magnetic attitude only; the other
+    // sources are filtered already
+    private final FilterChain passThrough = new FilterChain(3);
+    private FilterChain attitudeFilter;
+    private FilterChain smoother;
+
+    /** One sensor stream read by this screen. */
+    private static class Input {
+        final SensorSession.Stream stream;
+        SampleRingBuffer.Cursor cursor;
+        final long[] ts = new long[READ_CHUNK];
+        final float[] vs = new float[READ_CHUNK * 3];
+        int i, n;
+
+        Input(SensorSession.Stream stream) {
+            this.stream = stream;
+        }
+    }
+
+    private Input[] inputs = new Input[0];
+    private final float[] frameVals = new float[3];
+    private final float[] sampleVals = new float[3];
+    private final float[] attitudeVals = new float[3];
 
-    Long startTime;
     private Button startButton, stopButton;
-    private Boolean writing = false;
-    OutputStream out;
-    PrintWriter writer;
     private final int REQUEST_PERMISSION = 1111;
+    private final static double REPLAY_FAST = 10;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         Log.i(TAG, "onCreate");
-        setContentView(R.layout.activity_main);
+        setContentView(R.layout.activity_direction);
 
-        rateView = (TextView) findViewById(R.id.rate_view);
+        intervalView = (TextView) findViewById(R.id.interval_view);
+        frameLatencyView = (TextView) findViewById(R.id.frame_latency_view);
+        diskLatencyView = (TextView) findViewById(R.id.disk_latency_view);
         accuracyView = (TextView) findViewById(R.id.accuracy_view);
-        xView = (GraphView) findViewById(R.id.x_view);
-        yView = (GraphView) findViewById(R.id.y_view);
-        zView = (GraphView) findViewById(R.id.z_view);
-
-        sensorMgr = (SensorManager) getSystemService(SENSOR_SERVICE);
-        accelerometer = sensorMgr.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        magneSensor = sensorMgr.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD);
-        if (accelerometer == null) {
+        graphView = (GraphView) findViewById(R.id.graph_view);
+
+        session = SensorSession.getInstance(this);
+        accelStream = session.getStream(Sensor.TYPE_ACCELEROMETER);
+        magneStream = session.getStream(Sensor.TYPE_MAGNETIC_FIELD);
+        gyroStream = session.getStream(Sensor.TYPE_GYROSCOPE);
+        rotationStream = session.getStream(Sensor.TYPE_ROTATION_VECTOR);
+        if (rotationStream == null && (accelStream == null || magneStream == null))
+            rotationStream = session.getStream(Sensor.TYPE_GAME_ROTATION_VECTOR);
+        if (rotationStream == null && accelStream == null) {
             Toast.makeText(this, getString(R.string.toast_no_accel_error),
                     Toast.LENGTH_SHORT).show();
             finish();
             return;
         }
-        if (magneSensor == null) {
+        if (rotationStream == null && magneStream == null) {
             Toast.makeText(this, getString(R.string.toast_no_magne_error),
                     Toast.LENGTH_SHORT).show();
             finish();
             return;
         }
+        source = rotationStream != null ? SOURCE_ROTATION_VECTOR : SOURCE_ACCEL_MAGNETIC;
+        generation = (rotationStream != null ? rotationStream : accelStream).getGeneration();
+        try {
+            attitudeFilter = FilterChain.parse(3, getString(R.string.filter_attitude));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, e.toString());
+            attitudeFilter = passThrough;
+        }
+        smoother = source == SOURCE_ACCEL_MAGNETIC ? attitudeFilter : passThrough;
 
-        handler = new Handler();
+        frameScheduler = new FrameScheduler(this);
+        perfOverlay = PerfOverlay.attach(this, session, new SensorSession.Stream[0], graphView);
+        intervalText = new NumberText(intervalView);
+        frameLatencyText = new NumberText(frameLatencyView);
+        diskLatencyText = new NumberText(diskLatencyView);
+        accuracyText = new NumberText(accuracyView);
 
         startButton = (Button) findViewById(R.id.startButton);
         stopButton = (Button) findViewById(R.id.stopButton);
@@ -95,13 +139,12 @@ public class OrientationActivity extends Activity implements SensorEventListener
             @Override
             public void onClick(View v) {
                 checkExternalStoragePermission();
-                writing = true;
             }
         });
         stopButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                writing = false;
+                session.stopRecording();
             }
         });
     }
@@ -110,106 +153,212 @@ public class OrientationActivity extends Activity implements SensorEventListener
     protected void onResume() {
         super.onResume();
         Log.i(TAG, "onResume");
-        startTime = System.currentTimeMillis();
-        sensorMgr.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_FASTEST);
-        sensorMgr.registerListener(this, magneSensor, SensorManager.SENSOR_DELAY_FASTEST);
-        th = new GraphRefreshThread();
-        th.start();
+        connection.bind();
+        openInputs();
+        frameScheduler.start();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         Log.i(TAG, "onPause");
-        th = null;
-        if (writer != null) writer.close();
-        if (out != null) {
-            try {
-                out.close();
-            } catch (Exception e) {
-                Log.e(TAG, e.toString());
-            }
+        frameScheduler.stop();
+        connection.unbind();
+    }
+
+    private boolean isAvailable(int source) {
+        switch (source) {
+            case SOURCE_ROTATION_VECTOR:
+                return rotationStream != null;
+            case SOURCE_ACCEL_MAGNETIC:
+                return accelStream != null && magneStream != null;
+            case SOURCE_GYRO_FILTER:
+                return gyroStream != null && accelStream != null;
+            default:
+                return false;
         }
-        writer = null;
-        out = null;
-        writing = false;
-        sensorMgr.unregisterListener(this);
     }
 
-    @Override
-    public void onSensorChanged(SensorEvent event) {
-        switch (event.sensor.getType()) {
-            case Sensor.TYPE_MAGNETIC_FIELD:
-                magnetic = event.values.clone();
+    /** Starts reading the streams of the current source from now on. */
+    private void openInputs() {
+        fusion.reset();
+        madgwick.reset();
+        switch (source) {
+            case SOURCE_ROTATION_VECTOR:
+                inputs = new Input[]{new Input(rotationStream)};
                 break;
-            case Sensor.TYPE_ACCELEROMETER:
-                accel = event.values.clone();
+            case SOURCE_ACCEL_MAGNETIC:
+                inputs = new Input[]{new Input(accelStream), new Input(magneStream)};
+                break;
+            case SOURCE_GYRO_FILTER:
+                inputs = magneStream == null
+                        ? new Input[]{new Input(gyroStream), new Input(accelStream)}
+                        : new Input[]{new Input(gyroStream), new Input(accelStream), new Input(magneStream)};
                 break;
         }
-        if (magnetic != null && accel != null) {
-            float[] in = new float[9];
-            float[] out = new float[9];
-            SensorManager.getRotationMatrix( in, null, accel, magnetic);
-            SensorManager.remapCoordinateSystem(in, SensorManager.AXIS_X, SensorManager.AXIS_Y, out);
-            SensorManager.getOrientation(out, attitude);
+        SensorSession.Stream[] streams = new SensorSession.Stream[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i].cursor = inputs[i].stream.ring.newCursor();
+            streams[i] = inputs[i].stream;
         }
-        vx = alpha * vx + (1 - alpha) * attitude[1];
-        vy = alpha * vy + (1 - alpha) * attitude[2];
-        vz = alpha * vz + (1 - alpha) * attitude[0];
-        rate = ((float) (event.timestamp - prevts)) / (1000 * 1000);
-        prevts = event.timestamp;
+        perfOverlay.setStreams(streams);
     }
 
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        Log.i(TAG, "onAccuracyChanged: ");
-        this.accuracy = accuracy;
+    // the session switched between the sensors and a replay, so the
+    // timestamps may have gone back: start the attitude and the graph
+    // afresh; all streams switch together, so any input will do
+    private void checkGeneration() {
+        if (inputs.length == 0 || inputs[0].stream.getGeneration() == generation)
+            return;
+        generation = inputs[0].stream.getGeneration();
+        openInputs();
+        smoother.reset();
+        intervals.reset();
+        prevts = Long.MIN_VALUE;
+        graphView.clearHistory();
     }
 
-    private class GraphRefreshThread extends Thread {
-        public void run() {
-            try {
-                while (th != null) {
-                    handler.post(new Runnable() {
-                        public void run() {
-                            rateView.setText(String.format(Locale.getDefault(), "%f", rate));
-                            accuracyView.setText(String.format(Locale.getDefault(), "%d", accuracy));
-                            xView.addData(vx*20/(float)Math.PI, true);
-                            yView.addData(vy*20/(float)Math.PI, true);
-                            zView.addData(vz*20/(float)Math.PI, true);
-
-                        }
-                    });
-                    if (writing && writer != null) {
-                        Long now = System.currentTimeMillis() - startTime;
-                        String str = now/1000+"."+now%1000 + ": " + vx + " " + vy + " " + vz;
-                        writer.println(str);
-                        writer.flush();
-                    }
-                    Thread.sleep(GRAPH_REFRESH_WAIT_MS);
+    @Override
+    public void onFrame(long frameTimeNanos) {
+        checkGeneration();
+        // replay all inputs in timestamp order
+        long now = System.nanoTime();
+        while (true) {
+            Input next = null;
+            for (Input in : inputs) {
+                if (in.i == in.n) {
+                    in.n = in.cursor.read(in.ts, in.vs, READ_CHUNK);
+                    in.i = 0;
+                    rendered += in.n;
+                    long seq = in.cursor.getPosition() - in.n;
+                    for (int k = 0; k < in.n; k++)
+                        frameLatency.record(now - in.stream.getArrival(seq + k));
                 }
+                if (in.i < in.n && (next == null || in.ts[in.i] < next.ts[next.i]))
+                    next = in;
             }
-            catch (InterruptedException e) {
-                Log.e(TAG, e.toString());
-                th = null;
-            }
+            if (next == null)
+                break;
+            onInput(next.stream.sensor.getType(), next.ts[next.i], next.vs, 3 * next.i);
+            next.i++;
+        }
+
+        int accuracy = SensorManager.SENSOR_STATUS_ACCURACY_HIGH;
+        for (Input in : inputs)
+            accuracy = Math.min(accuracy, in.stream.getAccuracy());
+        intervalText.setPercentiles(intervals);
+        frameLatencyText.setPercentiles(frameLatency);
+        diskLatencyText.setPercentiles(inputs.length > 0 ? session.getDiskLatency(inputs[0].stream) : null);
+        accuracyText.setLong(accuracy);
+        float[] v = smoother.getValues();
+        frameVals[0] = v[0]*20/(float)Math.PI;
+        frameVals[1] = v[1]*20/(float)Math.PI;
+        frameVals[2] = v[2]*20/(float)Math.PI;
+        graphView.addData(frameVals, true);
+        perfOverlay.onFrame(frameTimeNanos, rendered);
+        if (session.takeRecordingError() != null)
+            Toast.makeText(this, getString(R.string.toast_record_error),
+                    Toast.LENGTH_SHORT).show();
+    }
+
+    private void onInput(int type, long timestamp, float[] vals, int off) {
+        switch (type) {
+            case Sensor.TYPE_ROTATION_VECTOR:
+            case Sensor.TYPE_GAME_ROTATION_VECTOR:
+                fusion.updateRotationVector(vals, off);
+                onAttitude(timestamp);
+                break;
+            case Sensor.TYPE_ACCELEROMETER:
+                if (source == SOURCE_GYRO_FILTER) {
+                    madgwick.setAccel(vals, off);
+                    if (!madgwick.isInitialized())
+                        seedMadgwick(fusion.updateAccel(vals, off));
+                } else if (fusion.updateAccel(vals, off)) {
+                    onAttitude(timestamp);
+                }
+                break;
+            case Sensor.TYPE_MAGNETIC_FIELD:
+                if (source == SOURCE_GYRO_FILTER) {
+                    madgwick.setMagnetic(vals, off);
+                    if (!madgwick.isInitialized())
+                        seedMadgwick(fusion.updateMagnetic(vals, off));
+                } else if (fusion.updateMagnetic(vals, off)) {
+                    onAttitude(timestamp);
+                }
+                break;
+            case Sensor.TYPE_GYROSCOPE:
+                if (madgwick.updateGyro(timestamp, vals, off)) {
+                    madgwick.getQuaternion(quaternion, 0);
+                    fusion.updateQuaternion(quaternion, 0);
+                    onAttitude(timestamp);
+                }
+                break;
         }
     }
 
+    // starts the gyroscope filter from the accel + magnetic attitude, or
+    // from level if there is no magnetometer, instead of converging slowly
+    private void seedMadgwick(boolean haveAttitude) {
+        if (haveAttitude || magneStream == null)
+            madgwick.setQuaternion(fusion.getQuaternion(), 0);
+    }
+
+    private void onAttitude(long timestamp) {
+        float pitch = fusion.getPitch();
+        float roll = fusion.getRoll();
+        float azimuth = fusion.getAzimuth();
+        if (prevts != Long.MIN_VALUE)
+            intervals.record(timestamp - prevts);
+        prevts = timestamp;
+        sampleVals[0] = pitch * 20 / (float) Math.PI;
+        sampleVals[1] = roll * 20 / (float) Math.PI;
+        sampleVals[2] = azimuth * 20 / (float) Math.PI;
+        graphView.addSample(timestamp, sampleVals, 0);
+        attitudeVals[0] = pitch;
+        attitudeVals[1] = roll;
+        attitudeVals[2] = azimuth;
+        smoother.update(timestamp, attitudeVals, 0);
+    }
+
 
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         Log.d(TAG, "onCreateOptionsMenu");
         getMenuInflater().inflate(R.menu.main, menu);
+        getMenuInflater().inflate(R.menu.orientation, menu);
         return true;
     }
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
         Log.d(TAG, "onPrepareOptionsMenu");
+        MenuItem batching = menu.findItem(R.id.menu_batching);
+        batching.setEnabled(session.isBatchingSupported());
+        batching.setChecked(session.isBatching());
+        menu.findItem(R.id.menu_perf_overlay).setChecked(PerfOverlay.isOn());
+        MenuItem trigger = menu.findItem(R.id.menu_trigger_mode);
+        // takes effect when the next recording starts
+        trigger.setEnabled(!session.isRecording());
+        trigger.setChecked(session.isTriggerMode());
+        menu.findItem(R.id.menu_source_rotation_vector).setEnabled(isAvailable(SOURCE_ROTATION_VECTOR));
+        menu.findItem(R.id.menu_source_accel_magne).setEnabled(isAvailable(SOURCE_ACCEL_MAGNETIC));
+        menu.findItem(R.id.menu_source_gyro).setEnabled(isAvailable(SOURCE_GYRO_FILTER));
+        int checked = source == SOURCE_ROTATION_VECTOR ? R.id.menu_source_rotation_vector
+                : source == SOURCE_ACCEL_MAGNETIC ? R.id.menu_source_accel_magne
+                : R.id.menu_source_gyro;
+        menu.findItem(checked).setChecked(true);
         return super.onPrepareOptionsMenu(menu);
     }
 
+    private void setSource(int source) {
+        if (source == this.source || !isAvailable(source))
+            return;
+        this.source = source;
+        smoother = source == SOURCE_ACCEL_MAGNETIC ? attitudeFilter : passThrough;
+        smoother.reset();
+        openInputs();
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         Log.d(TAG, "onOptionsItemSelected");
@@ -233,6 +382,44 @@ public class OrientationActivity extends Activity implements SensorEventListener
                 return true;
             case R.id.menu_Orientation:
                 return true;
+            case R.id.menu_spectrum:
+                intent = new Intent(getApplication(), SpectrumActivity.class);
+                startActivity(intent);
+                return true;
+            case R.id.menu_source_rotation_vector:
+                setSource(SOURCE_ROTATION_VECTOR);
+                return true;
+            case R.id.menu_source_accel_magne:
+                setSource(SOURCE_ACCEL_MAGNETIC);
+                return true;
+            case R.id.menu_source_gyro:
+                setSource(SOURCE_GYRO_FILTER);
+                return true;
+            case R.id.menu_history:
+                item.setChecked(!item.isChecked());
+                graphView.setHistoryWindow(item.isChecked() ? GraphView.HISTORY_DEFAULT_NS : 0);
+                return true;
+            case R.id.menu_perf_overlay:
+                PerfOverlay.setOn(!PerfOverlay.isOn());
+                return true;
+            case R.id.menu_trigger_mode:
+                session.setTriggerMode(!session.isTriggerMode());
+                return true;
+            case R.id.menu_batching:
+                session.setBatching(!session.isBatching());
+                return true;
+            case R.id.menu_replay_realtime:
+                startReplay(ReplaySource.REALTIME);
+                return true;
+            case R.id.menu_replay_fast:
+                startReplay(REPLAY_FAST);
+                return true;
+            case R.id.menu_replay_max:
+                startReplay(ReplaySource.MAX_SPEED);
+                return true;
+            case R.id.menu_replay_stop:
+                session.stopReplay();
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -252,14 +439,21 @@ public class OrientationActivity extends Activity implements SensorEventListener
         }
     }
 
+    private File recordingRoot() {
+        return new File(Environment.getExternalStorageDirectory(), getString(R.string.app_name));
+    }
+
     private void openExternalStorage() {
-        String path = Environment.getExternalStorageDirectory().getPath() + "/" + getString(R.string.orientation_name_label) + ".txt";
-        try {
-            out = new FileOutputStream(path, false);
-            writer = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
-        } catch (Exception e) {
-            Log.e(TAG, e.toString());
-        }
+        if (!session.startRecording(recordingRoot()))
+            Toast.makeText(this, getString(R.string.toast_record_error),
+                    Toast.LENGTH_SHORT).show();
+    }
+
+    private void startReplay(double speed) {
+        File latest = SessionManifest.latestSession(recordingRoot());
+        if (latest == null || !session.startReplay(latest, speed))
+            Toast.makeText(this, getString(R.string.toast_replay_error),
+                    Toast.LENGTH_SHORT).show();
     }
 
     @Override
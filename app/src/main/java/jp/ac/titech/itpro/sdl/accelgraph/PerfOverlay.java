@@ -0,0 +1,271 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.util.TypedValue;
+import android.view.Gravity;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.FrameLayout;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * Live performance numbers drawn over a screen: frame time, draw time of
+ * each graph, sensor events per second received, drawn and written, queue
+ * depths, share of the UI thread spent in sensor callbacks and garbage
+ * collections.
+ * <p>
+ * The screen calls {@link #onFrame} once per frame. The numbers are
+ * accumulated over one second and the text is then rebuilt into fixed char
+ * buffers, so the overlay does not allocate while running (except for a
+ * tiny sentinel object after each garbage collection, which is how
+ * collections are noticed). One switch shows or hides it on all screens.
+ */
+public class PerfOverlay extends View {
+
+    private final static long WINDOW_NS = 1000L * 1000 * 1000;
+    private final static int LINES = 4;
+    private final static int LINE_CHARS = 96;
+    private final static float TEXT_SP = 12;
+
+    private static boolean on = false;
+
+    private final SensorSession session;
+    private SensorSession.Stream[] streams;
+    private final GraphView[] graphs;
+
+    private final char[][] lines = new char[LINES][LINE_CHARS];
+    private final int[] lineLengths = new int[LINES];
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint backPaint = new Paint();
+    private final float lineHeight;
+
+    // current window
+    private long windowStart = 0;
+    private long lastFrame = 0;
+    private int frames;
+    private long maxFrameNs;
+    private final long[] drawCountStart, drawNanosStart, maxDrawNs;
+    private long receivedStart, renderedStart, writtenStart, callbackStart;
+    private int maxBatch, maxWriterQueue;
+    private long lastRendered;
+
+    private WeakReference<Object> gcSentinel = new WeakReference<>(new Object());
+    private int gcs = 0;
+
+    public PerfOverlay(Context context, SensorSession session, SensorSession.Stream[] streams,
+                       GraphView... graphs) {
+        super(context);
+        this.session = session;
+        this.streams = streams;
+        this.graphs = graphs;
+        drawCountStart = new long[graphs.length];
+        drawNanosStart = new long[graphs.length];
+        maxDrawNs = new long[graphs.length];
+        float size = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, TEXT_SP,
+                context.getResources().getDisplayMetrics());
+        textPaint.setColor(Color.WHITE);
+        textPaint.setTextSize(size);
+        textPaint.setTypeface(Typeface.MONOSPACE);
+        backPaint.setColor(Color.argb(160, 0, 0, 0));
+        lineHeight = size * 1.25f;
+        setWillNotDraw(false);
+        updateVisibility();
+    }
+
+    /** Creates an overlay and lays it over the bottom of the activity. */
+    public static PerfOverlay attach(Activity activity, SensorSession session,
+                                     SensorSession.Stream[] streams, GraphView... graphs) {
+        PerfOverlay overlay = new PerfOverlay(activity, session, streams, graphs);
+        activity.addContentView(overlay, new FrameLayout.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT,
+                Gravity.BOTTOM));
+        return overlay;
+    }
+
+    public static boolean isOn() {
+        return on;
+    }
+
+    /** Shows or hides the overlays of all screens from their next frame. */
+    public static void setOn(boolean on) {
+        PerfOverlay.on = on;
+    }
+
+    /** The streams whose events are counted as received. */
+    public void setStreams(SensorSession.Stream[] streams) {
+        this.streams = streams;
+        windowStart = 0;
+    }
+
+    private void updateVisibility() {
+        int v = on ? VISIBLE : GONE;
+        if (getVisibility() != v)
+            setVisibility(v);
+    }
+
+    /**
+     * Called by the screen once per frame, after it has drained its rings.
+     *
+     * @param rendered total number of samples the screen has drawn so far
+     */
+    public void onFrame(long frameTimeNanos, long rendered) {
+        updateVisibility();
+        if (!on) {
+            windowStart = 0;
+            return;
+        }
+        if (gcSentinel.get() == null) {
+            gcs++;
+            gcSentinel = new WeakReference<>(new Object());
+        }
+        if (windowStart == 0) {
+            startWindow(frameTimeNanos, rendered);
+            return;
+        }
+
+        frames++;
+        maxFrameNs = Math.max(maxFrameNs, frameTimeNanos - lastFrame);
+        lastFrame = frameTimeNanos;
+        for (int g = 0; g < graphs.length; g++)
+            maxDrawNs[g] = Math.max(maxDrawNs[g], graphs[g].getLastDrawNanos());
+        maxBatch = (int) Math.max(maxBatch, rendered - lastRendered);
+        lastRendered = rendered;
+        maxWriterQueue = Math.max(maxWriterQueue, session.getRecorderQueueDepth());
+
+        long span = frameTimeNanos - windowStart;
+        if (span >= WINDOW_NS) {
+            format(span, rendered);
+            invalidate();
+            startWindow(frameTimeNanos, rendered);
+        }
+    }
+
+    private void startWindow(long now, long rendered) {
+        windowStart = now;
+        lastFrame = now;
+        frames = 0;
+        maxFrameNs = 0;
+        for (int g = 0; g < graphs.length; g++) {
+            drawCountStart[g] = graphs[g].getDrawCount();
+            drawNanosStart[g] = graphs[g].getDrawNanos();
+            maxDrawNs[g] = 0;
+        }
+        receivedStart = received();
+        renderedStart = rendered;
+        lastRendered = rendered;
+        writtenStart = written();
+        callbackStart = session.getCallbackNanos();
+        maxBatch = 0;
+        maxWriterQueue = -1;
+    }
+
+    private long received() {
+        long n = 0;
+        for (SensorSession.Stream s : streams)
+            n += s.ring.getHead();
+        return n;
+    }
+
+    // samples of our streams in the file, -1 if not recording
+    private long written() {
+        long n = 0;
+        for (SensorSession.Stream s : streams) {
+            LatencyHistogram h = session.getDiskLatency(s);
+            if (h == null)
+                return -1;
+            n += h.getCount();
+        }
+        return n;
+    }
+
+    private void format(long span, long rendered) {
+        float perSecond = 1e9f / span;
+        char[] b;
+        int n;
+
+        b = lines[0];
+        n = put(b, 0, "frame ");
+        n = ms(b, n, frames > 0 ? span / frames : 0);
+        n = put(b, n, " max ");
+        n = ms(b, n, maxFrameNs);
+        n = put(b, n, "  draw");
+        for (int g = 0; g < graphs.length; g++) {
+            long count = graphs[g].getDrawCount() - drawCountStart[g];
+            long nanos = graphs[g].getDrawNanos() - drawNanosStart[g];
+            b[n++] = ' ';
+            n = ms(b, n, count > 0 ? nanos / count : 0);
+            b[n++] = '/';
+            n = ms(b, n, maxDrawNs[g]);
+        }
+        lineLengths[0] = n;
+
+        b = lines[1];
+        n = put(b, 0, "events/s in ");
+        n = CharFormat.formatLong(b, n, (long) ((received() - receivedStart) * perSecond + 0.5f));
+        n = put(b, n, "  drawn ");
+        n = CharFormat.formatLong(b, n, (long) ((rendered - renderedStart) * perSecond + 0.5f));
+        n = put(b, n, "  file ");
+        long written = written();
+        // a new segment starts its counts afresh
+        if (written < 0 || writtenStart < 0 || written < writtenStart)
+            n = put(b, n, "-");
+        else
+            n = CharFormat.formatLong(b, n, (long) ((written - writtenStart) * perSecond + 0.5f));
+        lineLengths[1] = n;
+
+        b = lines[2];
+        n = put(b, 0, "queue per frame max ");
+        n = CharFormat.formatLong(b, n, maxBatch);
+        n = put(b, n, "  writer max ");
+        if (maxWriterQueue < 0)
+            n = put(b, n, "-");
+        else
+            n = CharFormat.formatLong(b, n, maxWriterQueue);
+        n = put(b, n, " blocks");
+        int events = session.getTriggerEventCount();
+        if (events >= 0) {
+            n = put(b, n, "  triggered ");
+            n = CharFormat.formatLong(b, n, events);
+        }
+        lineLengths[2] = n;
+
+        b = lines[3];
+        n = put(b, 0, "ui thread in callbacks ");
+        n = CharFormat.formatFloat(b, n, 100f * (session.getCallbackNanos() - callbackStart) / span, 1);
+        n = put(b, n, "%  gc ");
+        n = CharFormat.formatLong(b, n, gcs);
+        lineLengths[3] = n;
+    }
+
+    private static int ms(char[] b, int n, long nanos) {
+        return CharFormat.formatFloat(b, n, nanos / 1e6f, 1);
+    }
+
+    private static int put(char[] b, int n, String s) {
+        int len = s.length();
+        s.getChars(0, len, b, n);
+        return n + len;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int h = (int) Math.ceil(LINES * lineHeight + lineHeight / 2);
+        setMeasuredDimension(MeasureSpec.getSize(widthMeasureSpec), h);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        canvas.drawRect(0, 0, getWidth(), getHeight(), backPaint);
+        float y = lineHeight;
+        for (int i = 0; i < LINES; i++) {
+            canvas.drawText(lines[i], 0, lineLengths[i], lineHeight / 2, y, textPaint);
+            y += lineHeight;
+        }
+    }
+}
@@ -0,0 +1,787 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Process-wide owner of the sensor registrations.
+ * <p>
+ * Registers all {@link #SENSOR_TYPES} that the device has at once and
+ * routes their events into one {@link SampleRingBuffer} per sensor, which
+ * the activities read through their own cursors. The screens get the
+ * sensors by binding to {@link CaptureService}, which also keeps a
+ * recording running in the foreground when no screen is shown. Every
+ * sensor keeps running while the user switches between screens, and a
+ * recording captures all of them into one multiplexed session sharing the
+ * event timestamp time base, split into segment files by
+ * {@link SegmentedRecorder}. In trigger mode only the events that fire the
+ * trigger on the {@link #TRIGGER_TYPE} stream are recorded, each into a
+ * session of its own together with the seconds leading up to it (see
+ * {@link TriggeredRecorder}); the condition and the windows come from the
+ * {@code trigger_*} resources. As a {@link SampleSource} it also hands
+ * every event to the registered {@link SampleSink}s, stream numbers being
+ * the {@link Stream#index}es.
+ * <p>
+ * For the sensors in {@link #STATS_TYPES} the session also keeps
+ * {@link WindowStats} over the raw samples and feeds them, every
+ * {@link #STATS_HOP} samples, into a derived stream of its own (see
+ * {@link Stream#getStatsStream()}), which is shown and recorded like the
+ * others. The derived streams are numbered after the sensor streams.
+ * <p>
+ * While a recording is being replayed, the rings are fed from the
+ * {@link ReplaySource} instead of the sensors, so the screens show the
+ * replay through the same pipeline.
+ * <p>
+ * In batching mode (API 19+) the sensors buffer events in their hardware
+ * FIFO and deliver them in bursts, waking the application processor only
+ * every few seconds. A burst costs one ring insert (and one block append
+ * while recording) per event; the screens drain the rings once per frame.
+ * The FIFOs are flushed when recording stops and when a screen lets go, so
+ * no buffered samples are lost.
+ * <p>
+ * All methods must be called on the UI thread, which is also where sensor
+ * events are delivered.
+ */
+public class SensorSession implements SensorEventListener, SampleSource {
+
+    private final static String TAG = "SensorSession";
+
+    public final static int[] SENSOR_TYPES = {
+            Sensor.TYPE_ACCELEROMETER,
+            Sensor.TYPE_MAGNETIC_FIELD,
+            Sensor.TYPE_LIGHT,
+            Sensor.TYPE_PROXIMITY,
+            Sensor.TYPE_GYROSCOPE,
+            Sensor.TYPE_ROTATION_VECTOR,
+            Sensor.TYPE_GAME_ROTATION_VECTOR, // API 18+, simply absent before
+    };
+
+    /** Sensors whose windowed statistics are derived as streams of their own. */
+    public final static int[] STATS_TYPES = {
+            Sensor.TYPE_ACCELEROMETER,
+            Sensor.TYPE_GYROSCOPE,
+    };
+    public final static int STATS_WINDOW = 256;
+    public final static int STATS_HOP = 64;
+
+    private final static int RING_CAPACITY = 8192;
+    // rotation vectors keep x, y, z only; some devices report nothing more
+    private final static int MAX_CHANNELS = 3;
+    // keep sensors registered this long after the last screen lets go, so
+    // switching screens does not interrupt them
+    private final static long RELEASE_DELAY_MS = 2000;
+    private final static int MAX_BATCH_LATENCY_US = 10 * 1000 * 1000;
+    // give up waiting for onFlushCompleted after this
+    private final static long FLUSH_TIMEOUT_MS = 1000;
+    // recording segments and the space all sessions may take
+    private final static long SEGMENT_NS = 10L * 60 * 1000 * 1000 * 1000;
+    private final static long SEGMENT_BYTES = 32L * 1024 * 1024;
+    private final static long QUOTA_BYTES = 1024L * 1024 * 1024;
+
+    /** The sensor whose samples fire the trigger in trigger mode. */
+    public final static int TRIGGER_TYPE = Sensor.TYPE_ACCELEROMETER;
+    // the pre-trigger ring holds this many times what the streams deliver
+    // over the window at their fastest rates, which also covers the time
+    // the session of an event takes to create
+    private final static int TRIGGER_RING_HEADROOM = 2;
+    // rate assumed for on-change sensors, which have no minimum delay
+    private final static int ON_CHANGE_RATE = 10;
+    // bounds the ring for sensors that claim absurd rates
+    private final static int MAX_TRIGGER_RING = 128 * 1024;
+
+    private static SensorSession instance;
+
+    public static synchronized SensorSession getInstance(Context context) {
+        if (instance == null)
+            instance = new SensorSession(context.getApplicationContext());
+        return instance;
+    }
+
+    /** One registered sensor, or statistics derived from one, and its sample buffer. */
+    public static class Stream {
+        public final int index;
+        public final Sensor sensor;
+        public final SensorInfo info;
+        public final SampleRingBuffer ring;
+        /** The stream this one is derived from, null for a sensor. */
+        public final Stream source;
+        private volatile int accuracy;
+        private WindowStats stats;
+        private Stream statsStream;
+        // System.nanoTime() at which each ring slot was filled
+        private final long[] arrivals = new long[RING_CAPACITY];
+        private final LatencyHistogram intervals = new LatencyHistogram();
+        private long lastTimestamp = Long.MIN_VALUE;
+        private volatile int generation = 0;
+
+        Stream(int index, Sensor sensor, int channels) {
+            this.index = index;
+            this.sensor = sensor;
+            this.info = new SensorInfo(sensor.getType(), sensor.getName(), sensor.getVendor(),
+                    sensor.getResolution(), sensor.getMaximumRange(), channels);
+            this.ring = new SampleRingBuffer(channels, RING_CAPACITY);
+            this.source = null;
+        }
+
+        // the windowed statistics of source
+        Stream(int index, Stream source, WindowStats stats) {
+            SensorInfo si = source.info;
+            this.index = index;
+            this.sensor = source.sensor;
+            this.info = new SensorInfo(WindowStats.streamType(si.getType()), si.getName(),
+                    si.getVendor(), si.getResolution(), si.getMaximumRange(),
+                    stats.getChannels() * WindowStats.VALUES);
+            this.ring = new SampleRingBuffer(info.getChannels(), RING_CAPACITY);
+            this.source = source;
+            source.stats = stats;
+            source.statsStream = this;
+        }
+
+        /**
+         * The stream of the windowed statistics of this sensor, see
+         * {@link WindowStats#getValues()} for the layout; null if it has
+         * none.
+         */
+        public Stream getStatsStream() {
+            return statsStream;
+        }
+
+        public int getAccuracy() {
+            return accuracy;
+        }
+
+        /**
+         * Changes whenever the stream switches between the sensors and a
+         * replay; the timestamps that follow may be earlier than those
+         * before, so whatever was built from them has to start afresh.
+         */
+        public int getGeneration() {
+            return generation;
+        }
+
+        /** Intervals between the event timestamps of this stream. */
+        public LatencyHistogram getIntervals() {
+            return intervals;
+        }
+
+        /**
+         * {@link System#nanoTime()} at which the sample with sequence number
+         * {@code seq} (see {@link SampleRingBuffer.Cursor#getPosition()})
+         * reached the session; valid while the sample is still in the ring.
+         */
+        public long getArrival(long seq) {
+            return arrivals[(int) (seq & (RING_CAPACITY - 1))];
+        }
+
+        void put(long timestamp, float[] values, int offset) {
+            arrivals[(int) (ring.getHead() & (RING_CAPACITY - 1))] = System.nanoTime();
+            if (lastTimestamp != Long.MIN_VALUE)
+                intervals.record(timestamp - lastTimestamp);
+            lastTimestamp = timestamp;
+            ring.put(timestamp, values, offset);
+        }
+
+        // feeds the windowed statistics; true if they put a sample into
+        // the stats stream
+        boolean updateStats(long timestamp, float[] values, int offset) {
+            if (stats == null || !stats.update(timestamp, values, offset))
+                return false;
+            statsStream.put(stats.getTimestamp(), stats.getValues(), 0);
+            return true;
+        }
+
+        // starts the interval and windowed statistics afresh; only while
+        // nothing puts
+        void resetTiming() {
+            intervals.reset();
+            lastTimestamp = Long.MIN_VALUE;
+            if (stats != null)
+                stats.reset();
+            generation++;
+        }
+    }
+
+    private final SensorManager sensorMgr;
+    private final SensorEventListener listener;
+    private final Context context;
+    private final Stream[] streams; // sensors
+    private final Stream[] all; // sensors, then derived streams
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private int users = 0;
+    private boolean registered = false;
+    private SegmentedRecorder recorder;
+    private TriggeredRecorder triggered;
+    private IOException recordingError;
+    private boolean triggerMode = false;
+    private final String triggerSpec;
+    private final long triggerPreNs, triggerPostNs;
+    private SampleSink[] sinks = new SampleSink[0];
+    private ReplaySource replay;
+    private boolean batching = false;
+    private int pendingFlushes = 0;
+    private int pendingStops = 0;
+    private long callbackNanos = 0;
+    private final ArrayList<Runnable> afterFlush = new ArrayList<>();
+
+    private final Runnable releaseTask = new Runnable() {
+        @Override
+        public void run() {
+            if (users == 0 && !isRecording() && replay == null && afterFlush.isEmpty())
+                unregister();
+        }
+    };
+
+    private final Runnable releaseLater = new Runnable() {
+        @Override
+        public void run() {
+            if (users == 0)
+                handler.postDelayed(releaseTask, RELEASE_DELAY_MS);
+        }
+    };
+
+    private final Runnable flushDone = new Runnable() {
+        @Override
+        public void run() {
+            handler.removeCallbacks(this);
+            pendingFlushes = 0;
+            Runnable[] tasks = afterFlush.toArray(new Runnable[afterFlush.size()]);
+            afterFlush.clear();
+            for (Runnable task : tasks)
+                task.run();
+        }
+    };
+
+    /** Adds onFlushCompleted, which only exists from API 19 on. */
+    private static class FlushListener implements SensorEventListener2 {
+        private final SensorSession session;
+
+        FlushListener(SensorSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            session.onSensorChanged(event);
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            session.onAccuracyChanged(sensor, accuracy);
+        }
+
+        @Override
+        public void onFlushCompleted(Sensor sensor) {
+            session.onFlushCompleted();
+        }
+    }
+
+    private SensorSession(Context context) {
+        this.context = context;
+        sensorMgr = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        if (Build.VERSION.SDK_INT >= 19)
+            listener = new FlushListener(this);
+        else
+            listener = this;
+        int n = 0;
+        Stream[] all = new Stream[SENSOR_TYPES.length + STATS_TYPES.length];
+        for (int type : SENSOR_TYPES) {
+            Sensor sensor = sensorMgr.getDefaultSensor(type);
+            if (sensor == null) {
+                Log.i(TAG, "sensor type " + type + " not available");
+                continue;
+            }
+            all[n] = new Stream(n, sensor, channelsOf(type));
+            n++;
+        }
+        streams = new Stream[n];
+        System.arraycopy(all, 0, streams, 0, n);
+        for (int type : STATS_TYPES) {
+            Stream s = getStream(type);
+            if (s == null)
+                continue;
+            all[n] = new Stream(n, s, new WindowStats(s.info.getChannels(), STATS_WINDOW, STATS_HOP));
+            n++;
+        }
+        this.all = new Stream[n];
+        System.arraycopy(all, 0, this.all, 0, n);
+
+        Resources res = context.getResources();
+        triggerSpec = res.getString(R.string.trigger_condition);
+        triggerPreNs = res.getInteger(R.integer.trigger_pre_ms) * 1000000L;
+        triggerPostNs = res.getInteger(R.integer.trigger_post_ms) * 1000000L;
+    }
+
+    private static int channelsOf(int type) {
+        switch (type) {
+            case Sensor.TYPE_LIGHT:
+            case Sensor.TYPE_PROXIMITY:
+                return 1;
+            default:
+                return MAX_CHANNELS;
+        }
+    }
+
+    /** The stream of the given sensor type, or null if the device lacks it. */
+    public Stream getStream(int type) {
+        for (Stream s : streams)
+            if (s.sensor.getType() == type)
+                return s;
+        return null;
+    }
+
+    @Override
+    public int getStreamCount() {
+        return all.length;
+    }
+
+    @Override
+    public SensorInfo getStreamInfo(int stream) {
+        return all[stream].info;
+    }
+
+    @Override
+    public void addSink(SampleSink sink) {
+        SampleSink[] a = new SampleSink[sinks.length + 1];
+        System.arraycopy(sinks, 0, a, 0, sinks.length);
+        a[sinks.length] = sink;
+        sinks = a;
+    }
+
+    @Override
+    public void removeSink(SampleSink sink) {
+        for (int i = 0; i < sinks.length; i++) {
+            if (sinks[i] == sink) {
+                SampleSink[] a = new SampleSink[sinks.length - 1];
+                System.arraycopy(sinks, 0, a, 0, i);
+                System.arraycopy(sinks, i + 1, a, i, a.length - i);
+                sinks = a;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called by {@link CaptureService} while screens are bound to it for
+     * live data. Registers the sensors if they are not already.
+     */
+    public void acquire() {
+        users++;
+        handler.removeCallbacks(releaseTask);
+        register();
+    }
+
+    /**
+     * Called by {@link CaptureService} when the last screen unbinds. The
+     * sensors stay registered while recording and for a short while after
+     * the last screen lets go.
+     */
+    public void release() {
+        if (users == 0)
+            return;
+        users--;
+        // deliver what the FIFOs hold before the screen goes, and before an
+        // unregister would drop it
+        flushThen(releaseLater);
+    }
+
+    private void register() {
+        if (registered)
+            return;
+        for (Stream s : streams) {
+            if (batching && Build.VERSION.SDK_INT >= 19)
+                sensorMgr.registerListener(listener, s.sensor, SensorManager.SENSOR_DELAY_FASTEST,
+                        batchLatencyUs(s.sensor));
+            else
+                sensorMgr.registerListener(listener, s.sensor, SensorManager.SENSOR_DELAY_FASTEST);
+        }
+        registered = true;
+    }
+
+    private void unregister() {
+        if (!registered)
+            return;
+        sensorMgr.unregisterListener(listener);
+        registered = false;
+    }
+
+    // the longest report latency that fills at most half of the FIFO
+    // reserved for the sensor; called on API 19+ only
+    private static int batchLatencyUs(Sensor sensor) {
+        int fifo = sensor.getFifoReservedEventCount();
+        if (fifo <= 0)
+            return 0; // no FIFO, the sensor cannot batch
+        int periodUs = sensor.getMinDelay();
+        if (periodUs <= 0)
+            return MAX_BATCH_LATENCY_US; // on-change sensor
+        return (int) Math.min(MAX_BATCH_LATENCY_US, (long) fifo * periodUs / 2);
+    }
+
+    /** True if at least one sensor has a hardware FIFO to batch into. */
+    public boolean isBatchingSupported() {
+        if (Build.VERSION.SDK_INT < 19)
+            return false;
+        for (Stream s : streams)
+            if (s.sensor.getFifoReservedEventCount() > 0)
+                return true;
+        return false;
+    }
+
+    public boolean isBatching() {
+        return batching;
+    }
+
+    /**
+     * Switches between delivering every event at once and letting the
+     * sensors batch them for up to {@link #MAX_BATCH_LATENCY_US}. Takes
+     * effect after the FIFOs have been flushed.
+     */
+    public void setBatching(final boolean on) {
+        if (on == batching)
+            return;
+        if (!registered) {
+            batching = on;
+            return;
+        }
+        flushThen(new Runnable() {
+            @Override
+            public void run() {
+                // a listener can only be registered once per sensor
+                unregister();
+                batching = on;
+                register();
+            }
+        });
+    }
+
+    /**
+     * Runs {@code task} once the events the sensors hold in their FIFOs
+     * have been delivered, right away if nothing is batched.
+     */
+    private void flushThen(Runnable task) {
+        afterFlush.add(task);
+        if (pendingFlushes > 0)
+            return;
+        if (registered && batching && Build.VERSION.SDK_INT >= 19 && sensorMgr.flush(listener)) {
+            // one onFlushCompleted per registered sensor
+            pendingFlushes = streams.length;
+            handler.postDelayed(flushDone, FLUSH_TIMEOUT_MS);
+        } else {
+            flushDone.run();
+        }
+    }
+
+    private void onFlushCompleted() {
+        if (pendingFlushes > 0 && --pendingFlushes == 0)
+            flushDone.run();
+    }
+
+    /** True while recording, or waiting for the trigger in trigger mode. */
+    public boolean isRecording() {
+        return recorder != null || triggered != null;
+    }
+
+    /**
+     * True while a stopped recording still waits for the sensors to hand
+     * over what they buffer before its files are closed.
+     */
+    public boolean isStopping() {
+        return pendingStops > 0;
+    }
+
+    /** Whether {@link #startRecording} records only around trigger events. */
+    public void setTriggerMode(boolean on) {
+        triggerMode = on;
+    }
+
+    public boolean isTriggerMode() {
+        return triggerMode;
+    }
+
+    /**
+     * The error that stopped trigger mode recording since the last call, or
+     * null. The screens poll this to tell the user.
+     */
+    public IOException takeRecordingError() {
+        IOException e = recordingError;
+        recordingError = null;
+        return e;
+    }
+
+    /** Events recorded since trigger mode recording started, or -1 if it is not on. */
+    public int getTriggerEventCount() {
+        return triggered == null ? -1 : triggered.getEventCount();
+    }
+
+    // the recorder of the segment being written, if any
+    private Recorder currentRecorder() {
+        if (recorder != null)
+            return recorder.getCurrent();
+        return triggered == null ? null : triggered.getCurrent();
+    }
+
+    /** Filled blocks waiting for the recorder's writer, or -1 if not recording. */
+    public int getRecorderQueueDepth() {
+        Recorder r = currentRecorder();
+        return r == null ? -1 : r.getQueueDepth();
+    }
+
+    /**
+     * Time from the sensor callback until the samples of {@code s} were in
+     * the current segment file, or null if not recording.
+     */
+    public LatencyHistogram getDiskLatency(Stream s) {
+        Recorder r = currentRecorder();
+        return r == null ? null : r.getDiskLatency(s.index);
+    }
+
+    /**
+     * Starts recording every stream into a new session directory under
+     * {@code root}, replacing any recording in progress; in trigger mode,
+     * starts waiting for events instead. Returns false if the session
+     * cannot be created or the trigger is not available.
+     */
+    public boolean startRecording(File root) {
+        stopRecording();
+        stopReplay();
+        SensorInfo[] infos = new SensorInfo[all.length];
+        for (int i = 0; i < all.length; i++)
+            infos[i] = all[i].info;
+        RecordingHeader header = new RecordingHeader(infos,
+                SystemClock.elapsedRealtimeNanos(), System.currentTimeMillis());
+        if (triggerMode)
+            return startTriggered(root, header);
+        try {
+            recorder = new SegmentedRecorder(root, header, SEGMENT_NS, SEGMENT_BYTES, QUOTA_BYTES);
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            return false;
+        }
+        addSink(recorder);
+        register();
+        CaptureService.recordingChanged(context);
+        return true;
+    }
+
+    private boolean startTriggered(File root, RecordingHeader header) {
+        Stream s = getStream(TRIGGER_TYPE);
+        if (s == null)
+            return false;
+        try {
+            Trigger trigger = Trigger.parse(s.info.getChannels(), triggerSpec);
+            triggered = new TriggeredRecorder(root, header, s.index, trigger,
+                    triggerPreNs, triggerPostNs, triggerRingSamples(),
+                    SEGMENT_NS, SEGMENT_BYTES, QUOTA_BYTES);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, e.toString());
+            return false;
+        }
+        addSink(triggered);
+        register();
+        CaptureService.recordingChanged(context);
+        return true;
+    }
+
+    // pre-trigger ring slots for every stream at its fastest rate, derived
+    // streams included
+    private int triggerRingSamples() {
+        double rate = 0;
+        for (Stream s : all) {
+            int minDelay = s.sensor.getMinDelay(); // us
+            double r = minDelay > 0 ? 1e6 / minDelay : ON_CHANGE_RATE;
+            if (s.source != null)
+                r /= STATS_HOP;
+            rate += r;
+        }
+        double samples = rate * TRIGGER_RING_HEADROOM * triggerPreNs / 1e9;
+        int n = (int) Math.max(1, Math.min(MAX_TRIGGER_RING, Math.ceil(samples)));
+        Log.i(TAG, "pre-trigger ring of " + n + " samples for " + rate + " per second");
+        return n;
+    }
+
+    /**
+     * Stops recording. In batching mode the file is closed only after the
+     * sensors have handed over what they still buffer.
+     */
+    public void stopRecording() {
+        if (triggered != null) {
+            final TriggeredRecorder t = triggered;
+            triggered = null;
+            pendingStops++;
+            flushThen(new Runnable() {
+                @Override
+                public void run() {
+                    removeSink(t);
+                    t.stop();
+                    pendingStops--;
+                    releaseLater.run();
+                    CaptureService.recordingChanged(context);
+                }
+            });
+        }
+        if (recorder == null)
+            return;
+        final SegmentedRecorder r = recorder;
+        recorder = null;
+        pendingStops++;
+        flushThen(new Runnable() {
+            @Override
+            public void run() {
+                removeSink(r);
+                r.stop();
+                pendingStops--;
+                releaseLater.run();
+                CaptureService.recordingChanged(context);
+            }
+        });
+    }
+
+    public boolean isReplaying() {
+        return replay != null;
+    }
+
+    /**
+     * Replays the session in {@code dir} (see {@link SegmentedRecorder}), or
+     * a single recording file, into the rings at {@code speed} (see
+     * {@link ReplaySource#setSpeed(double)}) in place of the live sensors,
+     * stopping any recording. Recorded streams the device lacks are skipped,
+     * and so are recorded statistics, which are derived afresh.
+     * Timestamps are shifted so that the replay starts now. Once the
+     * recording has been played, the live sensors take over again. Returns
+     * false if the recording cannot be opened.
+     */
+    public boolean startReplay(File dir, double speed) {
+        stopRecording();
+        stopReplay();
+        final ReplaySource source;
+        try {
+            if (dir.isDirectory()) {
+                File[] files = SessionManifest.read(dir).getSegmentFiles(dir);
+                if (files.length == 0)
+                    throw new IOException("empty session: " + dir);
+                source = new ReplaySource(files);
+            } else {
+                source = new ReplaySource(dir);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            return false;
+        }
+        final Stream[] targets = new Stream[source.getStreamCount()];
+        for (int i = 0; i < targets.length; i++) {
+            SensorInfo info = source.getStreamInfo(i);
+            Stream s = WindowStats.isStreamType(info.getType()) ? null : getStream(info.getType());
+            if (s != null && s.info.getChannels() == info.getChannels())
+                targets[i] = s;
+        }
+        for (Stream s : all)
+            s.resetTiming();
+        source.addSink(new SampleSink() {
+            private long shift = Long.MIN_VALUE;
+
+            @Override
+            public void onSample(int stream, long timestamp, float[] values, int offset) {
+                if (shift == Long.MIN_VALUE)
+                    shift = SystemClock.elapsedRealtimeNanos() - timestamp;
+                Stream s = targets[stream];
+                if (s != null) {
+                    s.put(timestamp + shift, values, offset);
+                    s.updateStats(timestamp + shift, values, offset);
+                }
+            }
+        });
+        // back to the live sensors once the recording has been played
+        source.setListener(new ReplaySource.Listener() {
+            @Override
+            public void onFinished(final ReplaySource finished) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (replay == finished)
+                            stopReplay();
+                    }
+                });
+            }
+        });
+        source.setSpeed(speed);
+        replay = source;
+        source.start();
+        return true;
+    }
+
+    /** Stops replaying, if replaying, and goes back to the live sensors. */
+    public void stopReplay() {
+        if (replay == null)
+            return;
+        // joins the replay thread, so the rings have a single producer again
+        replay.stop();
+        replay = null;
+        for (Stream s : all)
+            s.resetTiming();
+        releaseLater.run();
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        if (replay != null)
+            return;
+        Stream s = streamOf(event.sensor);
+        if (s == null)
+            return;
+        long t0 = System.nanoTime();
+        s.put(event.timestamp, event.values, 0);
+        for (SampleSink sink : sinks)
+            sink.onSample(s.index, event.timestamp, event.values, 0);
+        if (s.updateStats(event.timestamp, event.values, 0)) {
+            for (SampleSink sink : sinks)
+                sink.onSample(s.statsStream.index, s.stats.getTimestamp(), s.stats.getValues(), 0);
+        }
+        if (triggered != null && triggered.isFailed()) {
+            // it records nothing more; stop it like the notification would
+            recordingError = triggered.getError();
+            Log.e(TAG, recordingError.toString());
+            stopRecording();
+        }
+        callbackNanos += System.nanoTime() - t0;
+    }
+
+    /**
+     * Total time spent handling sensor events, in ns. Read on the UI thread,
+     * where the events are delivered.
+     */
+    public long getCallbackNanos() {
+        return callbackNanos;
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        Log.i(TAG, "onAccuracyChanged: " + sensor.getName() + " " + accuracy);
+        Stream s = streamOf(sensor);
+        if (s != null)
+            s.accuracy = accuracy;
+    }
+
+    private Stream streamOf(Sensor sensor) {
+        for (Stream s : streams)
+            if (s.sensor == sensor)
+                return s;
+        // not the instance getDefaultSensor returned
+        for (Stream s : streams)
+            if (s.sensor.getType() == sensor.getType())
+                return s;
+        return null;
+    }
+}
@@ -0,0 +1,219 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.hardware.Sensor;
+import android.os.Bundle;
+import android.os.Environment;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.io.File;
+
+/**
+ * Spectrum of the full-rate accelerometer stream, transformed once per
+ * frame over the last {@link #FFT_SIZE} samples.
+ */
+public class SpectrumActivity extends Activity implements FrameScheduler.Listener {
+
+    private final static String TAG = "SpectrumActivity";
+
+    private final static int FFT_SIZE = 1024;
+    private final static int READ_CHUNK = 256;
+    private final static double REPLAY_FAST = 10;
+
+    private SpectrumView spectrumView;
+
+    private SensorSession session;
+    private SensorSession.Stream stream;
+    private int generation; // of the stream, see checkGeneration()
+
+    // bound while the screen is shown, which keeps the sensors running for it
+    private final CaptureConnection connection = new CaptureConnection(this, TAG);
+    private final SpectrumAnalyzer analyzer = new SpectrumAnalyzer(3, FFT_SIZE);
+
+    private FrameScheduler frameScheduler;
+    private PerfOverlay perfOverlay;
+    private long rendered = 0;
+    private NumberText sampleRateText;
+    private final NumberText[] peakTexts = new NumberText[3];
+
+    private SampleRingBuffer.Cursor cursor;
+    private final long[] tsBuf = new long[READ_CHUNK];
+    private final float[] valBuf = new float[READ_CHUNK * 3];
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        Log.i(TAG, "onCreate");
+        setContentView(R.layout.activity_spectrum);
+
+        spectrumView = (SpectrumView) findViewById(R.id.spectrum_view);
+
+        session = SensorSession.getInstance(this);
+        stream = session.getStream(Sensor.TYPE_ACCELEROMETER);
+        if (stream == null) {
+            Toast.makeText(this, getString(R.string.toast_no_accel_error),
+                    Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+        generation = stream.getGeneration();
+
+        frameScheduler = new FrameScheduler(this);
+        perfOverlay = PerfOverlay.attach(this, session, new SensorSession.Stream[]{stream});
+        sampleRateText = new NumberText((TextView) findViewById(R.id.sample_rate_view));
+        peakTexts[0] = new NumberText((TextView) findViewById(R.id.peak_x_view));
+        peakTexts[1] = new NumberText((TextView) findViewById(R.id.peak_y_view));
+        peakTexts[2] = new NumberText((TextView) findViewById(R.id.peak_z_view));
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        Log.i(TAG, "onResume");
+        connection.bind();
+        cursor = stream.ring.newCursor();
+        analyzer.reset();
+        frameScheduler.start();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        Log.i(TAG, "onPause");
+        frameScheduler.stop();
+        connection.unbind();
+    }
+
+    // the session switched between the sensors and a replay, so the
+    // timestamps may have gone back: start the spectrum afresh
+    private void checkGeneration() {
+        if (stream.getGeneration() == generation)
+            return;
+        generation = stream.getGeneration();
+        cursor = stream.ring.newCursor();
+        analyzer.reset();
+    }
+
+    @Override
+    public void onFrame(long frameTimeNanos) {
+        checkGeneration();
+        int n, added = 0;
+        while ((n = cursor.read(tsBuf, valBuf, READ_CHUNK)) > 0) {
+            rendered += n;
+            added += n;
+            for (int i = 0; i < n; i++)
+                analyzer.add(tsBuf[i], valBuf, 3 * i);
+        }
+
+        // a sliding window: one transform per frame over whatever arrived
+        if (added > 0 && analyzer.compute()) {
+            spectrumView.update(analyzer);
+            float binHz = analyzer.getBinHz();
+            sampleRateText.setFloat(analyzer.getSampleRate(), 1);
+            for (int c = 0; c < 3; c++)
+                peakTexts[c].setFloat(analyzer.getPeakBin(c) * binHz, 1);
+        }
+        perfOverlay.onFrame(frameTimeNanos, rendered);
+        if (session.takeRecordingError() != null)
+            Toast.makeText(this, getString(R.string.toast_record_error),
+                    Toast.LENGTH_SHORT).show();
+    }
+
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        Log.d(TAG, "onCreateOptionsMenu");
+        getMenuInflater().inflate(R.menu.main, menu);
+        getMenuInflater().inflate(R.menu.spectrum, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        Log.d(TAG, "onPrepareOptionsMenu");
+        MenuItem batching = menu.findItem(R.id.menu_batching);
+        batching.setEnabled(session.isBatchingSupported());
+        batching.setChecked(session.isBatching());
+        menu.findItem(R.id.menu_perf_overlay).setChecked(PerfOverlay.isOn());
+        MenuItem trigger = menu.findItem(R.id.menu_trigger_mode);
+        // takes effect when the next recording starts
+        trigger.setEnabled(!session.isRecording());
+        trigger.setChecked(session.isTriggerMode());
+        // there is no time graph here
+        menu.findItem(R.id.menu_history).setVisible(false);
+        menu.findItem(R.id.menu_spectrogram).setChecked(spectrumView.isSpectrogram());
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        Log.d(TAG, "onOptionsItemSelected");
+        Intent intent;
+        switch (item.getItemId()) {
+            case R.id.menu_accel:
+                intent = new Intent(getApplication(), MainActivity.class);
+                startActivity(intent);
+                return true;
+            case R.id.menu_light:
+                intent = new Intent(getApplication(), LightActivity.class);
+                startActivity(intent);
+                return true;
+            case R.id.menu_proximity:
+                intent = new Intent(getApplication(), ProximityActivity.class);
+                startActivity(intent);
+                return true;
+            case R.id.menu_magne:
+                intent = new Intent(getApplication(), MagneticActivity.class);
+                startActivity(intent);
+                return true;
+            case R.id.menu_Orientation:
+                intent = new Intent(getApplication(), OrientationActivity.class);
+                startActivity(intent);
+                return true;
+            case R.id.menu_spectrum:
+                return true;
+            case R.id.menu_spectrogram:
+                spectrumView.setSpectrogram(!spectrumView.isSpectrogram());
+                return true;
+            case R.id.menu_perf_overlay:
+                PerfOverlay.setOn(!PerfOverlay.isOn());
+                return true;
+            case R.id.menu_trigger_mode:
+                session.setTriggerMode(!session.isTriggerMode());
+                return true;
+            case R.id.menu_batching:
+                session.setBatching(!session.isBatching());
+                return true;
+            case R.id.menu_replay_realtime:
+                startReplay(ReplaySource.REALTIME);
+                return true;
+            case R.id.menu_replay_fast:
+                startReplay(REPLAY_FAST);
+                return true;
+            case R.id.menu_replay_max:
+                startReplay(ReplaySource.MAX_SPEED);
+                return true;
+            case R.id.menu_replay_stop:
+                session.stopReplay();
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    private File recordingRoot() {
+        return new File(Environment.getExternalStorageDirectory(), getString(R.string.app_name));
+    }
+
+    private void startReplay(double speed) {
+        File latest = SessionManifest.latestSession(recordingRoot());
+        if (latest == null || !session.startReplay(latest, speed))
+            Toast.makeText(this, getString(R.string.toast_replay_error),
+                    Toast.LENGTH_SHORT).show();
+    }
+}
@@ -0,0 +1,306 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.util.TypedValue;
+import android.view.View;
+
+/**
+ * Magnitude spectrum of each channel of a {@link SpectrumAnalyzer} on a dB
+ * scale over linear frequency, and optionally, below it, a scrolling
+ * spectrogram of the largest magnitude of any channel per bin.
+ * <p>
+ * The spectrogram is a bitmap of one pixel per bin and time column used as
+ * a ring: each update writes a single column and drawing splits the bitmap
+ * at the oldest one, so nothing is shifted. Line points, pixels and labels
+ * are preallocated; updating and drawing do not allocate.
+ */
+public class SpectrumView extends View {
+
+    private final static String TAG = "SpectrumView";
+    private final static float MIN_DB = -60;
+    private final static float MAX_DB = 20;
+    private final static float GRID_DB = 20;
+    private final static int FREQ_DIVISIONS = 8;
+    private final static int MAX_FREQ_LINES = 4 * FREQ_DIVISIONS;
+    private final static int SPECTROGRAM_COLUMNS = 256;
+    private final static float TEXT_SP = 12;
+    private final static int[] CHANNEL_COLORS = {
+            Color.YELLOW, Color.GREEN, Color.MAGENTA, Color.WHITE
+    };
+    private final static int[] PALETTE_STOPS = {
+            Color.BLACK, Color.BLUE, Color.MAGENTA, Color.YELLOW, Color.WHITE
+    };
+    private final static char[] PER_DIVISION = " Hz/div".toCharArray();
+
+    private final Paint[] paints = new Paint[CHANNEL_COLORS.length];
+    private final Paint gridPaint = new Paint();
+    private final Paint textPaint = new Paint();
+
+    private int channels = 0, bins = 0;
+    private float[] pts = new float[0];
+    private float[] levels = new float[0];
+
+    // plot area of the spectrum
+    private float left, top, right, bottom;
+    private boolean spectrogramOn = false;
+
+    private float nyquist = 0;
+    private float freqStep = 0;
+    private final float[] freqLines = new float[4 * MAX_FREQ_LINES];
+    private int freqLineCount = 0;
+    private final char[] label = new char[32];
+    private int labelLength = 0;
+
+    // dB grid, rendered once per size change
+    private Bitmap gridLayer;
+
+    private Bitmap spectrogram;
+    private int[] column = new int[0];
+    private int nextColumn = 0;
+    private final int[] palette = new int[256];
+    private final Rect src = new Rect();
+    private final RectF dst = new RectF();
+    private final RectF spectrogramArea = new RectF();
+
+    public SpectrumView(Context context) {
+        this(context, null);
+    }
+
+    public SpectrumView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public SpectrumView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        for (int c = 0; c < paints.length; c++) {
+            paints[c] = new Paint();
+            paints[c].setColor(CHANNEL_COLORS[c]);
+            paints[c].setStrokeWidth(2);
+        }
+        gridPaint.setColor(Color.argb(75, 255, 255, 255));
+        gridPaint.setStrokeWidth(1);
+        textPaint.setColor(Color.WHITE);
+        textPaint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, TEXT_SP,
+                context.getResources().getDisplayMetrics()));
+        textPaint.setAntiAlias(true);
+        // from quiet to loud, interpolated between the stops
+        int segments = PALETTE_STOPS.length - 1;
+        for (int i = 0; i < palette.length; i++) {
+            float v = i * segments / (float) (palette.length - 1);
+            int s = Math.min((int) v, segments - 1);
+            float t = v - s;
+            int a = PALETTE_STOPS[s], b = PALETTE_STOPS[s + 1];
+            palette[i] = Color.rgb(
+                    (int) (Color.red(a) + (Color.red(b) - Color.red(a)) * t),
+                    (int) (Color.green(a) + (Color.green(b) - Color.green(a)) * t),
+                    (int) (Color.blue(a) + (Color.blue(b) - Color.blue(a)) * t));
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        Log.i(TAG, "onSizeChanged: w=" + w + " h=" + h);
+        layout(w, h);
+    }
+
+    private void layout(int w, int h) {
+        left = 0;
+        right = w;
+        top = textPaint.getTextSize() * 1.5f;
+        bottom = spectrogramOn ? h / 2 : h;
+        spectrogramArea.set(0, bottom, w, h);
+        freqStep = 0;
+        buildGridLayer(w, h);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (gridLayer != null) {
+            gridLayer.recycle();
+            gridLayer = null;
+        }
+        if (spectrogram != null) {
+            spectrogram.recycle();
+            spectrogram = null;
+        }
+    }
+
+    private void buildGridLayer(int w, int h) {
+        if (gridLayer != null) {
+            gridLayer.recycle();
+            gridLayer = null;
+        }
+        if (w <= 0 || h <= 0)
+            return;
+        gridLayer = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(gridLayer);
+        for (float db = MAX_DB; db >= MIN_DB; db -= GRID_DB) {
+            float y = yOf(db);
+            canvas.drawLine(left, y, right, y, gridPaint);
+            String s = (int) db + " dB";
+            canvas.drawText(s, left + 2, y - 2, textPaint);
+        }
+    }
+
+    private float yOf(float db) {
+        return bottom - (db - MIN_DB) / (MAX_DB - MIN_DB) * (bottom - top);
+    }
+
+    /** Shows or hides the spectrogram in the lower half of the view. */
+    public void setSpectrogram(boolean on) {
+        if (on == spectrogramOn)
+            return;
+        spectrogramOn = on;
+        nextColumn = 0;
+        if (spectrogram != null)
+            spectrogram.eraseColor(Color.BLACK);
+        if (getWidth() > 0)
+            layout(getWidth(), getHeight());
+        invalidate();
+    }
+
+    public boolean isSpectrogram() {
+        return spectrogramOn;
+    }
+
+    /**
+     * Takes the magnitudes of the last {@link SpectrumAnalyzer#compute()}
+     * and invalidates.
+     */
+    public void update(SpectrumAnalyzer analyzer) {
+        if (spectrogram == null || analyzer.getChannels() != channels
+                || analyzer.getBins() != bins)
+            allocate(Math.min(analyzer.getChannels(), paints.length), analyzer.getBins());
+        float[] mags = analyzer.getMagnitudes();
+
+        // dB of each bin, and the loudest channel of each bin for the
+        // spectrogram
+        float dx = (right - left) / (bins - 1);
+        for (int k = 0; k < bins; k++)
+            levels[k] = MIN_DB;
+        for (int c = 0; c < channels; c++) {
+            int base = c * bins;
+            int o = c * 4 * (bins - 1);
+            float prev = 0;
+            for (int k = 0; k < bins; k++) {
+                float m = mags[base + k];
+                float db = m > 0 ? (float) (20 * Math.log10(m)) : MIN_DB;
+                db = Math.max(MIN_DB, Math.min(MAX_DB, db));
+                levels[k] = Math.max(levels[k], db);
+                float y = yOf(db);
+                if (k > 0) {
+                    pts[o++] = left + (k - 1) * dx;
+                    pts[o++] = prev;
+                    pts[o++] = left + k * dx;
+                    pts[o++] = y;
+                }
+                prev = y;
+            }
+        }
+        if (spectrogramOn)
+            addColumn();
+
+        float n = analyzer.getSampleRate() / 2;
+        if (Math.abs(n - nyquist) > nyquist * 0.01f || freqStep == 0)
+            layoutFrequencies(n);
+        invalidate();
+    }
+
+    private void allocate(int channels, int bins) {
+        this.channels = channels;
+        this.bins = bins;
+        pts = new float[channels * 4 * (bins - 1)];
+        levels = new float[bins];
+        column = new int[bins];
+        if (spectrogram != null)
+            spectrogram.recycle();
+        spectrogram = Bitmap.createBitmap(SPECTROGRAM_COLUMNS, bins, Bitmap.Config.ARGB_8888);
+        spectrogram.eraseColor(Color.BLACK);
+        nextColumn = 0;
+    }
+
+    private void addColumn() {
+        int last = palette.length - 1;
+        for (int k = 0; k < bins; k++) {
+            int i = (int) ((levels[k] - MIN_DB) / (MAX_DB - MIN_DB) * last);
+            // low frequencies at the bottom
+            column[bins - 1 - k] = palette[i];
+        }
+        spectrogram.setPixels(column, 0, 1, nextColumn, 0, 1, bins);
+        nextColumn = nextColumn + 1 == SPECTROGRAM_COLUMNS ? 0 : nextColumn + 1;
+    }
+
+    // vertical lines every 1, 2 or 5 times a power of ten Hz, about
+    // FREQ_DIVISIONS of them up to the Nyquist rate
+    private void layoutFrequencies(float nyquist) {
+        this.nyquist = nyquist;
+        freqLineCount = 0;
+        labelLength = 0;
+        if (nyquist <= 0)
+            return;
+        float rough = nyquist / FREQ_DIVISIONS;
+        float step = (float) Math.pow(10, Math.floor(Math.log10(rough)));
+        if (step * 5 <= rough)
+            step *= 5;
+        else if (step * 2 <= rough)
+            step *= 2;
+        freqStep = step;
+        float scale = (right - left) / nyquist;
+        for (float f = step; f < nyquist && freqLineCount < MAX_FREQ_LINES; f += step) {
+            int o = 4 * freqLineCount++;
+            freqLines[o] = freqLines[o + 2] = left + f * scale;
+            freqLines[o + 1] = top;
+            freqLines[o + 3] = bottom;
+        }
+        int len = CharFormat.formatFloat(label, 0, step, step < 1 ? 1 : 0);
+        System.arraycopy(PER_DIVISION, 0, label, len, PER_DIVISION.length);
+        labelLength = len + PER_DIVISION.length;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (gridLayer == null)
+            buildGridLayer(getWidth(), getHeight());
+        if (gridLayer != null)
+            canvas.drawBitmap(gridLayer, 0, 0, null);
+        if (bins == 0)
+            return;
+
+        canvas.drawLines(freqLines, 0, 4 * freqLineCount, gridPaint);
+        if (labelLength > 0)
+            canvas.drawText(label, 0, labelLength,
+                    right - textPaint.measureText(label, 0, labelLength) - 2,
+                    textPaint.getTextSize(), textPaint);
+        for (int c = 0; c < channels; c++)
+            canvas.drawLines(pts, c * 4 * (bins - 1), 4 * (bins - 1), paints[c]);
+
+        if (spectrogramOn)
+            drawSpectrogram(canvas);
+    }
+
+    // oldest column on the left: [nextColumn, end) then [0, nextColumn)
+    private void drawSpectrogram(Canvas canvas) {
+        float colWidth = spectrogramArea.width() / SPECTROGRAM_COLUMNS;
+        int older = SPECTROGRAM_COLUMNS - nextColumn;
+        src.set(nextColumn, 0, SPECTROGRAM_COLUMNS, bins);
+        dst.set(spectrogramArea.left, spectrogramArea.top,
+                spectrogramArea.left + older * colWidth, spectrogramArea.bottom);
+        canvas.drawBitmap(spectrogram, src, dst, null);
+        if (nextColumn > 0) {
+            src.set(0, 0, nextColumn, bins);
+            dst.set(dst.right, spectrogramArea.top, spectrogramArea.right, spectrogramArea.bottom);
+            canvas.drawBitmap(spectrogram, src, dst, null);
+        }
+    }
+}
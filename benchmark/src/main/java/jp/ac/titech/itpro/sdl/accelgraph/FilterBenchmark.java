@@ -0,0 +1,87 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-event filtering of a 3-axis sample: the fixed-alpha EMA the
+ * activities used to run inline on three float fields versus
+ * {@link FilterChain}s of one and of several stages, and the
+ * {@link WindowStats} kept over the raw samples.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FilterBenchmark {
+
+    private final static float alpha = 0.75F;
+
+    private float[] input;
+    private int i;
+    private float vx, vy, vz;
+    private FilterChain lowPass, median, biquad, full;
+    private WindowStats stats;
+
+    @Setup
+    public void setUp() {
+        input = Samples.values(3, 0, 0.5f, 1);
+        lowPass = FilterChain.parse(3, "lowpass(0.015)");
+        median = FilterChain.parse(3, "median(9)");
+        biquad = FilterChain.parse(3, "biquad_lowpass(200, 20, 0.7071)");
+        full = FilterChain.parse(3, "median(5), gravity(0.2), highpass(1), lowpass(0.015)");
+        stats = new WindowStats(3, 256, 64);
+    }
+
+    @Benchmark
+    public float inlineEma() {
+        int k = 3 * (i++ & Samples.MASK);
+        vx = alpha * vx + (1 - alpha) * input[k];
+        vy = alpha * vy + (1 - alpha) * input[k + 1];
+        vz = alpha * vz + (1 - alpha) * input[k + 2];
+        return vx + vy + vz;
+    }
+
+    @Benchmark
+    public float lowPassChain() {
+        return run(lowPass);
+    }
+
+    @Benchmark
+    public float medianChain() {
+        return run(median);
+    }
+
+    @Benchmark
+    public float biquadChain() {
+        return run(biquad);
+    }
+
+    @Benchmark
+    public float fourStageChain() {
+        return run(full);
+    }
+
+    @Benchmark
+    public boolean windowStats() {
+        int k = i++;
+        return stats.update(Samples.timestamp(k), input, 3 * (k & Samples.MASK));
+    }
+
+    private float run(FilterChain chain) {
+        int k = i++;
+        return chain.update(Samples.timestamp(k), input, 3 * (k & Samples.MASK))[0];
+    }
+}
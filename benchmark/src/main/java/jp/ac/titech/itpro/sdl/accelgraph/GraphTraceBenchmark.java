@@ -0,0 +1,107 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preparing GraphView's points for one frame of three channels: adding the
+ * frame's values to {@link GraphTrace} versus the per-draw coordinate loop
+ * GraphView used to run for each of its three views, plus one frame of the
+ * long-history envelope.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GraphTraceBenchmark {
+
+    private final static int CHANNELS = 3;
+    private final static int X0 = 2, DW = 5, Y0 = 300, DH = 15;
+
+    /** Samples across the view, i.e. view width / 5. */
+    @Param({"216", "512"})
+    public int ndata;
+
+    private float[] input;
+    private int i;
+
+    private GraphTrace trace;
+
+    private float[][] oldValues;
+    private int oldIdx;
+    private float[] oldPts;
+
+    private MinMaxHistory history;
+    private float[] historyPts;
+
+    @Setup
+    public void setUp() {
+        input = Samples.values(CHANNELS, 0, 0.5f, 8);
+        trace = new GraphTrace(CHANNELS);
+        trace.setGeometry(ndata, X0, DW, Y0, DH);
+
+        oldValues = new float[CHANNELS][ndata];
+        oldPts = new float[4 * ndata];
+
+        int columns = DW * (ndata - 1) + 1;
+        history = new MinMaxHistory(CHANNELS, 10L * 1000 * 1000, 120000);
+        history.setWindow(60L * 1000 * 1000 * 1000, columns);
+        historyPts = new float[4 * columns];
+        for (int k = 0; k < 60 * 200; k++)
+            history.add(Samples.timestamp(k), input, CHANNELS * (k & Samples.MASK));
+    }
+
+    @Benchmark
+    public int graphTrace() {
+        trace.add(input, CHANNELS * (i++ & Samples.MASK));
+        return trace.getOffset(0);
+    }
+
+    @Benchmark
+    public float oldPerDrawLoop() {
+        int k = CHANNELS * (i++ & Samples.MASK);
+        for (int c = 0; c < CHANNELS; c++)
+            oldValues[c][oldIdx] = input[k + c];
+        oldIdx = (oldIdx + 1) % ndata;
+        // the coordinates onDraw computed for each drawLine call
+        float sum = 0;
+        for (int c = 0; c < CHANNELS; c++) {
+            float[] vs = oldValues[c];
+            for (int s = 0; s < ndata - 1; s++) {
+                int j = (oldIdx + s) % ndata;
+                oldPts[4 * s] = X0 + DW * s;
+                oldPts[4 * s + 1] = (int) (Y0 + DH * vs[j]);
+                oldPts[4 * s + 2] = X0 + DW * (s + 1);
+                oldPts[4 * s + 3] = (int) (Y0 + DH * vs[(j + 1) % ndata]);
+            }
+            sum += oldPts[1];
+        }
+        return sum;
+    }
+
+    /** Four samples (a 60 Hz frame at 200+ Hz) and one envelope per channel. */
+    @Benchmark
+    public int historyFrame() {
+        for (int s = 0; s < 4; s++) {
+            int j = 60 * 200 + i++;
+            history.add(Samples.timestamp(j), input, CHANNELS * (j & Samples.MASK));
+        }
+        int n = 0;
+        for (int c = 0; c < CHANNELS; c++)
+            n += history.fillPoints(c, historyPts, X0, 1, Y0, DH);
+        return n;
+    }
+}
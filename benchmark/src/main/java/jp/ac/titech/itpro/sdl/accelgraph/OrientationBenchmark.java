@@ -0,0 +1,80 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-event attitude updates of the three orientation sources. The
+ * SensorManager baseline needs a device and lives in the app's
+ * OrientationFusionBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OrientationBenchmark {
+
+    private float[] accel, magnetic, gyro, rotation;
+    private int i;
+    private OrientationFusion fusion;
+    private MadgwickFilter madgwick;
+    private final float[] q = new float[4];
+
+    @Setup
+    public void setUp() {
+        accel = Samples.values(3, 3, 0.2f, 4);
+        magnetic = Samples.values(3, -20, 1, 5);
+        gyro = Samples.values(3, 0, 0.05f, 6);
+        rotation = Samples.values(3, 0, 0.01f, 7);
+        fusion = new OrientationFusion();
+        fusion.updateAccel(accel, 0);
+        fusion.updateMagnetic(magnetic, 0);
+        madgwick = new MadgwickFilter();
+        madgwick.setQuaternion(fusion.getQuaternion(), 0);
+        madgwick.setAccel(accel, 0);
+        madgwick.setMagnetic(magnetic, 0);
+    }
+
+    /** One accelerometer and one magnetometer event. */
+    @Benchmark
+    public float accelMagnetic() {
+        int k = 3 * (i++ & Samples.MASK);
+        fusion.updateAccel(accel, k);
+        fusion.updateMagnetic(magnetic, k);
+        return fusion.getAzimuth();
+    }
+
+    @Benchmark
+    public float rotationVector() {
+        fusion.updateRotationVector(rotation, 3 * (i++ & Samples.MASK));
+        return fusion.getAzimuth();
+    }
+
+    /** One gyroscope event and the conversion to azimuth/pitch/roll. */
+    @Benchmark
+    public float madgwick() {
+        int j = i++;
+        int k = 3 * (j & Samples.MASK);
+        if ((j & 3) == 0) {
+            // accelerometer and magnetometer at a quarter of the gyro rate
+            madgwick.setAccel(accel, k);
+            madgwick.setMagnetic(magnetic, k);
+        }
+        madgwick.updateGyro(Samples.timestamp(j), gyro, k);
+        madgwick.getQuaternion(q, 0);
+        fusion.updateQuaternion(q, 0);
+        return fusion.getAzimuth();
+    }
+}
@@ -0,0 +1,87 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording one 3-axis sample: {@link RecordingWriter} with
+ * compressed and with raw blocks versus the PrintWriter text path the
+ * activities used to run, which concatenated a line per sample and flushed
+ * it. Both write to the null device, so the
+ * numbers cover encoding and system calls but not storage.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RecordingBenchmark {
+
+    private final static File NULL_DEVICE = new File("/dev/null");
+
+    private float[] input;
+    private long i;
+    private long startTime;
+    private RecordingWriter recordingWriter, rawRecordingWriter;
+    private PrintWriter printWriter;
+
+    @Setup
+    public void setUp() throws IOException {
+        input = Samples.values(3, 0, 0.5f, 3);
+        RecordingHeader header = new RecordingHeader(new SensorInfo[]{
+                new SensorInfo(1, "accel", "bench", 0.01f, 20, 3)
+        }, Samples.timestamp(0), System.currentTimeMillis());
+        recordingWriter = new RecordingWriter(NULL_DEVICE, header);
+        rawRecordingWriter = new RecordingWriter(NULL_DEVICE, header, RecordingFormat.DEFAULT_BLOCK_SIZE,
+                RecordingWriter.DEFAULT_BATCH_BYTES, false);
+        printWriter = new PrintWriter(new OutputStreamWriter(new FileOutputStream(NULL_DEVICE, false), "UTF-8"));
+        startTime = System.currentTimeMillis();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        recordingWriter.close();
+        rawRecordingWriter.close();
+        printWriter.close();
+    }
+
+    @Benchmark
+    public long recordingWriter() throws IOException {
+        long k = i++;
+        recordingWriter.append(0, Samples.timestamp(k), input, 3 * (int) (k & Samples.MASK));
+        return recordingWriter.getSampleCount();
+    }
+
+    @Benchmark
+    public long rawRecordingWriter() throws IOException {
+        long k = i++;
+        rawRecordingWriter.append(0, Samples.timestamp(k), input, 3 * (int) (k & Samples.MASK));
+        return rawRecordingWriter.getSampleCount();
+    }
+
+    @Benchmark
+    public void printWriter() {
+        int k = 3 * (int) (i++ & Samples.MASK);
+        Long now = System.currentTimeMillis() - startTime;
+        String str = now/1000+"."+now%1000 + ": " + input[k] + " " + input[k + 1] + " " + input[k + 2];
+        printWriter.println(str);
+        printWriter.flush();
+    }
+}
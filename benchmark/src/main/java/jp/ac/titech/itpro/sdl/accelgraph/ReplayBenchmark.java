@@ -0,0 +1,103 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end throughput: a recording replayed at {@link ReplaySource#MAX_SPEED}
+ * through a ring buffer into what a screen does with each sample
+ * (smoothing, graph points, long history). Reports the cost per sample.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplayBenchmark {
+
+    private final static int SAMPLES = 100000;
+    private final static int READ_CHUNK = 256;
+
+    private File file;
+    private SampleRingBuffer ring;
+    private SampleRingBuffer.Cursor cursor;
+    private final long[] ts = new long[READ_CHUNK];
+    private final float[] vs = new float[READ_CHUNK * 3];
+    private FilterChain smoother;
+    private GraphTrace trace;
+    private MinMaxHistory history;
+
+    private final SampleSink sink = new SampleSink() {
+        @Override
+        public void onSample(int stream, long timestamp, float[] values, int offset) {
+            ring.put(timestamp, values, offset);
+            if ((ring.getHead() & 63) == 0)
+                drain(); // a frame's worth
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("replay-bench", RecordingFormat.FILE_EXTENSION);
+        RecordingHeader header = new RecordingHeader(new SensorInfo[]{
+                new SensorInfo(1, "accel", "bench", 0.01f, 20, 3)
+        }, Samples.timestamp(0), 0);
+        RecordingWriter writer = new RecordingWriter(file, header);
+        float[] input = Samples.values(3, 0, 0.5f, 9);
+        for (int i = 0; i < SAMPLES; i++)
+            writer.append(0, Samples.timestamp(i), input, 3 * (i & Samples.MASK));
+        writer.close();
+
+        ring = new SampleRingBuffer(3, 8192);
+        cursor = ring.newCursor();
+        smoother = new FilterChain(3, new LowPassStage(3, 15L * 1000 * 1000));
+        trace = new GraphTrace(3);
+        trace.setGeometry(216, 2, 5, 300, 15);
+        history = new MinMaxHistory(3, 10L * 1000 * 1000, 120000);
+        history.setWindow(60L * 1000 * 1000 * 1000, 1076);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    private void drain() {
+        int n;
+        while ((n = cursor.read(ts, vs, READ_CHUNK)) > 0) {
+            for (int i = 0; i < n; i++) {
+                smoother.update(ts[i], vs, 3 * i);
+                history.add(ts[i], vs, 3 * i);
+            }
+            trace.add(smoother.getValues(), 0);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long replay() throws IOException {
+        ReplaySource replay = new ReplaySource(file);
+        replay.setSpeed(ReplaySource.MAX_SPEED);
+        replay.addSink(sink);
+        replay.run();
+        drain();
+        if (replay.getError() != null)
+            throw replay.getError();
+        return replay.getReplayed();
+    }
+}
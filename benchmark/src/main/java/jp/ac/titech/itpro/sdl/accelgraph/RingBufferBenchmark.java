@@ -0,0 +1,75 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SampleRingBuffer} insert alone, and insert followed by the
+ * per-frame batch read a screen does. The batch benchmark reports the cost
+ * per sample.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RingBufferBenchmark {
+
+    private final static int CAPACITY = 8192;
+    private final static int BATCH = 64; // ~ samples per frame at high rates
+    private final static int READ_CHUNK = 256;
+
+    private float[] input;
+    private final float[] event = new float[3];
+    private long i;
+    private SampleRingBuffer ring;
+    private SampleRingBuffer.Cursor cursor;
+    private final long[] ts = new long[READ_CHUNK];
+    private final float[] vs = new float[READ_CHUNK * 3];
+
+    @Setup
+    public void setUp() {
+        input = Samples.values(3, 0, 0.5f, 2);
+        ring = new SampleRingBuffer(3, CAPACITY);
+        cursor = ring.newCursor();
+    }
+
+    private void putOne() {
+        int k = 3 * (int) (i & Samples.MASK);
+        // like SensorEvent.values, the event array is reused by the caller
+        event[0] = input[k];
+        event[1] = input[k + 1];
+        event[2] = input[k + 2];
+        ring.put(Samples.timestamp(i++), event);
+    }
+
+    @Benchmark
+    public long put() {
+        putOne();
+        return ring.getHead();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public float putThenRead() {
+        for (int b = 0; b < BATCH; b++)
+            putOne();
+        float sum = 0;
+        int n;
+        while ((n = cursor.read(ts, vs, READ_CHUNK)) > 0)
+            sum += vs[3 * (n - 1)];
+        return sum;
+    }
+}
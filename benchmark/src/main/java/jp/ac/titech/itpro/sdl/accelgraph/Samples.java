@@ -0,0 +1,35 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import java.util.Random;
+
+/**
+ * Synthetic sensor input shared by the benchmarks: a fixed pseudo-random
+ * walk, so every run sees the same data.
+ */
+final class Samples {
+
+    static final int COUNT = 4096; // power of 2, index with & MASK
+    static final int MASK = COUNT - 1;
+    static final long PERIOD_NS = 5L * 1000 * 1000; // 200 Hz
+
+    private Samples() {
+    }
+
+    /** {@code COUNT} samples of {@code channels} interleaved values. */
+    static float[] values(int channels, float base, float noise, long seed) {
+        Random rnd = new Random(seed);
+        float[] vs = new float[COUNT * channels];
+        for (int c = 0; c < channels; c++) {
+            float v = base;
+            for (int i = 0; i < COUNT; i++) {
+                v += (rnd.nextFloat() - 0.5f) * noise;
+                vs[i * channels + c] = v;
+            }
+        }
+        return vs;
+    }
+
+    static long timestamp(long i) {
+        return 1000000000L + i * PERIOD_NS;
+    }
+}
@@ -0,0 +1,68 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The spectrum screen's work per frame: one 1024-point {@link RealFft} and
+ * a full {@link SpectrumAnalyzer} frame, the samples that arrived since the
+ * last frame (some 7 at 400 Hz and 60 fps) plus 1024-point transforms of
+ * all three axes. A frame at 60 fps has 16.7 ms.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SpectrumBenchmark {
+
+    private final static int SIZE = 1024;
+    private final static int SAMPLES_PER_FRAME = 7;
+
+    private float[] input;
+    private float[] work;
+    private int i;
+    private RealFft fft;
+    private SpectrumAnalyzer analyzer;
+
+    @Setup
+    public void setUp() {
+        input = Samples.values(3, 0, 0.5f, 1);
+        work = new float[SIZE];
+        fft = new RealFft(SIZE);
+        analyzer = new SpectrumAnalyzer(3, SIZE);
+        for (int k = 0; k < SIZE; k++)
+            add();
+    }
+
+    @Benchmark
+    public float fft1024() {
+        System.arraycopy(input, (i++ & 3) * SIZE, work, 0, SIZE);
+        fft.forward(work);
+        return work[1];
+    }
+
+    @Benchmark
+    public float analyzerFrame() {
+        for (int k = 0; k < SAMPLES_PER_FRAME; k++)
+            add();
+        analyzer.compute();
+        return analyzer.getMagnitudes()[1];
+    }
+
+    private void add() {
+        int k = i++;
+        analyzer.add(Samples.timestamp(k), input, 3 * (k & Samples.MASK));
+    }
+}
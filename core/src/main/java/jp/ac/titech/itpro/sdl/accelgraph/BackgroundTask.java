@@ -0,0 +1,54 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a task on a thread of its own whenever it is requested, so that the
+ * producer thread can have file work done without waiting for it.
+ * Requesting never blocks nor allocates; requests made while the task runs
+ * make it run once more, and several of them run it only once.
+ */
+public class BackgroundTask implements Runnable {
+
+    private final Runnable task;
+    private final Thread thread;
+    private final AtomicBoolean requested = new AtomicBoolean(false);
+    private volatile boolean stopping = false;
+
+    public BackgroundTask(String name, Runnable task) {
+        this.task = task;
+        this.thread = new Thread(this, name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /** Has the task run soon. Any thread. */
+    public void request() {
+        requested.set(true);
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Lets the thread end once it has served the requests made so far. Any
+     * thread, the task itself included.
+     */
+    public void stop() {
+        stopping = true;
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            boolean done = stopping;
+            while (requested.getAndSet(false))
+                task.run();
+            if (done)
+                return;
+            LockSupport.park(this);
+        }
+    }
+}
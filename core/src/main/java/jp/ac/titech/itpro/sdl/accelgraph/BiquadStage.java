@@ -0,0 +1,92 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Second-order IIR section in transposed direct form II. The coefficients
+ * assume a fixed sample rate, so the factories take the rate the sensor
+ * actually runs at. The state starts settled on the first sample, so there
+ * is no start-up transient.
+ */
+public class BiquadStage implements FilterStage {
+
+    private final int channels;
+    private final float b0, b1, b2, a1, a2;
+    private final float[] z1, z2;
+    private boolean started = false;
+
+    /** Coefficients normalised so that {@code a0 = 1}. */
+    public BiquadStage(int channels, float b0, float b1, float b2, float a1, float a2) {
+        if (channels <= 0)
+            throw new IllegalArgumentException("channels must be positive: " + channels);
+        this.channels = channels;
+        this.b0 = b0;
+        this.b1 = b1;
+        this.b2 = b2;
+        this.a1 = a1;
+        this.a2 = a2;
+        this.z1 = new float[channels];
+        this.z2 = new float[channels];
+    }
+
+    /** Butterworth-like low-pass for {@code q = 0.7071}. */
+    public static BiquadStage lowPass(int channels, double sampleHz, double cutoffHz, double q) {
+        double w0 = omega(sampleHz, cutoffHz);
+        double cos = Math.cos(w0), alpha = Math.sin(w0) / (2 * q);
+        return normalized(channels, (1 - cos) / 2, 1 - cos, (1 - cos) / 2, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    public static BiquadStage highPass(int channels, double sampleHz, double cutoffHz, double q) {
+        double w0 = omega(sampleHz, cutoffHz);
+        double cos = Math.cos(w0), alpha = Math.sin(w0) / (2 * q);
+        return normalized(channels, (1 + cos) / 2, -(1 + cos), (1 + cos) / 2, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    /** Band-pass with 0 dB gain at {@code centerHz}. */
+    public static BiquadStage bandPass(int channels, double sampleHz, double centerHz, double q) {
+        double w0 = omega(sampleHz, centerHz);
+        double cos = Math.cos(w0), alpha = Math.sin(w0) / (2 * q);
+        return normalized(channels, alpha, 0, -alpha, 1 + alpha, -2 * cos, 1 - alpha);
+    }
+
+    private static double omega(double sampleHz, double hz) {
+        if (sampleHz <= 0 || hz <= 0 || hz >= sampleHz / 2)
+            throw new IllegalArgumentException("need 0 < " + hz + " Hz < " + sampleHz + " / 2 Hz");
+        return 2 * Math.PI * hz / sampleHz;
+    }
+
+    private static BiquadStage normalized(int channels, double b0, double b1, double b2,
+                                          double a0, double a1, double a2) {
+        return new BiquadStage(channels, (float) (b0 / a0), (float) (b1 / a0), (float) (b2 / a0),
+                (float) (a1 / a0), (float) (a2 / a0));
+    }
+
+    @Override
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public void process(long timestamp, float[] v) {
+        if (!started) {
+            // settle on the first value as if it had always been there
+            float gain = (b0 + b1 + b2) / (1 + a1 + a2);
+            for (int c = 0; c < channels; c++) {
+                float x = v[c], y = gain * x;
+                z1[c] = y - b0 * x;
+                z2[c] = b2 * x - a2 * y;
+            }
+            started = true;
+        }
+        for (int c = 0; c < channels; c++) {
+            float x = v[c];
+            float y = b0 * x + z1[c];
+            z1[c] = b1 * x - a1 * y + z2[c];
+            z2[c] = b2 * x - a2 * y;
+            v[c] = y;
+        }
+    }
+
+    @Override
+    public void reset() {
+        started = false;
+    }
+}
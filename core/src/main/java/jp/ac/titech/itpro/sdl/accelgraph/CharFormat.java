@@ -0,0 +1,81 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Formats numbers into a caller-supplied char array without allocating.
+ */
+public final class CharFormat {
+
+    private final static long[] POW10 = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+
+    private CharFormat() {
+    }
+
+    /**
+     * Writes {@code v} in decimal at {@code buf[off]} and returns the index
+     * just past the last char written.
+     */
+    public static int formatLong(char[] buf, int off, long v) {
+        if (v == Long.MIN_VALUE) {
+            // cannot be negated; not a value we display anyway
+            return formatLong(buf, off, Long.MIN_VALUE + 1);
+        }
+        if (v < 0) {
+            buf[off++] = '-';
+            v = -v;
+        }
+        int start = off;
+        do {
+            buf[off++] = (char) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        reverse(buf, start, off - 1);
+        return off;
+    }
+
+    /**
+     * Writes {@code v} with exactly {@code decimals} (0..9) digits after the
+     * decimal point, rounded half up, and returns the index just past the
+     * last char written. NaN and infinities are written as in
+     * {@link Float#toString(float)}.
+     */
+    public static int formatFloat(char[] buf, int off, float v, int decimals) {
+        if (Float.isNaN(v))
+            return put(buf, off, "NaN");
+        if (Float.isInfinite(v))
+            return put(buf, off, v > 0 ? "Infinity" : "-Infinity");
+        double d = v;
+        if (d < 0) {
+            buf[off++] = '-';
+            d = -d;
+        }
+        long scale = POW10[decimals];
+        long scaled = (long) (d * scale + 0.5);
+        off = formatLong(buf, off, scaled / scale);
+        if (decimals > 0) {
+            buf[off++] = '.';
+            long frac = scaled % scale;
+            for (int i = decimals - 1; i >= 0; i--) {
+                buf[off + i] = (char) ('0' + (frac % 10));
+                frac /= 10;
+            }
+            off += decimals;
+        }
+        return off;
+    }
+
+    private static int put(char[] buf, int off, String s) {
+        int n = s.length();
+        s.getChars(0, n, buf, off);
+        return off + n;
+    }
+
+    private static void reverse(char[] buf, int i, int j) {
+        while (i < j) {
+            char t = buf[i];
+            buf[i++] = buf[j];
+            buf[j--] = t;
+        }
+    }
+}
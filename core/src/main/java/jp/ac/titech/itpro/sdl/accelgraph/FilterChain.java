@@ -0,0 +1,153 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A sequence of {@link FilterStage}s run over every sample of a stream. The
+ * sample is copied once into the chain's output array and each stage
+ * filters all channels of it in place, so updating does not allocate.
+ * A chain without stages passes the samples through.
+ * <p>
+ * Chains can be described by a spec such as
+ * {@code "median(5), lowpass(0.015)"}, see {@link #parse(int, String)}.
+ */
+public class FilterChain {
+
+    private final int channels;
+    private final FilterStage[] stages;
+    private final float[] values;
+
+    public FilterChain(int channels, FilterStage... stages) {
+        if (channels <= 0)
+            throw new IllegalArgumentException("channels must be positive: " + channels);
+        for (FilterStage stage : stages)
+            if (stage.getChannels() != channels)
+                throw new IllegalArgumentException("stage has " + stage.getChannels()
+                        + " channels, chain has " + channels);
+        this.channels = channels;
+        this.stages = stages.clone();
+        this.values = new float[channels];
+    }
+
+    /**
+     * Builds a chain from a comma separated list of stages, applied left to
+     * right. Times are in seconds, frequencies in Hz:
+     * <pre>
+     *   lowpass(tau)                 first-order low-pass
+     *   highpass(tau)                first-order high-pass
+     *   gravity(tau)                 subtracts a low-passed gravity estimate
+     *   median(window)               moving median over window samples
+     *   biquad_lowpass(rate, f, q)   second-order sections for a sensor
+     *   biquad_highpass(rate, f, q)  running at rate Hz
+     *   biquad_bandpass(rate, f, q)
+     * </pre>
+     * An empty spec gives a pass-through chain.
+     *
+     * @throws IllegalArgumentException if the spec cannot be parsed
+     */
+    public static FilterChain parse(int channels, String spec) {
+        List<FilterStage> stages = new ArrayList<>();
+        String rest = spec.trim();
+        while (!rest.isEmpty()) {
+            int open = rest.indexOf('(');
+            int close = rest.indexOf(')');
+            if (open <= 0 || close < open)
+                throw new IllegalArgumentException("bad filter spec: " + spec);
+            String name = rest.substring(0, open).trim().toLowerCase(Locale.US);
+            String[] args = rest.substring(open + 1, close).split(",");
+            double[] a = new double[args.length];
+            for (int i = 0; i < args.length; i++) {
+                try {
+                    a[i] = Double.parseDouble(args[i].trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("bad argument in " + name + ": " + args[i]);
+                }
+            }
+            stages.add(stage(channels, name, a));
+            rest = rest.substring(close + 1).trim();
+            if (rest.startsWith(","))
+                rest = rest.substring(1).trim();
+            else if (!rest.isEmpty())
+                throw new IllegalArgumentException("bad filter spec: " + spec);
+        }
+        return new FilterChain(channels, stages.toArray(new FilterStage[stages.size()]));
+    }
+
+    private static FilterStage stage(int channels, String name, double[] a) {
+        switch (name) {
+        case "lowpass":
+            checkArgs(name, a, 1);
+            return new LowPassStage(channels, nanos(a[0]));
+        case "highpass":
+            checkArgs(name, a, 1);
+            return new HighPassStage(channels, nanos(a[0]));
+        case "gravity":
+            checkArgs(name, a, 1);
+            return new GravityRemovalStage(channels, nanos(a[0]));
+        case "median":
+            checkArgs(name, a, 1);
+            return new MedianStage(channels, (int) a[0]);
+        case "biquad_lowpass":
+            checkArgs(name, a, 3);
+            return BiquadStage.lowPass(channels, a[0], a[1], a[2]);
+        case "biquad_highpass":
+            checkArgs(name, a, 3);
+            return BiquadStage.highPass(channels, a[0], a[1], a[2]);
+        case "biquad_bandpass":
+            checkArgs(name, a, 3);
+            return BiquadStage.bandPass(channels, a[0], a[1], a[2]);
+        default:
+            throw new IllegalArgumentException("unknown filter: " + name);
+        }
+    }
+
+    private static void checkArgs(String name, double[] a, int n) {
+        if (a.length != n)
+            throw new IllegalArgumentException(name + " takes " + n + " argument(s)");
+    }
+
+    private static long nanos(double seconds) {
+        return Math.round(seconds * 1e9);
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getStageCount() {
+        return stages.length;
+    }
+
+    public FilterStage getStage(int i) {
+        return stages[i];
+    }
+
+    public void reset() {
+        for (FilterStage stage : stages)
+            stage.reset();
+    }
+
+    /**
+     * Runs one sample, whose values start at {@code vals[offset]}, through
+     * all stages.
+     *
+     * @return the output, see {@link #getValues()}
+     */
+    public float[] update(long timestamp, float[] vals, int offset) {
+        System.arraycopy(vals, offset, values, 0, channels);
+        for (FilterStage stage : stages)
+            stage.process(timestamp, values);
+        return values;
+    }
+
+    public float get(int channel) {
+        return values[channel];
+    }
+
+    /** Output for the latest sample. Do not modify. */
+    public float[] getValues() {
+        return values;
+    }
+}
@@ -0,0 +1,21 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * One stage of a {@link FilterChain}. A stage works on a fixed number of
+ * channels, keeps its state in preallocated arrays and must not allocate
+ * while processing.
+ */
+public interface FilterStage {
+
+    int getChannels();
+
+    /**
+     * Filters one sample in place: {@code v[0]} to {@code v[channels - 1]}
+     * hold the input and receive the output. Timestamps are in ns and never
+     * decrease.
+     */
+    void process(long timestamp, float[] v);
+
+    /** Forgets all history; the next sample starts afresh. */
+    void reset();
+}
@@ -0,0 +1,134 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Keeps the last {@code n} values of each channel of a graph as
+ * ready-to-draw line lists for {@code Canvas.drawLines}.
+ * <p>
+ * All channels share one values array and one points array, each laid out
+ * channel after channel. Every value is stored twice, at virtual positions
+ * {@code k} and {@code k + n}, in a list of {@code 2n - 1} segments whose
+ * x coordinates never change. The newest {@code n} values of a channel are
+ * therefore always the contiguous run of segments starting at
+ * {@link #getOffset(int)}, and drawing them only needs a translation by
+ * {@link #getTranslateX()}. Adding a value touches four floats per channel
+ * regardless of {@code n}.
+ */
+public class GraphTrace {
+
+    private final int channels;
+    private int n = 0;
+    private float[] values = new float[0];
+    private float[] pts = new float[0];
+    private int idx = 0;
+    private float dx, y0, dy;
+
+    public GraphTrace() {
+        this(1);
+    }
+
+    public GraphTrace(int channels) {
+        if (channels <= 0)
+            throw new IllegalArgumentException("channels must be positive: " + channels);
+        this.channels = channels;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Lays out {@code n} samples from {@code x0} in steps of {@code dx},
+     * with value {@code v} drawn at {@code y0 + dy * v}. Keeps as many of
+     * the latest values as fit. Allocates only when {@code n} changes.
+     */
+    public void setGeometry(int n, float x0, float dx, float y0, float dy) {
+        if (n < 2)
+            n = 2;
+        float[] old = values;
+        int oldN = this.n;
+        int oldIdx = idx;
+        if (n != oldN) {
+            values = new float[channels * n];
+            int keep = Math.min(n, oldN);
+            for (int c = 0; c < channels; c++)
+                for (int i = 0; i < keep; i++)
+                    values[c * n + n - keep + i] = old[c * oldN + (oldIdx + oldN - keep + i) % oldN];
+            idx = 0;
+        }
+        int stride = 4 * (2 * n - 1);
+        if (pts.length < channels * stride)
+            pts = new float[channels * stride];
+        this.n = n;
+        this.dx = dx;
+        this.y0 = y0;
+        this.dy = dy;
+
+        for (int c = 0; c < channels; c++) {
+            int base = c * stride;
+            for (int k = 0; k < 2 * n - 1; k++) {
+                pts[base + 4 * k] = x0 + dx * k;
+                pts[base + 4 * k + 2] = x0 + dx * (k + 1);
+            }
+            for (int s = 0; s < n; s++)
+                putY(base, s, y0 + dy * values[c * n + s]);
+        }
+    }
+
+    public int size() {
+        return n;
+    }
+
+    /** Adds one value to a single-channel trace. */
+    public void add(float v) {
+        int s = idx;
+        values[s] = v;
+        putY(0, s, y0 + dy * v);
+        idx = s + 1 == n ? 0 : s + 1;
+    }
+
+    /** Adds one value per channel, starting at {@code vals[offset]}. */
+    public void add(float[] vals, int offset) {
+        int s = idx;
+        int stride = 4 * (2 * n - 1);
+        for (int c = 0; c < channels; c++) {
+            float v = vals[offset + c];
+            values[c * n + s] = v;
+            putY(c * stride, s, y0 + dy * v);
+        }
+        idx = s + 1 == n ? 0 : s + 1;
+    }
+
+    private void putY(int base, int s, float y) {
+        int k = s;
+        if (k > 0)
+            pts[base + 4 * (k - 1) + 3] = y;
+        pts[base + 4 * k + 1] = y;
+        k = s + n;
+        pts[base + 4 * (k - 1) + 3] = y;
+        if (k < 2 * n - 1)
+            pts[base + 4 * k + 1] = y;
+    }
+
+    /** Line lists of all channels to pass to {@code drawLines}. */
+    public float[] getPoints() {
+        return pts;
+    }
+
+    /**
+     * Offset into {@link #getPoints()} of the oldest visible segment of
+     * channel {@code c}.
+     */
+    public int getOffset(int c) {
+        return c * 4 * (2 * n - 1) + 4 * idx;
+    }
+
+    /** Number of floats to draw from {@link #getOffset(int)}. */
+    public int getCount() {
+        return 4 * (n - 1);
+    }
+
+    /** Horizontal translation that moves the oldest sample to {@code x0}. */
+    public float getTranslateX() {
+        return -dx * idx;
+    }
+}
@@ -0,0 +1,60 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Linear acceleration from accelerometer samples: tracks gravity with a
+ * time-constant low-pass and subtracts it. The estimate is available from
+ * {@link #getGravity()}.
+ */
+public class GravityRemovalStage implements FilterStage {
+
+    public final static long DEFAULT_TIME_CONSTANT_NS = 200L * 1000 * 1000;
+
+    private final int channels;
+    private final float tauNs;
+    private final float[] gravity;
+    private long last = Long.MIN_VALUE;
+
+    public GravityRemovalStage(int channels) {
+        this(channels, DEFAULT_TIME_CONSTANT_NS);
+    }
+
+    public GravityRemovalStage(int channels, long timeConstantNs) {
+        if (channels <= 0)
+            throw new IllegalArgumentException("channels must be positive: " + channels);
+        if (timeConstantNs <= 0)
+            throw new IllegalArgumentException("time constant must be positive: " + timeConstantNs);
+        this.channels = channels;
+        this.tauNs = timeConstantNs;
+        this.gravity = new float[channels];
+    }
+
+    @Override
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public void process(long timestamp, float[] v) {
+        if (last == Long.MIN_VALUE) {
+            System.arraycopy(v, 0, gravity, 0, channels);
+        } else {
+            float dt = timestamp - last;
+            float a = dt <= 0 ? 0 : dt / (tauNs + dt);
+            for (int c = 0; c < channels; c++)
+                gravity[c] += a * (v[c] - gravity[c]);
+        }
+        for (int c = 0; c < channels; c++)
+            v[c] -= gravity[c];
+        last = timestamp;
+    }
+
+    /** Current gravity estimate. Do not modify. */
+    public float[] getGravity() {
+        return gravity;
+    }
+
+    @Override
+    public void reset() {
+        last = Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,56 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * First-order high-pass with a time constant,
+ * {@code y = a * (y + x - xPrev)} with {@code a = tau / (tau + dt)} from the
+ * actual interval between samples. Starts at 0.
+ */
+public class HighPassStage implements FilterStage {
+
+    private final int channels;
+    private final float tauNs;
+    private final float[] x, y;
+    private long last = Long.MIN_VALUE;
+
+    public HighPassStage(int channels, long timeConstantNs) {
+        if (channels <= 0)
+            throw new IllegalArgumentException("channels must be positive: " + channels);
+        if (timeConstantNs <= 0)
+            throw new IllegalArgumentException("time constant must be positive: " + timeConstantNs);
+        this.channels = channels;
+        this.tauNs = timeConstantNs;
+        this.x = new float[channels];
+        this.y = new float[channels];
+    }
+
+    @Override
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public void process(long timestamp, float[] v) {
+        if (last == Long.MIN_VALUE) {
+            for (int c = 0; c < channels; c++) {
+                x[c] = v[c];
+                y[c] = 0;
+                v[c] = 0;
+            }
+        } else {
+            float dt = Math.max(0, timestamp - last);
+            float a = tauNs / (tauNs + dt);
+            for (int c = 0; c < channels; c++) {
+                float in = v[c];
+                y[c] = a * (y[c] + in - x[c]);
+                x[c] = in;
+                v[c] = y[c];
+            }
+        }
+        last = timestamp;
+    }
+
+    @Override
+    public void reset() {
+        last = Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,101 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory histogram of durations in ns, for watching intervals and
+ * latencies of the sample pipeline without storing the samples.
+ * <p>
+ * Values below 8 get a bucket each; above that every power of two is split
+ * into 8 buckets, so a reported percentile is at most 12.5% above the true
+ * value while the whole range of a long fits in under 500 buckets. The
+ * maximum is kept exactly.
+ * <p>
+ * One thread records; any thread may read the percentiles meanwhile. A read
+ * that races with recording may be off by the samples in flight.
+ */
+public class LatencyHistogram {
+
+    private final static int SUB_BITS = 3;
+    private final static int SUB_BUCKETS = 1 << SUB_BITS;
+    final static int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private volatile long count = 0;
+    private volatile long max = 0;
+
+    /** Adds one duration; negative values count as 0. Never allocates. */
+    public void record(long ns) {
+        if (ns < 0)
+            ns = 0;
+        int i = bucketOf(ns);
+        // single writer, so a plain read-modify-write is enough
+        counts.lazySet(i, counts.get(i) + 1);
+        if (ns > max)
+            max = ns;
+        count = count + 1;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /** Largest value recorded, 0 if none. */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Smallest bucket bound that at least {@code fraction} (0..1) of the
+     * values do not exceed, capped at the maximum; 0 if nothing was
+     * recorded.
+     */
+    public long getPercentile(double fraction) {
+        long total = count;
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * total);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), max);
+        }
+        return max;
+    }
+
+    /**
+     * Forgets everything recorded. Only from the recording thread, or while
+     * nothing records.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.lazySet(i, 0);
+        max = 0;
+        count = 0;
+    }
+
+    /** Counts, percentiles and maximum as they are now. */
+    public LatencyStats getStats(int stream, int kind) {
+        return new LatencyStats(stream, kind, getCount(),
+                getPercentile(0.5), getPercentile(0.99), getMax());
+    }
+
+    static int bucketOf(long v) {
+        if (v < SUB_BUCKETS)
+            return (int) v;
+        int e = 63 - Long.numberOfLeadingZeros(v); // >= SUB_BITS
+        int sub = (int) (v >>> (e - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (e - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,59 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Summary of a {@link LatencyHistogram}, as stored at the end of a
+ * recording. All durations in ns.
+ */
+public class LatencyStats {
+
+    /** Interval between consecutive event timestamps of a stream. */
+    public final static int KIND_INTERVAL = 0;
+    /** From the sensor callback until the sample was written to the file. */
+    public final static int KIND_DISK = 1;
+
+    private final int stream;
+    private final int kind;
+    private final long count;
+    private final long p50;
+    private final long p99;
+    private final long max;
+
+    public LatencyStats(int stream, int kind, long count, long p50, long p99, long max) {
+        this.stream = stream;
+        this.kind = kind;
+        this.count = count;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    public int getStream() {
+        return stream;
+    }
+
+    public int getKind() {
+        return kind;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "stream " + stream + (kind == KIND_INTERVAL ? " interval" : kind == KIND_DISK ? " disk" : " kind " + kind)
+                + ": n=" + count + " p50=" + p50 + " p99=" + p99 + " max=" + max;
+    }
+}
@@ -0,0 +1,49 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * First-order low-pass with a time constant, {@code y += a * (x - y)} with
+ * {@code a = dt / (tau + dt)} computed from the actual interval between
+ * samples, so the cutoff does not move with the sensor rate.
+ */
+public class LowPassStage implements FilterStage {
+
+    private final int channels;
+    private final float tauNs;
+    private final float[] y;
+    private long last = Long.MIN_VALUE;
+
+    public LowPassStage(int channels, long timeConstantNs) {
+        if (channels <= 0)
+            throw new IllegalArgumentException("channels must be positive: " + channels);
+        if (timeConstantNs < 0)
+            throw new IllegalArgumentException("negative time constant: " + timeConstantNs);
+        this.channels = channels;
+        this.tauNs = timeConstantNs;
+        this.y = new float[channels];
+    }
+
+    @Override
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public void process(long timestamp, float[] v) {
+        if (last == Long.MIN_VALUE) {
+            System.arraycopy(v, 0, y, 0, channels);
+        } else {
+            float dt = timestamp - last;
+            float a = dt <= 0 ? 0 : dt / (tauNs + dt);
+            for (int c = 0; c < channels; c++) {
+                y[c] += a * (v[c] - y[c]);
+                v[c] = y[c];
+            }
+        }
+        last = timestamp;
+    }
+
+    @Override
+    public void reset() {
+        last = Long.MIN_VALUE;
+    }
+}
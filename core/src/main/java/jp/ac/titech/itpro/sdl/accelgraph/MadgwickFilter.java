@@ -0,0 +1,216 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Madgwick's gradient descent AHRS filter: integrates the gyroscope at its
+ * full rate and pulls the result towards the attitude given by the latest
+ * accelerometer and magnetometer samples.
+ * <p>
+ * Internally the filter works in Madgwick's earth frame (x to magnetic
+ * north, z up); quaternions passed in and out are in the world frame of
+ * {@code SensorManager} (x east, y north, z up), as used by
+ * {@link OrientationFusion}. All state is primitive; nothing allocates.
+ */
+public class MadgwickFilter {
+
+    public final static float DEFAULT_BETA = 0.1f;
+    private final static float NS2S = 1e-9f;
+    // longer gaps (e.g. after a pause) are not integrated
+    private final static float MAX_DT = 0.1f;
+    private final static float SQRT_HALF = (float) Math.sqrt(0.5);
+
+    private final float beta;
+
+    // orientation in Madgwick's frame
+    private float q0 = 1, q1 = 0, q2 = 0, q3 = 0;
+    private boolean initialized = false;
+    private long lastTimestamp = 0;
+
+    private float ax, ay, az;
+    private float mx, my, mz;
+    private boolean haveAccel = false, haveMagnetic = false;
+
+    public MadgwickFilter() {
+        this(DEFAULT_BETA);
+    }
+
+    /**
+     * @param beta gain of the accelerometer/magnetometer correction; larger
+     *             follows them faster, smaller trusts the gyroscope more
+     */
+    public MadgwickFilter(float beta) {
+        this.beta = beta;
+    }
+
+    public void reset() {
+        q0 = 1;
+        q1 = q2 = q3 = 0;
+        initialized = false;
+        lastTimestamp = 0;
+        haveAccel = haveMagnetic = false;
+    }
+
+    /** True once a starting attitude has been set. */
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    /**
+     * Sets the attitude, as a world-frame quaternion w, x, y, z starting at
+     * {@code q[off]}, e.g. from {@link OrientationFusion#getQuaternion()}.
+     */
+    public void setQuaternion(float[] q, int off) {
+        float w = q[off], x = q[off + 1], y = q[off + 2], z = q[off + 3];
+        // rotate the world frame by -90 degrees about z
+        q0 = SQRT_HALF * (w + z);
+        q1 = SQRT_HALF * (x + y);
+        q2 = SQRT_HALF * (y - x);
+        q3 = SQRT_HALF * (z - w);
+        initialized = true;
+    }
+
+    /** Writes the attitude as a world-frame quaternion w, x, y, z. */
+    public void getQuaternion(float[] q, int off) {
+        // rotate Madgwick's frame by +90 degrees about z
+        q[off] = SQRT_HALF * (q0 - q3);
+        q[off + 1] = SQRT_HALF * (q1 - q2);
+        q[off + 2] = SQRT_HALF * (q2 + q1);
+        q[off + 3] = SQRT_HALF * (q3 + q0);
+    }
+
+    /** Remembers an accelerometer sample for the next gyroscope update. */
+    public void setAccel(float[] v, int off) {
+        ax = v[off];
+        ay = v[off + 1];
+        az = v[off + 2];
+        haveAccel = ax != 0 || ay != 0 || az != 0;
+    }
+
+    /** Remembers a magnetometer sample for the next gyroscope update. */
+    public void setMagnetic(float[] v, int off) {
+        mx = v[off];
+        my = v[off + 1];
+        mz = v[off + 2];
+        haveMagnetic = mx != 0 || my != 0 || mz != 0;
+    }
+
+    /**
+     * Advances the filter with a gyroscope sample (rad/s) starting at
+     * {@code v[off]}. Returns false if the attitude did not change, i.e. for
+     * the first sample after a reset or a gap.
+     */
+    public boolean updateGyro(long timestamp, float[] v, int off) {
+        long last = lastTimestamp;
+        lastTimestamp = timestamp;
+        if (last == 0)
+            return false;
+        float dt = (timestamp - last) * NS2S;
+        if (dt <= 0 || dt > MAX_DT)
+            return false;
+        if (haveAccel && haveMagnetic)
+            updateMarg(v[off], v[off + 1], v[off + 2], dt);
+        else
+            updateImu(v[off], v[off + 1], v[off + 2], dt);
+        return true;
+    }
+
+    private void updateMarg(float gx, float gy, float gz, float dt) {
+        float qDot0 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+        float qDot1 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+        float qDot2 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+        float qDot3 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+        float n = invSqrt(ax * ax + ay * ay + az * az);
+        float ax = this.ax * n, ay = this.ay * n, az = this.az * n;
+        n = invSqrt(mx * mx + my * my + mz * mz);
+        float mx = this.mx * n, my = this.my * n, mz = this.mz * n;
+
+        float _2q0mx = 2 * q0 * mx, _2q0my = 2 * q0 * my, _2q0mz = 2 * q0 * mz;
+        float _2q1mx = 2 * q1 * mx;
+        float _2q0 = 2 * q0, _2q1 = 2 * q1, _2q2 = 2 * q2, _2q3 = 2 * q3;
+        float _2q0q2 = 2 * q0 * q2, _2q2q3 = 2 * q2 * q3;
+        float q0q0 = q0 * q0, q0q1 = q0 * q1, q0q2 = q0 * q2, q0q3 = q0 * q3;
+        float q1q1 = q1 * q1, q1q2 = q1 * q2, q1q3 = q1 * q3;
+        float q2q2 = q2 * q2, q2q3 = q2 * q3, q3q3 = q3 * q3;
+
+        // earth's magnetic field direction in the earth frame
+        float hx = mx * q0q0 - _2q0my * q3 + _2q0mz * q2 + mx * q1q1 + _2q1 * my * q2
+                + _2q1 * mz * q3 - mx * q2q2 - mx * q3q3;
+        float hy = _2q0mx * q3 + my * q0q0 - _2q0mz * q1 + _2q1mx * q2 - my * q1q1
+                + my * q2q2 + _2q2 * mz * q3 - my * q3q3;
+        float _2bx = (float) Math.sqrt(hx * hx + hy * hy);
+        float _2bz = -_2q0mx * q2 + _2q0my * q1 + mz * q0q0 + _2q1mx * q3 - mz * q1q1
+                + _2q2 * my * q3 - mz * q2q2 + mz * q3q3;
+        float _4bx = 2 * _2bx, _4bz = 2 * _2bz;
+
+        // gradient of the objective function
+        float fax = 2 * q1q3 - _2q0q2 - ax;
+        float fay = 2 * q0q1 + _2q2q3 - ay;
+        float faz = 1 - 2 * q1q1 - 2 * q2q2 - az;
+        float fmx = _2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx;
+        float fmy = _2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my;
+        float fmz = _2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz;
+        float s0 = -_2q2 * fax + _2q1 * fay - _2bz * q2 * fmx
+                + (-_2bx * q3 + _2bz * q1) * fmy + _2bx * q2 * fmz;
+        float s1 = _2q3 * fax + _2q0 * fay - 4 * q1 * faz + _2bz * q3 * fmx
+                + (_2bx * q2 + _2bz * q0) * fmy + (_2bx * q3 - _4bz * q1) * fmz;
+        float s2 = -_2q0 * fax + _2q3 * fay - 4 * q2 * faz + (-_4bx * q2 - _2bz * q0) * fmx
+                + (_2bx * q1 + _2bz * q3) * fmy + (_2bx * q0 - _4bz * q2) * fmz;
+        float s3 = _2q1 * fax + _2q2 * fay + (-_4bx * q3 + _2bz * q1) * fmx
+                + (-_2bx * q0 + _2bz * q2) * fmy + _2bx * q1 * fmz;
+
+        integrate(qDot0, qDot1, qDot2, qDot3, s0, s1, s2, s3, dt);
+    }
+
+    private void updateImu(float gx, float gy, float gz, float dt) {
+        float qDot0 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+        float qDot1 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+        float qDot2 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+        float qDot3 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+        if (!haveAccel) {
+            integrate(qDot0, qDot1, qDot2, qDot3, 0, 0, 0, 0, dt);
+            return;
+        }
+
+        float n = invSqrt(ax * ax + ay * ay + az * az);
+        float ax = this.ax * n, ay = this.ay * n, az = this.az * n;
+
+        float _2q0 = 2 * q0, _2q1 = 2 * q1, _2q2 = 2 * q2, _2q3 = 2 * q3;
+        float _4q0 = 4 * q0, _4q1 = 4 * q1, _4q2 = 4 * q2;
+        float _8q1 = 8 * q1, _8q2 = 8 * q2;
+        float q0q0 = q0 * q0, q1q1 = q1 * q1, q2q2 = q2 * q2, q3q3 = q3 * q3;
+
+        float s0 = _4q0 * q2q2 + _2q2 * ax + _4q0 * q1q1 - _2q1 * ay;
+        float s1 = _4q1 * q3q3 - _2q3 * ax + 4 * q0q0 * q1 - _2q0 * ay - _4q1
+                + _8q1 * q1q1 + _8q1 * q2q2 + _4q1 * az;
+        float s2 = 4 * q0q0 * q2 + _2q0 * ax + _4q2 * q3q3 - _2q3 * ay - _4q2
+                + _8q2 * q1q1 + _8q2 * q2q2 + _4q2 * az;
+        float s3 = 4 * q1q1 * q3 - _2q1 * ax + 4 * q2q2 * q3 - _2q2 * ay;
+
+        integrate(qDot0, qDot1, qDot2, qDot3, s0, s1, s2, s3, dt);
+    }
+
+    private void integrate(float qDot0, float qDot1, float qDot2, float qDot3,
+                           float s0, float s1, float s2, float s3, float dt) {
+        float sn = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+        if (sn > 0) {
+            float k = beta * invSqrt(sn);
+            qDot0 -= k * s0;
+            qDot1 -= k * s1;
+            qDot2 -= k * s2;
+            qDot3 -= k * s3;
+        }
+        q0 += qDot0 * dt;
+        q1 += qDot1 * dt;
+        q2 += qDot2 * dt;
+        q3 += qDot3 * dt;
+        float n = invSqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+        q0 *= n;
+        q1 *= n;
+        q2 *= n;
+        q3 *= n;
+    }
+
+    private static float invSqrt(float x) {
+        return 1 / (float) Math.sqrt(x);
+    }
+}
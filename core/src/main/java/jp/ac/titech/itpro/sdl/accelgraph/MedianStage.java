@@ -0,0 +1,72 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Moving median over the last {@code window} samples of each channel, for
+ * removing spikes. Keeps each window both in arrival order and sorted, so a
+ * sample costs O(window) per channel.
+ */
+public class MedianStage implements FilterStage {
+
+    public final static int MAX_WINDOW = 255;
+
+    private final int channels;
+    private final int window;
+    private final float[] fifo;   // channel after channel, arrival order
+    private final float[] sorted; // channel after channel, ascending
+    private int head = 0;         // next fifo slot
+    private int count = 0;
+
+    public MedianStage(int channels, int window) {
+        if (channels <= 0)
+            throw new IllegalArgumentException("channels must be positive: " + channels);
+        if (window <= 0 || window > MAX_WINDOW)
+            throw new IllegalArgumentException("window must be in 1.." + MAX_WINDOW + ": " + window);
+        this.channels = channels;
+        this.window = window;
+        this.fifo = new float[channels * window];
+        this.sorted = new float[channels * window];
+    }
+
+    @Override
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public void process(long timestamp, float[] v) {
+        boolean full = count == window;
+        for (int c = 0; c < channels; c++) {
+            int base = c * window;
+            float x = v[c];
+            int n = count;
+            if (full) {
+                // drop the oldest value from the sorted window
+                float old = fifo[base + head];
+                int i = 0;
+                while (sorted[base + i] != old && i < n - 1)
+                    i++;
+                System.arraycopy(sorted, base + i + 1, sorted, base + i, n - 1 - i);
+                n--;
+            }
+            int i = n;
+            while (i > 0 && sorted[base + i - 1] > x) {
+                sorted[base + i] = sorted[base + i - 1];
+                i--;
+            }
+            sorted[base + i] = x;
+            n++;
+            fifo[base + head] = x;
+            v[c] = (n & 1) == 1 ? sorted[base + n / 2]
+                    : 0.5f * (sorted[base + n / 2 - 1] + sorted[base + n / 2]);
+        }
+        head = head + 1 == window ? 0 : head + 1;
+        if (!full)
+            count++;
+    }
+
+    @Override
+    public void reset() {
+        head = 0;
+        count = 0;
+    }
+}
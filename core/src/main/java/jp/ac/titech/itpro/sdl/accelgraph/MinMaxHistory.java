@@ -0,0 +1,234 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import java.util.Arrays;
+
+/**
+ * Long history of a multi-channel sample stream, reduced to per-column
+ * min/max envelopes for drawing.
+ * <p>
+ * Every sample is folded into two levels of time buckets as it arrives: a
+ * fine base level of {@code baseNs} buckets that covers the whole history,
+ * and a display level of {@code columns} buckets, one per pixel column,
+ * each spanning a whole number of base buckets. Adding a sample is O(channels)
+ * and preparing a frame is O(columns), however many samples the window
+ * holds. Changing the window rebuilds the display level from the base level
+ * once.
+ */
+public class MinMaxHistory {
+
+    private final int channels;
+    private final long baseNs;
+    private final int baseCapacity;
+
+    // base level, channel after channel; empty buckets hold +inf/-inf
+    private final float[] baseMin, baseMax;
+    private long baseHead = Long.MIN_VALUE; // absolute number of the newest base bucket
+
+    // display level, channel after channel
+    private int columns = 0;
+    private int perColumn = 1; // base buckets per column
+    private float[] colMin = new float[0], colMax = new float[0];
+    private long colHead = Long.MIN_VALUE; // absolute number of the newest column
+
+    public MinMaxHistory(int channels, long baseNs, int baseCapacity) {
+        if (channels <= 0)
+            throw new IllegalArgumentException("channels must be positive: " + channels);
+        if (baseNs <= 0 || baseCapacity <= 0)
+            throw new IllegalArgumentException("baseNs and baseCapacity must be positive");
+        this.channels = channels;
+        this.baseNs = baseNs;
+        this.baseCapacity = baseCapacity;
+        this.baseMin = new float[channels * baseCapacity];
+        this.baseMax = new float[channels * baseCapacity];
+        clear(baseMin, baseMax);
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /** Longest window the base level can cover. */
+    public long getMaxWindowNs() {
+        return baseNs * baseCapacity;
+    }
+
+    /** Time span of one display column. */
+    public long getColumnNs() {
+        return baseNs * perColumn;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Shows the last {@code windowNs} (clamped to what the base level holds)
+     * over {@code columns} columns. Allocates only when {@code columns}
+     * changes.
+     */
+    public void setWindow(long windowNs, int columns) {
+        if (columns <= 0)
+            throw new IllegalArgumentException("columns must be positive: " + columns);
+        int k = (int) Math.max(1, (windowNs + baseNs * columns - 1) / (baseNs * columns));
+        if ((long) k * columns > baseCapacity)
+            k = Math.max(1, baseCapacity / columns);
+        if (columns != this.columns) {
+            colMin = new float[channels * columns];
+            colMax = new float[channels * columns];
+            this.columns = columns;
+        }
+        perColumn = k;
+        rebuildColumns();
+    }
+
+    private void rebuildColumns() {
+        clear(colMin, colMax);
+        if (baseHead == Long.MIN_VALUE) {
+            colHead = Long.MIN_VALUE;
+            return;
+        }
+        colHead = baseHead / perColumn;
+        long first = Math.max((colHead - columns + 1) * perColumn, baseHead - baseCapacity + 1);
+        if (first < 0)
+            first = 0;
+        for (long b = first; b <= baseHead; b++) {
+            int bs = baseSlot(b);
+            int cs = colSlot(b / perColumn);
+            for (int c = 0; c < channels; c++) {
+                int bi = c * baseCapacity + bs;
+                int ci = c * columns + cs;
+                if (baseMin[bi] < colMin[ci]) colMin[ci] = baseMin[bi];
+                if (baseMax[bi] > colMax[ci]) colMax[ci] = baseMax[bi];
+            }
+        }
+    }
+
+    /**
+     * Adds one sample whose {@code channels} values start at
+     * {@code vals[offset]}. Timestamps must not be negative.
+     */
+    public void add(long timestamp, float[] vals, int offset) {
+        long b = timestamp / baseNs;
+        if (baseHead == Long.MIN_VALUE) {
+            baseHead = b;
+            colHead = b / perColumn;
+        } else if (b > baseHead) {
+            advanceBase(b);
+        } else if (b <= baseHead - baseCapacity) {
+            return; // too old to keep
+        }
+        int bs = baseSlot(b);
+        for (int c = 0; c < channels; c++) {
+            float v = vals[offset + c];
+            int bi = c * baseCapacity + bs;
+            if (v < baseMin[bi]) baseMin[bi] = v;
+            if (v > baseMax[bi]) baseMax[bi] = v;
+        }
+        if (columns == 0)
+            return;
+        long col = b / perColumn;
+        if (col > colHead)
+            advanceColumns(col);
+        else if (col <= colHead - columns)
+            return;
+        int cs = colSlot(col);
+        for (int c = 0; c < channels; c++) {
+            float v = vals[offset + c];
+            int ci = c * columns + cs;
+            if (v < colMin[ci]) colMin[ci] = v;
+            if (v > colMax[ci]) colMax[ci] = v;
+        }
+    }
+
+    /**
+     * Forgets every sample, for a stream whose timestamps start over; keeps
+     * the window.
+     */
+    public void reset() {
+        clear(baseMin, baseMax);
+        clear(colMin, colMax);
+        baseHead = Long.MIN_VALUE;
+        colHead = Long.MIN_VALUE;
+    }
+
+    private void advanceBase(long b) {
+        long n = Math.min(b - baseHead, baseCapacity);
+        for (long i = b - n + 1; i <= b; i++) {
+            int bs = baseSlot(i);
+            for (int c = 0; c < channels; c++) {
+                baseMin[c * baseCapacity + bs] = Float.POSITIVE_INFINITY;
+                baseMax[c * baseCapacity + bs] = Float.NEGATIVE_INFINITY;
+            }
+        }
+        baseHead = b;
+    }
+
+    private void advanceColumns(long col) {
+        long n = Math.min(col - colHead, columns);
+        for (long i = col - n + 1; i <= col; i++) {
+            int cs = colSlot(i);
+            for (int c = 0; c < channels; c++) {
+                colMin[c * columns + cs] = Float.POSITIVE_INFINITY;
+                colMax[c * columns + cs] = Float.NEGATIVE_INFINITY;
+            }
+        }
+        colHead = col;
+    }
+
+    /**
+     * Writes the envelope of channel {@code c} as a {@code drawLines} list,
+     * one vertical segment per non-empty column from the oldest (at
+     * {@code x0}) to the newest, with value {@code v} at {@code y0 + dy * v}.
+     * Each segment is stretched to meet its neighbour so the trace stays
+     * connected. {@code pts} needs {@code 4 * columns} floats. Returns the
+     * number of floats written.
+     */
+    public int fillPoints(int c, float[] pts, float x0, float dx, float y0, float dy) {
+        if (colHead == Long.MIN_VALUE || columns == 0)
+            return 0;
+        int k = 0;
+        boolean havePrev = false;
+        float prevMin = 0, prevMax = 0;
+        for (int j = 0; j < columns; j++) {
+            long col = colHead - columns + 1 + j;
+            if (col < 0)
+                continue;
+            int ci = c * columns + colSlot(col);
+            float lo = colMin[ci], hi = colMax[ci];
+            if (lo > hi) {
+                havePrev = false;
+                continue;
+            }
+            float a = lo, b = hi;
+            if (havePrev) {
+                if (prevMax < a) a = prevMax;
+                if (prevMin > b) b = prevMin;
+            }
+            float x = x0 + dx * j;
+            float ya = y0 + dy * a, yb = y0 + dy * b;
+            if (Math.abs(yb - ya) < 1)
+                yb = ya + 1;
+            pts[k++] = x;
+            pts[k++] = ya;
+            pts[k++] = x;
+            pts[k++] = yb;
+            prevMin = lo;
+            prevMax = hi;
+            havePrev = true;
+        }
+        return k;
+    }
+
+    private int baseSlot(long b) {
+        return (int) (b % baseCapacity);
+    }
+
+    private int colSlot(long col) {
+        return (int) (col % columns);
+    }
+
+    private static void clear(float[] min, float[] max) {
+        Arrays.fill(min, Float.POSITIVE_INFINITY);
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+    }
+}
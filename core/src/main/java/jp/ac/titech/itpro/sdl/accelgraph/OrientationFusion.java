@@ -0,0 +1,226 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Device attitude from accelerometer + magnetometer samples or from a
+ * rotation vector sensor, updated in place.
+ * <p>
+ * Follows the conventions of {@code SensorManager}: the rotation matrix maps
+ * device coordinates to world coordinates (East, North, Up), and the
+ * attitude is azimuth, pitch and roll in radians as returned by
+ * {@code getOrientation}. All state lives in preallocated arrays, so no
+ * update allocates.
+ */
+public class OrientationFusion {
+
+    private final static float GRAVITY_EARTH = 9.80665f;
+    // below this the device is taken to be in free fall, as in SensorManager
+    private final static float FREE_FALL_SQ = 0.01f * GRAVITY_EARTH * GRAVITY_EARTH;
+    private final static float MIN_HORIZONTAL = 0.1f;
+
+    private final float[] gravity = new float[3];
+    private final float[] geomagnetic = new float[3];
+    private boolean haveGravity = false, haveGeomagnetic = false;
+
+    private final float[] r = new float[9];
+    private final float[] q = new float[4]; // w, x, y, z
+    private final float[] attitude = new float[3];
+    private boolean valid = false;
+
+    public OrientationFusion() {
+        reset();
+    }
+
+    public void reset() {
+        haveGravity = haveGeomagnetic = false;
+        valid = false;
+        q[0] = 1;
+        q[1] = q[2] = q[3] = 0;
+        r[0] = r[4] = r[8] = 1;
+        r[1] = r[2] = r[3] = r[5] = r[6] = r[7] = 0;
+        attitude[0] = attitude[1] = attitude[2] = 0;
+    }
+
+    /**
+     * Takes an accelerometer sample starting at {@code v[off]}. Returns true
+     * if the attitude was updated.
+     */
+    public boolean updateAccel(float[] v, int off) {
+        gravity[0] = v[off];
+        gravity[1] = v[off + 1];
+        gravity[2] = v[off + 2];
+        haveGravity = true;
+        return haveGeomagnetic && fromGravityAndGeomagnetic();
+    }
+
+    /**
+     * Takes a magnetometer sample starting at {@code v[off]}. Returns true
+     * if the attitude was updated.
+     */
+    public boolean updateMagnetic(float[] v, int off) {
+        geomagnetic[0] = v[off];
+        geomagnetic[1] = v[off + 1];
+        geomagnetic[2] = v[off + 2];
+        haveGeomagnetic = true;
+        return haveGravity && fromGravityAndGeomagnetic();
+    }
+
+    /**
+     * Takes the x, y, z components of a rotation vector (or game rotation
+     * vector) sample starting at {@code v[off]}. The scalar part is derived
+     * from them, so sensors reporting only three values work as well.
+     */
+    public boolean updateRotationVector(float[] v, int off) {
+        float x = v[off], y = v[off + 1], z = v[off + 2];
+        float w2 = 1 - x * x - y * y - z * z;
+        q[0] = w2 > 0 ? (float) Math.sqrt(w2) : 0;
+        q[1] = x;
+        q[2] = y;
+        q[3] = z;
+        matrixFromQuaternion();
+        updateAttitude();
+        valid = true;
+        return true;
+    }
+
+    /**
+     * Takes an attitude computed elsewhere, e.g. by {@link MadgwickFilter},
+     * as a unit quaternion w, x, y, z starting at {@code v[off]}.
+     */
+    public void updateQuaternion(float[] v, int off) {
+        q[0] = v[off];
+        q[1] = v[off + 1];
+        q[2] = v[off + 2];
+        q[3] = v[off + 3];
+        matrixFromQuaternion();
+        updateAttitude();
+        valid = true;
+    }
+
+    /** Same as {@code SensorManager.getRotationMatrix} without inclination. */
+    private boolean fromGravityAndGeomagnetic() {
+        float ax = gravity[0], ay = gravity[1], az = gravity[2];
+        float ex = geomagnetic[0], ey = geomagnetic[1], ez = geomagnetic[2];
+        float normSqA = ax * ax + ay * ay + az * az;
+        if (normSqA < FREE_FALL_SQ)
+            return false;
+        float hx = ey * az - ez * ay;
+        float hy = ez * ax - ex * az;
+        float hz = ex * ay - ey * ax;
+        float normH = (float) Math.sqrt(hx * hx + hy * hy + hz * hz);
+        if (normH < MIN_HORIZONTAL)
+            return false; // in space, or close to the magnetic pole
+        float invH = 1 / normH;
+        hx *= invH;
+        hy *= invH;
+        hz *= invH;
+        float invA = 1 / (float) Math.sqrt(normSqA);
+        ax *= invA;
+        ay *= invA;
+        az *= invA;
+        r[0] = hx;
+        r[1] = hy;
+        r[2] = hz;
+        r[3] = ay * hz - az * hy;
+        r[4] = az * hx - ax * hz;
+        r[5] = ax * hy - ay * hx;
+        r[6] = ax;
+        r[7] = ay;
+        r[8] = az;
+        quaternionFromMatrix();
+        updateAttitude();
+        valid = true;
+        return true;
+    }
+
+    /** Same as {@code SensorManager.getRotationMatrixFromVector}. */
+    private void matrixFromQuaternion() {
+        float q0 = q[0], q1 = q[1], q2 = q[2], q3 = q[3];
+        float sq1 = 2 * q1 * q1, sq2 = 2 * q2 * q2, sq3 = 2 * q3 * q3;
+        float q1q2 = 2 * q1 * q2, q3q0 = 2 * q3 * q0;
+        float q1q3 = 2 * q1 * q3, q2q0 = 2 * q2 * q0;
+        float q2q3 = 2 * q2 * q3, q1q0 = 2 * q1 * q0;
+        r[0] = 1 - sq2 - sq3;
+        r[1] = q1q2 - q3q0;
+        r[2] = q1q3 + q2q0;
+        r[3] = q1q2 + q3q0;
+        r[4] = 1 - sq1 - sq3;
+        r[5] = q2q3 - q1q0;
+        r[6] = q1q3 - q2q0;
+        r[7] = q2q3 + q1q0;
+        r[8] = 1 - sq1 - sq2;
+    }
+
+    private void quaternionFromMatrix() {
+        float trace = r[0] + r[4] + r[8];
+        float w, x, y, z;
+        if (trace > 0) {
+            float s = 2 * (float) Math.sqrt(trace + 1);
+            w = s / 4;
+            x = (r[7] - r[5]) / s;
+            y = (r[2] - r[6]) / s;
+            z = (r[3] - r[1]) / s;
+        } else if (r[0] > r[4] && r[0] > r[8]) {
+            float s = 2 * (float) Math.sqrt(1 + r[0] - r[4] - r[8]);
+            w = (r[7] - r[5]) / s;
+            x = s / 4;
+            y = (r[1] + r[3]) / s;
+            z = (r[2] + r[6]) / s;
+        } else if (r[4] > r[8]) {
+            float s = 2 * (float) Math.sqrt(1 + r[4] - r[0] - r[8]);
+            w = (r[2] - r[6]) / s;
+            x = (r[1] + r[3]) / s;
+            y = s / 4;
+            z = (r[5] + r[7]) / s;
+        } else {
+            float s = 2 * (float) Math.sqrt(1 + r[8] - r[0] - r[4]);
+            w = (r[3] - r[1]) / s;
+            x = (r[2] + r[6]) / s;
+            y = (r[5] + r[7]) / s;
+            z = s / 4;
+        }
+        if (w < 0) {
+            w = -w;
+            x = -x;
+            y = -y;
+            z = -z;
+        }
+        q[0] = w;
+        q[1] = x;
+        q[2] = y;
+        q[3] = z;
+    }
+
+    /** Same as {@code SensorManager.getOrientation}. */
+    private void updateAttitude() {
+        attitude[0] = (float) Math.atan2(r[1], r[4]);
+        attitude[1] = (float) Math.asin(-r[7]);
+        attitude[2] = (float) Math.atan2(-r[6], r[8]);
+    }
+
+    /** True once an attitude has been computed. */
+    public boolean isValid() {
+        return valid;
+    }
+
+    public float getAzimuth() {
+        return attitude[0];
+    }
+
+    public float getPitch() {
+        return attitude[1];
+    }
+
+    public float getRoll() {
+        return attitude[2];
+    }
+
+    /** Row-major 3x3 rotation matrix. Do not modify. */
+    public float[] getRotationMatrix() {
+        return r;
+    }
+
+    /** Unit quaternion as w, x, y, z. Do not modify. */
+    public float[] getQuaternion() {
+        return q;
+    }
+}
@@ -0,0 +1,120 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * In-place FFT of real data of a fixed power-of-two size {@code n}.
+ * <p>
+ * The {@code n} real values are treated as {@code n / 2} complex ones, run
+ * through an iterative radix-2 complex FFT and then split into the
+ * spectrum of the real input, which halves the work of a complex transform.
+ * Twiddle factors and the bit-reversal permutation are computed once in
+ * the constructor, so a transform neither allocates nor calls sin/cos.
+ */
+public class RealFft {
+
+    private final int n;
+    private final int half;
+    // cos and sin of 2 pi k / n, k < n / 2
+    private final float[] cos, sin;
+    // bit-reversed index of each complex value, half entries
+    private final int[] reversed;
+
+    public RealFft(int n) {
+        if (n < 4 || (n & (n - 1)) != 0)
+            throw new IllegalArgumentException("size must be a power of two >= 4: " + n);
+        this.n = n;
+        this.half = n / 2;
+        cos = new float[half];
+        sin = new float[half];
+        for (int k = 0; k < half; k++) {
+            double a = 2 * Math.PI * k / n;
+            cos[k] = (float) Math.cos(a);
+            sin[k] = (float) Math.sin(a);
+        }
+        reversed = new int[half];
+        int bits = Integer.numberOfTrailingZeros(half);
+        for (int i = 0; i < half; i++)
+            reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+    }
+
+    public int getSize() {
+        return n;
+    }
+
+    /**
+     * Transforms the {@code n} values of {@code x} in place. On return
+     * {@code x[0]} holds bin 0 (DC), {@code x[1]} bin {@code n / 2}
+     * (Nyquist), both real, and {@code x[2k]}, {@code x[2k + 1]} the real
+     * and imaginary parts of bin {@code k} for {@code 0 < k < n / 2}.
+     */
+    public void forward(float[] x) {
+        complexFft(x);
+
+        // split the half-size complex spectrum Z into that of the real input:
+        // X[k] = E + W O, X[half - k] = conj(E - W O), where
+        // E = (Z[k] + conj(Z[half - k])) / 2,
+        // O = (Z[k] - conj(Z[half - k])) / 2i, W = exp(-2 pi i k / n)
+        float z0r = x[0], z0i = x[1];
+        x[0] = z0r + z0i;
+        x[1] = z0r - z0i;
+        for (int k = 1; k <= half / 2; k++) {
+            int a = 2 * k, b = 2 * (half - k);
+            float ar = x[a], ai = x[a + 1], br = x[b], bi = x[b + 1];
+            float er = (ar + br) * 0.5f, ei = (ai - bi) * 0.5f;
+            float or = (ai + bi) * 0.5f, oi = (br - ar) * 0.5f;
+            float c = cos[k], s = sin[k];
+            float wr = c * or + s * oi;
+            float wi = c * oi - s * or;
+            x[a] = er + wr;
+            x[a + 1] = ei + wi;
+            x[b] = er - wr;
+            x[b + 1] = wi - ei;
+        }
+    }
+
+    // in-place radix-2 FFT of the half complex values interleaved in x
+    private void complexFft(float[] x) {
+        for (int i = 0; i < half; i++) {
+            int j = reversed[i];
+            if (j > i) {
+                float t = x[2 * i];
+                x[2 * i] = x[2 * j];
+                x[2 * j] = t;
+                t = x[2 * i + 1];
+                x[2 * i + 1] = x[2 * j + 1];
+                x[2 * j + 1] = t;
+            }
+        }
+        for (int len = 2; len <= half; len <<= 1) {
+            int h = len >> 1;
+            // exp(-2 pi i j / len) = exp(-2 pi i (j * step) / n)
+            int step = n / len;
+            for (int start = 0; start < half; start += len) {
+                for (int j = 0; j < h; j++) {
+                    float c = cos[j * step], s = sin[j * step];
+                    int p = 2 * (start + j), q = 2 * (start + j + h);
+                    float qr = x[q], qi = x[q + 1];
+                    float tr = c * qr + s * qi;
+                    float ti = c * qi - s * qr;
+                    x[q] = x[p] - tr;
+                    x[q + 1] = x[p + 1] - ti;
+                    x[p] += tr;
+                    x[p + 1] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * Magnitudes of bins 0 to {@code n / 2} of a spectrum produced by
+     * {@link #forward}, into {@code out[offset]} and on, scaled by
+     * {@code scale}.
+     */
+    public void magnitudes(float[] x, float[] out, int offset, float scale) {
+        out[offset] = Math.abs(x[0]) * scale;
+        out[offset + half] = Math.abs(x[1]) * scale;
+        for (int k = 1; k < half; k++) {
+            float re = x[2 * k], im = x[2 * k + 1];
+            out[offset + k] = (float) Math.sqrt(re * re + im * im) * scale;
+        }
+    }
+}
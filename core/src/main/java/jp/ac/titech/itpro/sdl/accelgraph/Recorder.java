@@ -0,0 +1,339 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records one or more sample streams into a single file on its own writer
+ * thread.
+ * <p>
+ * The sensor callback fills preallocated {@link SampleBlock}s (a pool per
+ * stream) and hands full ones to the writer through a lock-free queue; all
+ * streams must be appended from the same thread. The writer encodes them into
+ * a batch buffer, writes the batch out in one go and returns the blocks to
+ * the free pool. While the writer is busy with one set of blocks the
+ * producer keeps filling the next, so the sensor callback never waits for
+ * storage. If the writer falls so far behind that the pool runs dry, samples
+ * are dropped and counted instead.
+ * <p>
+ * The recorder also keeps, per stream, a histogram of the intervals between
+ * event timestamps and one of the time from {@link #append} until the
+ * sample was written to the file, and stores their summaries at the end of
+ * the recording.
+ * <p>
+ * The file is created by the writer once the first block arrives, so a
+ * recorder can be made and started ahead of time and only used later; see
+ * {@link #setStartAtFirstSample()}.
+ */
+public class Recorder implements Runnable, SampleSink {
+
+    /** Told on the writer thread once the file is complete, or has failed. */
+    public interface Listener {
+        void onFinished(Recorder recorder);
+    }
+
+    private final static int POOL_SIZE = 32; // blocks per stream
+    private final static long FLUSH_INTERVAL_NS = 500L * 1000 * 1000;
+
+    private final File file;
+    private volatile RecordingHeader header;
+    private final int blockSize;
+    private final boolean compress;
+    private final SpscQueue<SampleBlock> filled;
+    private final SpscQueue<SampleBlock>[] free;
+    private final int wakeDepth;
+
+    private Thread thread;
+    private volatile boolean stopping = false;
+    private volatile IOException error = null;
+    private volatile long written = 0;
+    private volatile long bytesWritten = 0;
+    private volatile boolean finished = false;
+    private Listener listener;
+    private boolean startAtFirstSample = false;
+    private volatile long firstTimestamp = Long.MIN_VALUE;
+    private final LatencyHistogram[] intervals;
+    private final LatencyHistogram[] disk;
+
+    // producer side only
+    private final SampleBlock[] current;
+    private final long[] lastTimestamp;
+    private boolean appended = false;
+    private long dropped = 0;
+
+    // writer side only: arrival times of the samples not yet in the file,
+    // in the order they were encoded
+    private final long[] arrivalAt;
+    private final short[] arrivalStream;
+    private final int arrivalMask;
+    private long arrivalsQueued = 0, arrivalsWritten = 0;
+
+    public Recorder(File file, RecordingHeader header) {
+        this(file, header, RecordingFormat.DEFAULT_BLOCK_SIZE, true);
+    }
+
+    /** @param compress whether to write compressed blocks, see {@link SampleCodec} */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Recorder(File file, RecordingHeader header, int blockSize, boolean compress) {
+        this.file = file;
+        this.header = header;
+        this.blockSize = blockSize;
+        this.compress = compress;
+        int streams = header.getStreamCount();
+        this.filled = new SpscQueue<>(Integer.highestOneBit(POOL_SIZE * streams - 1) << 1);
+        this.wakeDepth = POOL_SIZE / 2;
+        this.free = new SpscQueue[streams];
+        this.current = new SampleBlock[streams];
+        this.lastTimestamp = new long[streams];
+        this.intervals = new LatencyHistogram[streams];
+        this.disk = new LatencyHistogram[streams];
+        for (int s = 0; s < streams; s++) {
+            lastTimestamp[s] = Long.MIN_VALUE;
+            intervals[s] = new LatencyHistogram();
+            disk[s] = new LatencyHistogram();
+            free[s] = new SpscQueue<>(POOL_SIZE);
+            for (int i = 0; i < POOL_SIZE; i++)
+                free[s].offer(new SampleBlock(s, header.getStream(s).getChannels(), blockSize));
+        }
+        // the batch holds at most MAX_BATCH_SAMPLES, plus the block being
+        // encoded when it is written out
+        int pending = RecordingWriter.MAX_BATCH_SAMPLES + 2 * blockSize;
+        this.arrivalAt = new long[Integer.highestOneBit(pending) << 1];
+        this.arrivalStream = new short[arrivalAt.length];
+        this.arrivalMask = arrivalAt.length - 1;
+    }
+
+    /**
+     * The header of the file; see {@link #setStartAtFirstSample()} for when
+     * its start changes.
+     */
+    public RecordingHeader getHeader() {
+        return header;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Must be set before {@link #start()}. */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Makes the file start at the first appended sample rather than at the
+     * start of the header given, the wall clock moved along, and leaves the
+     * file out altogether if nothing is appended. Must be set before
+     * {@link #start()}.
+     */
+    public void setStartAtFirstSample() {
+        startAtFirstSample = true;
+    }
+
+    public synchronized void start() {
+        if (thread != null)
+            throw new IllegalStateException("already started");
+        thread = new Thread(this, "Recorder-" + file.getName());
+        thread.start();
+    }
+
+    /**
+     * Adds one sample of {@code stream} whose values start at
+     * {@code vals[offset]}. Called from the producer thread only; never
+     * blocks.
+     */
+    public void append(int stream, long timestamp, float[] vals, int offset) {
+        if (stopping)
+            return;
+        if (!appended) {
+            // before any block is handed over, so the writer sees it
+            firstTimestamp = timestamp;
+            appended = true;
+        }
+        long now = System.nanoTime();
+        if (lastTimestamp[stream] != Long.MIN_VALUE)
+            intervals[stream].record(timestamp - lastTimestamp[stream]);
+        lastTimestamp[stream] = timestamp;
+        SampleBlock b = current[stream];
+        if (b == null) {
+            b = free[stream].poll();
+            if (b == null) {
+                dropped++;
+                return;
+            }
+            current[stream] = b;
+        }
+        b.arrivals[b.size()] = now;
+        b.add(timestamp, vals, offset);
+        if (b.isFull())
+            handOver(stream);
+        // keep every open block within MAX_BLOCK_SPAN_NS, including those of
+        // streams that rarely report
+        for (int s = 0; s < current.length; s++) {
+            SampleBlock c = current[s];
+            if (c != null && timestamp - c.ts[0] >= RecordingFormat.MAX_BLOCK_SPAN_NS)
+                handOver(s);
+        }
+    }
+
+    private void handOver(int stream) {
+        filled.offer(current[stream]);
+        current[stream] = null;
+        if (filled.size() >= wakeDepth)
+            LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void onSample(int stream, long timestamp, float[] values, int offset) {
+        append(stream, timestamp, values, offset);
+    }
+
+    /**
+     * Hands the partially filled block to the writer and lets it finish the
+     * file in the background. Called from the producer thread.
+     */
+    public void stop() {
+        if (stopping)
+            return;
+        for (int s = 0; s < current.length; s++) {
+            if (current[s] != null) {
+                filled.offer(current[s]);
+                current[s] = null;
+            }
+        }
+        stopping = true;
+        LockSupport.unpark(thread);
+    }
+
+    /** Number of samples dropped because the writer fell behind. */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /** Number of samples handed to the file so far. */
+    public long getWritten() {
+        return written;
+    }
+
+    /** Size of the file so far. */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** True once the file has been closed, or writing failed. */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /** Number of full blocks waiting for the writer. */
+    public int getQueueDepth() {
+        return filled.size();
+    }
+
+    /** Intervals between the event timestamps of {@code stream}. */
+    public LatencyHistogram getIntervals(int stream) {
+        return intervals[stream];
+    }
+
+    /** Time from {@link #append} until the sample was in the file. */
+    public LatencyHistogram getDiskLatency(int stream) {
+        return disk[stream];
+    }
+
+    /** The error that stopped the writer, or null. */
+    public IOException getError() {
+        return error;
+    }
+
+    @Override
+    public void run() {
+        RecordingWriter writer = null;
+        try {
+            long lastFlush = System.nanoTime();
+            while (true) {
+                boolean done = stopping;
+                SampleBlock b;
+                while ((b = filled.poll()) != null) {
+                    if (writer == null)
+                        writer = open();
+                    queueArrivals(b);
+                    writer.write(b);
+                    b.clear();
+                    free[b.stream].offer(b);
+                    recordWritten(writer);
+                }
+                if (writer != null) {
+                    written = writer.getSampleCount();
+                    bytesWritten = writer.getBytesWritten();
+                }
+                if (done)
+                    break;
+                long now = System.nanoTime();
+                if (writer != null && writer.getBatchedBytes() > 0
+                        && now - lastFlush >= FLUSH_INTERVAL_NS) {
+                    writer.flush();
+                    recordWritten(writer);
+                    lastFlush = now;
+                }
+                LockSupport.parkNanos(this, FLUSH_INTERVAL_NS);
+            }
+            // an empty recording still gets its file, unless it was to
+            // start at its first sample
+            if (writer == null && !startAtFirstSample)
+                writer = open();
+            if (writer != null) {
+                writer.flush();
+                recordWritten(writer);
+                for (int s = 0; s < disk.length; s++) {
+                    writer.writeLatency(intervals[s].getStats(s, LatencyStats.KIND_INTERVAL));
+                    writer.writeLatency(disk[s].getStats(s, LatencyStats.KIND_DISK));
+                }
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    if (error == null)
+                        error = e;
+                }
+                bytesWritten = writer.getBytesWritten();
+            }
+            // let the producer keep going without recording
+            stopping = true;
+            finished = true;
+            if (listener != null)
+                listener.onFinished(this);
+        }
+    }
+
+    // writer thread
+    private RecordingWriter open() throws IOException {
+        if (startAtFirstSample && firstTimestamp != Long.MIN_VALUE)
+            header = header.startingAt(firstTimestamp);
+        return new RecordingWriter(file, header, blockSize, RecordingWriter.DEFAULT_BATCH_BYTES,
+                compress);
+    }
+
+    private void queueArrivals(SampleBlock b) {
+        for (int i = 0, n = b.size(); i < n; i++) {
+            int k = (int) (arrivalsQueued++ & arrivalMask);
+            arrivalAt[k] = b.arrivals[i];
+            arrivalStream[k] = (short) b.stream;
+        }
+    }
+
+    private void recordWritten(RecordingWriter writer) {
+        long w = writer.getWrittenCount();
+        if (w == arrivalsWritten)
+            return;
+        long now = System.nanoTime();
+        for (; arrivalsWritten < w; arrivalsWritten++) {
+            int k = (int) (arrivalsWritten & arrivalMask);
+            disk[arrivalStream[k]].record(now - arrivalAt[k]);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Layout of the binary recording files (all values big-endian).
+ * <pre>
+ * header:
+ *   int    MAGIC
+ *   short  VERSION
+ *   short  number of streams
+ *   long   start of the recording, in event timestamp time base (ns)
+ *   long   wall clock time at that moment (ms since the epoch)
+ *   per stream:
+ *     short  channels
+ *     short  reserved (0)
+ *     int    sensor type
+ *     float  resolution
+ *     float  maximum range
+ *     short  vendor length, UTF-8 bytes
+ *     short  name length, UTF-8 bytes
+ * blocks, repeated until end of file:
+ *   int    BLOCK_SAMPLES
+ *   short  stream index
+ *   short  reserved (0)
+ *   int    n
+ *   long   event timestamp (ns) x n
+ *   float  channel 0 x n, channel 1 x n, ...
+ * or (version 4):
+ *   int    BLOCK_COMPRESSED
+ *   short  stream index
+ *   short  reserved (0)
+ *   int    n
+ *   int    payload length in bytes
+ *   byte   payload x length, see SampleCodec
+ * or (version 3, at the end of the file):
+ *   int    BLOCK_LATENCY
+ *   short  stream index
+ *   short  kind, see LatencyStats
+ *   int    LATENCY_VALUES
+ *   long   count, p50, p99, max (ns)
+ * </pre>
+ * All streams share the event timestamp time base, so blocks of different
+ * streams can be merged by timestamp. {@link Recorder} closes every block
+ * once it spans {@link #MAX_BLOCK_SPAN_NS}, so a block never starts more than
+ * that before the blocks written ahead of it and a reader can merge the
+ * streams with a short look-ahead. Version 2 files are the same without
+ * latency blocks, version 3 files without compressed blocks. Compressed
+ * blocks decode on their own, without the rest of the file.
+ */
+public final class RecordingFormat {
+
+    public final static int MAGIC = 0x41475243; // "AGRC"
+    public final static short VERSION = 4;
+    public final static short MIN_VERSION = 2;
+    public final static String FILE_EXTENSION = ".agr";
+
+    public final static int BLOCK_SAMPLES = 1;
+    public final static int BLOCK_LATENCY = 2;
+    public final static int BLOCK_COMPRESSED = 3;
+    public final static int LATENCY_VALUES = 4;
+
+    public final static int DEFAULT_BLOCK_SIZE = 512;
+    public final static long MAX_BLOCK_SPAN_NS = 500L * 1000 * 1000;
+
+    final static int BLOCK_HEADER_BYTES = 12;
+
+    private RecordingFormat() {
+    }
+
+    static int blockBytes(int channels, int samples) {
+        return BLOCK_HEADER_BYTES + samples * (8 + 4 * channels);
+    }
+
+    static int maxCompressedBlockBytes(int channels, int samples) {
+        return BLOCK_HEADER_BYTES + 4 + SampleCodec.maxPayloadBytes(channels, samples);
+    }
+}
@@ -0,0 +1,43 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Contents of a recording header: the streams it multiplexes and the
+ * moment it started.
+ */
+public class RecordingHeader {
+
+    private final SensorInfo[] streams;
+    private final long startNs;
+    private final long startWallMs;
+
+    public RecordingHeader(SensorInfo[] streams, long startNs, long startWallMs) {
+        if (streams.length == 0 || streams.length > Short.MAX_VALUE)
+            throw new IllegalArgumentException("bad number of streams: " + streams.length);
+        this.streams = streams.clone();
+        this.startNs = startNs;
+        this.startWallMs = startWallMs;
+    }
+
+    public int getStreamCount() {
+        return streams.length;
+    }
+
+    public SensorInfo getStream(int index) {
+        return streams[index];
+    }
+
+    /** Start of the recording in the event timestamp time base (ns). */
+    public long getStartNs() {
+        return startNs;
+    }
+
+    /** Wall clock time at {@link #getStartNs()} (ms since the epoch). */
+    public long getStartWallMs() {
+        return startWallMs;
+    }
+
+    /** The same streams starting at {@code ns}, the wall clock moved along. */
+    public RecordingHeader startingAt(long ns) {
+        return new RecordingHeader(streams, ns, startWallMs + (ns - startNs) / 1000000);
+    }
+}
@@ -0,0 +1,206 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Time index of a recording, written by {@link RecordingWriter} next to the
+ * file it indexes when the file is closed (same name, extension
+ * {@link #FILE_EXTENSION}). One entry per sample block, in file order:
+ * <pre>
+ *   int    MAGIC
+ *   short  VERSION
+ *   short  reserved (0)
+ *   long   length of the indexed recording file
+ *   int    number of entries
+ *   per entry:
+ *     long  file offset of the block
+ *     long  latest timestamp of this block and all blocks before it
+ *     long  earliest timestamp of this block and all blocks after it
+ * </pre>
+ * Both timestamp columns are sorted, so the blocks that may hold a time
+ * range are found by two binary searches over the file, reading a handful
+ * of entries rather than the whole index. An index whose recorded length
+ * does not match the file is stale and ignored.
+ */
+public class RecordingIndex {
+
+    public final static int MAGIC = 0x41475249; // "AGRI"
+    public final static short VERSION = 1;
+    public final static String FILE_EXTENSION = ".agi";
+
+    private final static int HEADER_BYTES = 20;
+    private final static int ENTRY_BYTES = 24;
+
+    private final FileInputStream in;
+    private final FileChannel channel;
+    private final long recordingLength;
+    private final int size;
+    private final ByteBuffer value = ByteBuffer.allocate(8);
+
+    private RecordingIndex(FileInputStream in, long recordingLength, int size) {
+        this.in = in;
+        this.channel = in.getChannel();
+        this.recordingLength = recordingLength;
+        this.size = size;
+    }
+
+    /** The index file of {@code recording}. */
+    public static File fileOf(File recording) {
+        String name = recording.getName();
+        if (name.endsWith(RecordingFormat.FILE_EXTENSION))
+            name = name.substring(0, name.length() - RecordingFormat.FILE_EXTENSION.length());
+        return new File(recording.getParentFile(), name + FILE_EXTENSION);
+    }
+
+    /**
+     * Opens the index of {@code recording}, or returns null if it has none
+     * or it does not match the file, as after a crash while recording.
+     */
+    public static RecordingIndex open(File recording) throws IOException {
+        File f = fileOf(recording);
+        if (!f.isFile())
+            return null;
+        FileInputStream in = new FileInputStream(f);
+        try {
+            ByteBuffer hdr = ByteBuffer.allocate(HEADER_BYTES);
+            while (hdr.hasRemaining())
+                if (in.getChannel().read(hdr) < 0)
+                    return null;
+            hdr.flip();
+            if (hdr.getInt() != MAGIC || hdr.getShort() != VERSION)
+                return null;
+            hdr.getShort(); // reserved
+            long length = hdr.getLong();
+            int size = hdr.getInt();
+            if (length != recording.length() || size < 0
+                    || f.length() != HEADER_BYTES + (long) size * ENTRY_BYTES)
+                return null;
+            RecordingIndex index = new RecordingIndex(in, length, size);
+            in = null;
+            return index;
+        } finally {
+            if (in != null)
+                in.close();
+        }
+    }
+
+    /** Number of indexed blocks. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * File offset of the first block that may hold samples at or after
+     * {@code fromNs}; every block before it ends earlier. The length of the
+     * recording if there is none.
+     */
+    public long startOf(long fromNs) throws IOException {
+        // first entry whose running maximum reaches fromNs
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (get(mid, 8) < fromNs)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo == size ? recordingLength : get(lo, 0);
+    }
+
+    /**
+     * File offset after the last block that may hold samples at or before
+     * {@code toNs}; every block from there on starts later.
+     */
+    public long endOf(long toNs) throws IOException {
+        // first entry whose running minimum from there on is past toNs
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (get(mid, 16) <= toNs)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo == size ? recordingLength : get(lo, 0);
+    }
+
+    private long get(int entry, int field) throws IOException {
+        long pos = HEADER_BYTES + (long) entry * ENTRY_BYTES + field;
+        value.clear();
+        while (value.hasRemaining()) {
+            int n = channel.read(value, pos + value.position());
+            if (n < 0)
+                throw new EOFException("truncated recording index");
+        }
+        return value.getLong(0);
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /** Collects the entries while a recording is written. */
+    static class Builder {
+        private long[] offsets = new long[64];
+        private long[] firsts = new long[64];
+        private long[] lasts = new long[64];
+        private int size = 0;
+
+        void add(long offset, long firstNs, long lastNs) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+                firsts = Arrays.copyOf(firsts, size * 2);
+                lasts = Arrays.copyOf(lasts, size * 2);
+            }
+            offsets[size] = offset;
+            firsts[size] = firstNs;
+            lasts[size] = lastNs;
+            size++;
+        }
+
+        /** Writes the index of {@code recording}, which is complete. */
+        void write(File recording) throws IOException {
+            long[] minFirst = new long[size];
+            long min = Long.MAX_VALUE;
+            for (int i = size - 1; i >= 0; i--) {
+                min = Math.min(min, firsts[i]);
+                minFirst[i] = min;
+            }
+            ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES + size * ENTRY_BYTES);
+            b.putInt(MAGIC);
+            b.putShort(VERSION);
+            b.putShort((short) 0); // reserved
+            b.putLong(recording.length());
+            b.putInt(size);
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < size; i++) {
+                max = Math.max(max, lasts[i]);
+                b.putLong(offsets[i]);
+                b.putLong(max);
+                b.putLong(minFirst[i]);
+            }
+            b.flip();
+            // write next to it under a temporary name, so a reader never
+            // sees half an index
+            File f = fileOf(recording);
+            File tmp = new File(f.getPath() + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                FileChannel ch = out.getChannel();
+                while (b.hasRemaining())
+                    ch.write(b);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(f))
+                throw new IOException("cannot write " + f);
+        }
+    }
+}
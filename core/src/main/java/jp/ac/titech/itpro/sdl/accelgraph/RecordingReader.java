@@ -0,0 +1,251 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads files written by {@link RecordingWriter} one block at a time,
+ * optionally only the samples of a time range (see {@link #setRange}).
+ */
+public class RecordingReader {
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final FileInputStream in;
+    private final FileChannel channel;
+    private final RecordingHeader header;
+    private final ByteBuffer head = ByteBuffer.allocate(RecordingFormat.BLOCK_HEADER_BYTES);
+    private ByteBuffer body = ByteBuffer.allocate(0);
+    private final ByteBuffer latency = ByteBuffer.allocate(8 * RecordingFormat.LATENCY_VALUES);
+    private final ByteBuffer length = ByteBuffer.allocate(4);
+    private final SampleCodec.BitReader bits = new SampleCodec.BitReader();
+    private final List<LatencyStats> latencies = new ArrayList<>();
+    private int blockStream = -1;
+    private boolean ranged = false;
+    private long rangeFrom, rangeTo;
+    private long rangeEnd = Long.MAX_VALUE; // file offset
+    private boolean rangeDone = false;
+
+    public RecordingReader(File file) throws IOException {
+        this.file = file;
+        this.in = new FileInputStream(file);
+        this.channel = in.getChannel();
+        try {
+            this.header = readHeader();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private RecordingHeader readHeader() throws IOException {
+        ByteBuffer hdr = ByteBuffer.allocate(24);
+        readFully(hdr);
+        if (hdr.getInt() != RecordingFormat.MAGIC)
+            throw new IOException("not a recording file");
+        short version = hdr.getShort();
+        if (version < RecordingFormat.MIN_VERSION || version > RecordingFormat.VERSION)
+            throw new IOException("unsupported recording version: " + version);
+        int streams = hdr.getShort();
+        long startNs = hdr.getLong();
+        long startWallMs = hdr.getLong();
+        if (streams <= 0)
+            throw new IOException("bad number of streams: " + streams);
+        SensorInfo[] infos = new SensorInfo[streams];
+        ByteBuffer fixed = ByteBuffer.allocate(18);
+        ByteBuffer len = ByteBuffer.allocate(2);
+        for (int s = 0; s < streams; s++) {
+            fixed.clear();
+            readFully(fixed);
+            int channels = fixed.getShort();
+            fixed.getShort(); // reserved
+            int type = fixed.getInt();
+            float resolution = fixed.getFloat();
+            float maximumRange = fixed.getFloat();
+            String vendor = readString(fixed.getShort());
+            len.clear();
+            readFully(len);
+            String name = readString(len.getShort());
+            infos[s] = new SensorInfo(type, name, vendor, resolution, maximumRange, channels);
+        }
+        return new RecordingHeader(infos, startNs, startWallMs);
+    }
+
+    private String readString(int length) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(length);
+        readFully(b);
+        return new String(b.array(), UTF8);
+    }
+
+    public RecordingHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Latency summaries read so far. They are stored at the end of the file,
+     * so this is complete once {@link #readBlock} has returned -1, unless a
+     * range was set.
+     */
+    public List<LatencyStats> getLatencies() {
+        return Collections.unmodifiableList(latencies);
+    }
+
+    /** Stream index of the block returned by the last {@link #readBlock}. */
+    public int getBlockStream() {
+        return blockStream;
+    }
+
+    /**
+     * Makes {@link #readBlock} return only the samples from {@code fromNs}
+     * to {@code toNs} inclusive; call before reading the first block. If
+     * the file has a {@link RecordingIndex}, the reader seeks straight to
+     * the first block that may hold such samples and ends after the last
+     * one, so the cost is that of the blocks in the range. Without one it
+     * reads from the start, but still ends once blocks start past the
+     * range.
+     */
+    public void setRange(long fromNs, long toNs) throws IOException {
+        if (fromNs > toNs)
+            throw new IllegalArgumentException("empty range: " + fromNs + " > " + toNs);
+        ranged = true;
+        rangeFrom = fromNs;
+        rangeTo = toNs;
+        RecordingIndex index = RecordingIndex.open(file);
+        if (index == null)
+            return;
+        try {
+            channel.position(Math.max(channel.position(), index.startOf(fromNs)));
+            rangeEnd = index.endOf(toNs);
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * Reads the next block into {@code ts} and {@code vs} (one value per
+     * channel of the block's stream, interleaved), growing neither; both must
+     * be large enough for the writer's block size. Returns the number of
+     * samples read, or -1 at the end of the file or of the range. The
+     * block's stream is available from {@link #getBlockStream()}. Latency
+     * blocks are collected into {@link #getLatencies()} on the way.
+     */
+    public int readBlock(long[] ts, float[] vs) throws IOException {
+        while (true) {
+            if (rangeDone || channel.position() >= rangeEnd)
+                return -1;
+            int n = readNextBlock(ts, vs);
+            if (n <= 0 || !ranged)
+                return n;
+            // no later block starts before this one, less the block span
+            if (ts[0] - RecordingFormat.MAX_BLOCK_SPAN_NS > rangeTo) {
+                rangeDone = true;
+                return -1;
+            }
+            n = keepRange(ts, vs, n, header.getStream(blockStream).getChannels());
+            if (n > 0)
+                return n;
+        }
+    }
+
+    // moves the samples within the range to the front
+    private int keepRange(long[] ts, float[] vs, int n, int channels) {
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            if (ts[i] < rangeFrom || ts[i] > rangeTo)
+                continue;
+            if (k != i) {
+                ts[k] = ts[i];
+                System.arraycopy(vs, i * channels, vs, k * channels, channels);
+            }
+            k++;
+        }
+        return k;
+    }
+
+    private int readNextBlock(long[] ts, float[] vs) throws IOException {
+        int tag, stream, kind, n;
+        while (true) {
+            head.clear();
+            if (!readFullyOrEof(head))
+                return -1;
+            head.flip();
+            tag = head.getInt();
+            stream = head.getShort();
+            kind = head.getShort();
+            n = head.getInt();
+            if (stream < 0 || stream >= header.getStreamCount())
+                throw new IOException("bad stream index: " + stream);
+            if (tag != RecordingFormat.BLOCK_LATENCY)
+                break;
+            if (n != RecordingFormat.LATENCY_VALUES)
+                throw new IOException("bad latency block of " + n + " values");
+            latency.clear();
+            readFully(latency);
+            latencies.add(new LatencyStats(stream, kind, latency.getLong(), latency.getLong(),
+                    latency.getLong(), latency.getLong()));
+        }
+        if (tag != RecordingFormat.BLOCK_SAMPLES && tag != RecordingFormat.BLOCK_COMPRESSED)
+            throw new IOException("unknown block tag: " + tag);
+        int channels = header.getStream(stream).getChannels();
+        if (n < 0 || n > ts.length || n * channels > vs.length)
+            throw new IOException("block of " + n + " samples does not fit the buffers");
+        int size;
+        if (tag == RecordingFormat.BLOCK_COMPRESSED) {
+            length.clear();
+            readFully(length);
+            size = length.getInt();
+            if (size < 0 || size > RecordingFormat.maxCompressedBlockBytes(channels, n))
+                throw new IOException("bad compressed block length: " + size);
+        } else {
+            size = RecordingFormat.blockBytes(channels, n) - RecordingFormat.BLOCK_HEADER_BYTES;
+        }
+        if (body.capacity() < size)
+            body = ByteBuffer.allocate(size);
+        body.clear();
+        body.limit(size);
+        readFully(body);
+        if (tag == RecordingFormat.BLOCK_COMPRESSED) {
+            SampleCodec.decode(body, n, channels, ts, vs, bits);
+            blockStream = stream;
+            return n;
+        }
+        for (int i = 0; i < n; i++)
+            ts[i] = body.getLong();
+        for (int c = 0; c < channels; c++)
+            for (int i = 0; i < n; i++)
+                vs[i * channels + c] = body.getFloat();
+        blockStream = stream;
+        return n;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void readFully(ByteBuffer b) throws IOException {
+        if (!readFullyOrEof(b))
+            throw new EOFException();
+        b.flip();
+    }
+
+    private boolean readFullyOrEof(ByteBuffer b) throws IOException {
+        int start = b.position();
+        while (b.hasRemaining()) {
+            if (channel.read(b) < 0) {
+                if (b.position() == start)
+                    return false;
+                throw new EOFException("truncated recording");
+            }
+        }
+        return true;
+    }
+}
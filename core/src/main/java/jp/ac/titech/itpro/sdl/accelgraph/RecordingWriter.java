@@ -0,0 +1,248 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Writes samples in the binary format described in {@link RecordingFormat}.
+ * Blocks are encoded into a batch buffer that is written to the file only
+ * when it is full or on {@link #flush()}, so no per-sample formatting or
+ * flushing takes place. Blocks are compressed with {@link SampleCodec}
+ * unless asked otherwise. On {@link #close()} the {@link RecordingIndex} of
+ * the file is written next to it.
+ */
+public class RecordingWriter {
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    public final static int DEFAULT_BATCH_BYTES = 64 * 1024;
+    /** The batch is written out before it holds more samples than this. */
+    public final static int MAX_BATCH_SAMPLES = 8192;
+
+    private final File file;
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private final RecordingHeader header;
+    private final SampleBlock[] pending;
+    private final ByteBuffer batch;
+    private final boolean compress;
+    private long samples = 0;
+    private long writtenSamples = 0;
+    private long bytes = 0;
+    private final RecordingIndex.Builder index = new RecordingIndex.Builder();
+
+    public RecordingWriter(File file, RecordingHeader header) throws IOException {
+        this(file, header, RecordingFormat.DEFAULT_BLOCK_SIZE, DEFAULT_BATCH_BYTES, true);
+    }
+
+    public RecordingWriter(File file, RecordingHeader header, int blockSize, int batchBytes,
+                           boolean compress) throws IOException {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        this.header = header;
+        this.compress = compress;
+        int streams = header.getStreamCount();
+        int maxChannels = 0;
+        this.pending = new SampleBlock[streams];
+        for (int s = 0; s < streams; s++) {
+            int channels = header.getStream(s).getChannels();
+            pending[s] = new SampleBlock(s, channels, blockSize);
+            maxChannels = Math.max(maxChannels, channels);
+        }
+        int largest = compress ? RecordingFormat.maxCompressedBlockBytes(maxChannels, blockSize)
+                : RecordingFormat.blockBytes(maxChannels, blockSize);
+        this.batch = ByteBuffer.allocateDirect(Math.max(batchBytes, largest));
+        this.file = file;
+        // an index left from an earlier file of that name no longer applies
+        RecordingIndex.fileOf(file).delete();
+        this.out = new FileOutputStream(file, false);
+        this.channel = out.getChannel();
+        try {
+            writeHeader();
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        int streams = header.getStreamCount();
+        byte[][] vendors = new byte[streams][];
+        byte[][] names = new byte[streams][];
+        int size = 24;
+        for (int s = 0; s < streams; s++) {
+            vendors[s] = header.getStream(s).getVendor().getBytes(UTF8);
+            names[s] = header.getStream(s).getName().getBytes(UTF8);
+            size += 16 + 2 + vendors[s].length + 2 + names[s].length;
+        }
+        ByteBuffer hdr = ByteBuffer.allocate(size);
+        hdr.putInt(RecordingFormat.MAGIC);
+        hdr.putShort(RecordingFormat.VERSION);
+        hdr.putShort((short) streams);
+        hdr.putLong(header.getStartNs());
+        hdr.putLong(header.getStartWallMs());
+        for (int s = 0; s < streams; s++) {
+            SensorInfo info = header.getStream(s);
+            hdr.putShort((short) info.getChannels());
+            hdr.putShort((short) 0); // reserved
+            hdr.putInt(info.getType());
+            hdr.putFloat(info.getResolution());
+            hdr.putFloat(info.getMaximumRange());
+            hdr.putShort((short) vendors[s].length);
+            hdr.put(vendors[s]);
+            hdr.putShort((short) names[s].length);
+            hdr.put(names[s]);
+        }
+        hdr.flip();
+        writeFully(hdr);
+    }
+
+    public RecordingHeader getHeader() {
+        return header;
+    }
+
+    /** Total number of samples accepted so far. */
+    public long getSampleCount() {
+        return samples;
+    }
+
+    /**
+     * Number of samples handed to the file so far; the rest of
+     * {@link #getSampleCount()} waits in the batch buffer.
+     */
+    public long getWrittenCount() {
+        return writtenSamples;
+    }
+
+    /**
+     * Appends one sample of {@code stream} whose values start at
+     * {@code vals[offset]}.
+     */
+    public void append(int stream, long timestamp, float[] vals, int offset) throws IOException {
+        SampleBlock b = pending[stream];
+        b.add(timestamp, vals, offset);
+        if (b.isFull()) {
+            encode(b);
+            b.clear();
+        }
+    }
+
+    /**
+     * Encodes a whole block into the batch buffer. The block can be reused
+     * as soon as this returns.
+     */
+    public void write(SampleBlock block) throws IOException {
+        int channels = header.getStream(block.stream).getChannels();
+        if (block.channels != channels)
+            throw new IllegalArgumentException("block has " + block.channels + " channels, expected " + channels);
+        SampleBlock p = pending[block.stream];
+        if (!p.isEmpty()) {
+            encode(p);
+            p.clear();
+        }
+        if (!block.isEmpty())
+            encode(block);
+    }
+
+    private void encode(SampleBlock block) throws IOException {
+        int n = block.size();
+        int channels = block.channels;
+        int size = compress ? RecordingFormat.maxCompressedBlockBytes(channels, n)
+                : RecordingFormat.blockBytes(channels, n);
+        if (batch.remaining() < size || samples - writtenSamples + n > MAX_BATCH_SAMPLES)
+            writeBatch();
+        index.add(bytes + batch.position(), block.ts[0], block.ts[n - 1]);
+        if (compress) {
+            batch.putInt(RecordingFormat.BLOCK_COMPRESSED);
+            batch.putShort((short) block.stream);
+            batch.putShort((short) 0); // reserved
+            batch.putInt(n);
+            int lengthAt = batch.position();
+            batch.putInt(0);
+            SampleCodec.encode(block, batch);
+            batch.putInt(lengthAt, batch.position() - lengthAt - 4);
+            samples += n;
+            return;
+        }
+        batch.putInt(RecordingFormat.BLOCK_SAMPLES);
+        batch.putShort((short) block.stream);
+        batch.putShort((short) 0); // reserved
+        batch.putInt(n);
+        for (int i = 0; i < n; i++)
+            batch.putLong(block.ts[i]);
+        for (int c = 0; c < channels; c++) {
+            int base = c * block.capacity;
+            for (int i = 0; i < n; i++)
+                batch.putFloat(block.vs[base + i]);
+        }
+        samples += n;
+    }
+
+    /**
+     * Adds a latency summary to the file; written by {@link Recorder} after
+     * the last samples.
+     */
+    public void writeLatency(LatencyStats stats) throws IOException {
+        int size = RecordingFormat.BLOCK_HEADER_BYTES + 8 * RecordingFormat.LATENCY_VALUES;
+        if (batch.remaining() < size)
+            writeBatch();
+        batch.putInt(RecordingFormat.BLOCK_LATENCY);
+        batch.putShort((short) stats.getStream());
+        batch.putShort((short) stats.getKind());
+        batch.putInt(RecordingFormat.LATENCY_VALUES);
+        batch.putLong(stats.getCount());
+        batch.putLong(stats.getP50());
+        batch.putLong(stats.getP99());
+        batch.putLong(stats.getMax());
+    }
+
+    /** Number of bytes written to the file so far, header included. */
+    public long getBytesWritten() {
+        return bytes;
+    }
+
+    /** Number of encoded bytes waiting in the batch buffer. */
+    public int getBatchedBytes() {
+        return batch.position();
+    }
+
+    /** Encodes any pending samples and writes the batch buffer out. */
+    public void flush() throws IOException {
+        for (SampleBlock p : pending) {
+            if (!p.isEmpty()) {
+                encode(p);
+                p.clear();
+            }
+        }
+        writeBatch();
+    }
+
+    private void writeBatch() throws IOException {
+        if (batch.position() == 0)
+            return;
+        batch.flip();
+        writeFully(batch);
+        batch.clear();
+        writtenSamples = samples;
+    }
+
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+        // nothing to seek in a pipe or device
+        if (file.isFile())
+            index.write(file);
+    }
+
+    private void writeFully(ByteBuffer b) throws IOException {
+        bytes += b.remaining();
+        while (b.hasRemaining())
+            channel.write(b);
+    }
+}
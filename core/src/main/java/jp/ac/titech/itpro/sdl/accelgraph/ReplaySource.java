@@ -0,0 +1,328 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a recording back as a {@link SampleSource}.
+ * <p>
+ * The recording is one file or the consecutive segments of a session (see
+ * {@link SegmentedRecorder}), which must all hold the same streams; they
+ * are played as one.
+ * <p>
+ * The streams are merged into timestamp order and delivered to the sinks on
+ * the replay thread, paced by the recorded timestamps: in real time, a
+ * given number of times faster, or as fast as the sinks take them
+ * ({@link #MAX_SPEED}). Timestamps are passed on as recorded.
+ * {@link #run()} can also be called directly to replay on the calling
+ * thread.
+ */
+public class ReplaySource implements SampleSource, Runnable {
+
+    /** Told on the replay thread once playing has ended, however it ended. */
+    public interface Listener {
+        void onFinished(ReplaySource source);
+    }
+
+    public final static double REALTIME = 1;
+    public final static double MAX_SPEED = 0;
+
+    // blocks that start this much after the oldest pending sample cannot
+    // hold anything older, see RecordingFormat.MAX_BLOCK_SPAN_NS
+    private final static long LOOK_AHEAD_NS = 2 * RecordingFormat.MAX_BLOCK_SPAN_NS;
+
+    private static class Block {
+        final long[] ts;
+        final float[] vs;
+        int stream, n, i;
+
+        Block(int blockSize, int channels) {
+            ts = new long[blockSize];
+            vs = new float[blockSize * channels];
+        }
+    }
+
+    private final File[] files;
+    private final RecordingHeader header;
+    private RecordingReader reader;
+    private int fileIndex = 0;
+    private boolean ranged = false;
+    private long rangeFrom, rangeTo;
+    private final int blockSize;
+    private final int maxChannels;
+    private final ArrayDeque<Block>[] pending;
+    private final ArrayDeque<Block> free = new ArrayDeque<>();
+
+    private volatile SampleSink[] sinks = new SampleSink[0];
+    private volatile double speed = REALTIME;
+    private volatile boolean stopping = false;
+    private volatile boolean finished = false;
+    private volatile long replayed = 0;
+    private volatile IOException error = null;
+    private Listener listener;
+    private Thread thread;
+
+    public ReplaySource(File file) throws IOException {
+        this(file, RecordingFormat.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param blockSize the largest block in the file, i.e. the block size it
+     *                  was recorded with
+     */
+    public ReplaySource(File file, int blockSize) throws IOException {
+        this(new File[]{file}, blockSize);
+    }
+
+    /** Plays {@code files} one after the other. */
+    public ReplaySource(File[] files) throws IOException {
+        this(files, RecordingFormat.DEFAULT_BLOCK_SIZE);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ReplaySource(File[] files, int blockSize) throws IOException {
+        if (files.length == 0)
+            throw new IllegalArgumentException("no files to replay");
+        this.files = files.clone();
+        this.reader = new RecordingReader(files[0]);
+        this.header = reader.getHeader();
+        this.blockSize = blockSize;
+        int channels = 1;
+        pending = new ArrayDeque[header.getStreamCount()];
+        for (int s = 0; s < pending.length; s++) {
+            pending[s] = new ArrayDeque<>();
+            channels = Math.max(channels, header.getStream(s).getChannels());
+        }
+        this.maxChannels = channels;
+    }
+
+    public RecordingHeader getHeader() {
+        return header;
+    }
+
+    /** The first file of the recording. */
+    public File getFile() {
+        return files[0];
+    }
+
+    public File[] getFiles() {
+        return files.clone();
+    }
+
+    @Override
+    public int getStreamCount() {
+        return header.getStreamCount();
+    }
+
+    @Override
+    public SensorInfo getStreamInfo(int stream) {
+        return header.getStream(stream);
+    }
+
+    @Override
+    public synchronized void addSink(SampleSink sink) {
+        SampleSink[] a = new SampleSink[sinks.length + 1];
+        System.arraycopy(sinks, 0, a, 0, sinks.length);
+        a[sinks.length] = sink;
+        sinks = a;
+    }
+
+    @Override
+    public synchronized void removeSink(SampleSink sink) {
+        SampleSink[] old = sinks;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == sink) {
+                SampleSink[] a = new SampleSink[old.length - 1];
+                System.arraycopy(old, 0, a, 0, i);
+                System.arraycopy(old, i + 1, a, i, a.length - i);
+                sinks = a;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Playback speed relative to the recording: {@link #REALTIME}, any
+     * positive factor, or {@link #MAX_SPEED}. Can be changed while playing.
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0 || Double.isNaN(speed))
+            throw new IllegalArgumentException("bad speed: " + speed);
+        this.speed = speed;
+        LockSupport.unpark(thread);
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Plays only the samples from {@code fromNs} to {@code toNs} inclusive,
+     * seeking to them through the {@link RecordingIndex} of each file. Call
+     * before playing.
+     */
+    public void setRange(long fromNs, long toNs) throws IOException {
+        reader.setRange(fromNs, toNs);
+        ranged = true;
+        rangeFrom = fromNs;
+        rangeTo = toNs;
+    }
+
+    /** Must be set before {@link #start()} or {@link #run()}. */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (thread != null)
+            throw new IllegalStateException("already started");
+        thread = new Thread(this, "Replay-" + files[0].getName());
+        thread.start();
+    }
+
+    /** Stops playing and waits for the replay thread to end. */
+    public void stop() {
+        stopping = true;
+        Thread t;
+        synchronized (this) {
+            t = thread;
+        }
+        if (t == null || t == Thread.currentThread())
+            return;
+        LockSupport.unpark(t);
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** True once the whole recording has been played, or playing failed. */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /** Number of samples delivered so far. */
+    public long getReplayed() {
+        return replayed;
+    }
+
+    /** The error that stopped playing, or null. */
+    public IOException getError() {
+        return error;
+    }
+
+    @Override
+    public void run() {
+        try {
+            play();
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+            finished = true;
+            if (listener != null)
+                listener.onFinished(this);
+        }
+    }
+
+    private void play() throws IOException {
+        boolean eof = false;
+        long lastStart = Long.MIN_VALUE; // latest block start read so far
+        double anchorSpeed = -1;
+        long anchorTs = 0, anchorNanos = 0;
+        long count = 0;
+
+        while (!stopping) {
+            Block next = oldestPending();
+            while (!eof && (next == null || lastStart < next.ts[next.i] + LOOK_AHEAD_NS)) {
+                Block b = free.poll();
+                if (b == null)
+                    b = new Block(blockSize, maxChannels);
+                int n = reader.readBlock(b.ts, b.vs);
+                if (n < 0) {
+                    free.offer(b);
+                    if (fileIndex + 1 < files.length) {
+                        openNext();
+                        continue;
+                    }
+                    eof = true;
+                    break;
+                }
+                if (n == 0) {
+                    free.offer(b);
+                    continue;
+                }
+                b.stream = reader.getBlockStream();
+                b.n = n;
+                b.i = 0;
+                pending[b.stream].offer(b);
+                lastStart = Math.max(lastStart, b.ts[0]);
+                next = oldestPending();
+            }
+            if (next == null)
+                break;
+
+            long ts = next.ts[next.i];
+            double sp = speed;
+            if (sp > 0) {
+                if (sp != anchorSpeed) {
+                    // (re)start the clock at this sample
+                    anchorSpeed = sp;
+                    anchorTs = ts;
+                    anchorNanos = System.nanoTime();
+                }
+                long due = anchorNanos + (long) ((ts - anchorTs) / sp);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0 && !stopping && speed == sp)
+                    LockSupport.parkNanos(this, wait);
+                if (stopping)
+                    break;
+                if (speed != sp)
+                    continue;
+            } else {
+                anchorSpeed = sp;
+            }
+
+            int channels = header.getStream(next.stream).getChannels();
+            SampleSink[] out = sinks;
+            for (SampleSink sink : out)
+                sink.onSample(next.stream, ts, next.vs, next.i * channels);
+            replayed = ++count;
+            if (++next.i == next.n)
+                free.offer(pending[next.stream].poll());
+        }
+    }
+
+    private void openNext() throws IOException {
+        reader.close();
+        File f = files[++fileIndex];
+        reader = new RecordingReader(f);
+        RecordingHeader h = reader.getHeader();
+        boolean same = h.getStreamCount() == header.getStreamCount();
+        for (int s = 0; same && s < pending.length; s++)
+            same = h.getStream(s).getType() == header.getStream(s).getType()
+                    && h.getStream(s).getChannels() == header.getStream(s).getChannels();
+        if (!same)
+            throw new IOException(f + " holds other streams than " + files[0]);
+        if (ranged)
+            reader.setRange(rangeFrom, rangeTo);
+    }
+
+    private Block oldestPending() {
+        Block oldest = null;
+        for (ArrayDeque<Block> q : pending) {
+            Block b = q.peek();
+            if (b != null && (oldest == null || b.ts[b.i] < oldest.ts[oldest.i]))
+                oldest = b;
+        }
+        return oldest;
+    }
+}
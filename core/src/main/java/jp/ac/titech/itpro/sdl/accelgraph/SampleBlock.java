@@ -0,0 +1,60 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Fixed-size, reusable block of samples of one stream, stored column by
+ * column: {@code ts[i]} is the timestamp of sample {@code i} and
+ * {@code vs[c * capacity + i]} its value on channel {@code c}.
+ * {@code arrivals[i]} optionally holds the {@link System#nanoTime()} at which
+ * the sample was received, for latency accounting.
+ */
+public class SampleBlock {
+
+    public final int stream;
+    public final int channels;
+    public final int capacity;
+    public final long[] ts;
+    public final float[] vs;
+    public final long[] arrivals;
+    private int size = 0;
+
+    public SampleBlock(int channels, int capacity) {
+        this(0, channels, capacity);
+    }
+
+    public SampleBlock(int stream, int channels, int capacity) {
+        this.stream = stream;
+        this.channels = channels;
+        this.capacity = capacity;
+        this.ts = new long[capacity];
+        this.vs = new float[channels * capacity];
+        this.arrivals = new long[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Adds one sample whose values start at {@code vals[offset]}. The block
+     * must not be full.
+     */
+    public void add(long timestamp, float[] vals, int offset) {
+        int i = size;
+        ts[i] = timestamp;
+        for (int c = 0; c < channels; c++)
+            vs[c * capacity + i] = vals[offset + c];
+        size = i + 1;
+    }
+}
@@ -0,0 +1,200 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding of {@link RecordingFormat#BLOCK_COMPRESSED} payloads. Each block
+ * stands alone:
+ * <ul>
+ * <li>timestamps as zigzag varints: the first one, the first delta, then
+ * the change of delta from sample to sample, which for a sensor running at
+ * a steady rate is a few bytes of jitter;</li>
+ * <li>then each channel as a bit stream of XORs with the previous value:
+ * the first value in 32 bits, then {@code 0} if unchanged, {@code 10} and
+ * the meaningful bits if they fit the previous leading/trailing zero
+ * window, or {@code 11}, 5 bits of leading zeros, 5 bits of length - 1
+ * and the meaningful bits.</li>
+ * </ul>
+ * The bit stream is padded to a whole byte at the end of the block.
+ */
+final class SampleCodec {
+
+    private SampleCodec() {
+    }
+
+    /** Upper bound of the payload size of {@code n} samples. */
+    static int maxPayloadBytes(int channels, int n) {
+        // 10 bytes per varint, at most 2 + 5 + 5 + 32 bits per value
+        return n * 10 + (n * channels * 44 + 7) / 8 + 1;
+    }
+
+    /** Encodes the samples of {@code block} at the position of {@code out}. */
+    static void encode(SampleBlock block, ByteBuffer out) {
+        int n = block.size();
+        long[] ts = block.ts;
+        long prevTs = 0, prevDelta = 0;
+        for (int i = 0; i < n; i++) {
+            long t = ts[i];
+            long v = i == 0 ? t : i == 1 ? t - prevTs : (t - prevTs) - prevDelta;
+            if (i > 0)
+                prevDelta = t - prevTs;
+            prevTs = t;
+            putVarLong(out, (v << 1) ^ (v >> 63));
+        }
+
+        long acc = 0; // pending bits, most significant first
+        int bits = 0;
+        for (int c = 0; c < block.channels; c++) {
+            int base = c * block.capacity;
+            int prev = 0, lead = -1, trail = 0;
+            for (int i = 0; i < n; i++) {
+                int cur = Float.floatToRawIntBits(block.vs[base + i]);
+                if (i == 0) {
+                    acc = (acc << 32) | (cur & 0xffffffffL);
+                    bits += 32;
+                } else {
+                    int x = cur ^ prev;
+                    if (x == 0) {
+                        acc <<= 1;
+                        bits += 1;
+                    } else {
+                        int l = Integer.numberOfLeadingZeros(x);
+                        int t = Integer.numberOfTrailingZeros(x);
+                        if (lead >= 0 && l >= lead && t >= trail) {
+                            int len = 32 - lead - trail;
+                            acc = (acc << 2) | 2;
+                            bits += 2;
+                            bits = drain(out, acc, bits);
+                            acc = (acc << len) | ((x >>> trail) & mask(len));
+                            bits += len;
+                        } else {
+                            int len = 32 - l - t;
+                            acc = (acc << 12) | (3L << 10) | ((long) l << 5) | (len - 1);
+                            bits += 12;
+                            bits = drain(out, acc, bits);
+                            acc = (acc << len) | ((x >>> t) & mask(len));
+                            bits += len;
+                            lead = l;
+                            trail = t;
+                        }
+                    }
+                }
+                bits = drain(out, acc, bits);
+                prev = cur;
+            }
+        }
+        if (bits > 0)
+            out.put((byte) (acc << (8 - bits)));
+    }
+
+    private static long mask(int len) {
+        return len == 32 ? 0xffffffffL : (1L << len) - 1;
+    }
+
+    // writes out whole bytes from the top of the pending bits, returns how
+    // many bits are left (fewer than 8)
+    private static int drain(ByteBuffer out, long acc, int bits) {
+        while (bits >= 8) {
+            bits -= 8;
+            out.put((byte) (acc >>> bits));
+        }
+        return bits;
+    }
+
+    /**
+     * Decodes {@code n} samples from {@code in} into {@code ts} and
+     * {@code vs} ({@code channels} interleaved values per sample), using
+     * {@code r} as scratch.
+     */
+    static void decode(ByteBuffer in, int n, int channels, long[] ts, float[] vs,
+                       BitReader r) throws IOException {
+        long prevTs = 0, prevDelta = 0;
+        for (int i = 0; i < n; i++) {
+            long z = getVarLong(in);
+            long v = (z >>> 1) ^ -(z & 1);
+            long t;
+            if (i == 0) {
+                t = v;
+            } else if (i == 1) {
+                prevDelta = v;
+                t = prevTs + v;
+            } else {
+                prevDelta += v;
+                t = prevTs + prevDelta;
+            }
+            ts[i] = t;
+            prevTs = t;
+        }
+
+        r.reset(in);
+        for (int c = 0; c < channels; c++) {
+            int prev = 0, lead = 0, trail = 0;
+            for (int i = 0; i < n; i++) {
+                int cur;
+                if (i == 0) {
+                    cur = (int) r.read(32);
+                } else if (r.read(1) == 0) {
+                    cur = prev;
+                } else {
+                    if (r.read(1) == 1) {
+                        lead = (int) r.read(5);
+                        trail = 32 - lead - ((int) r.read(5) + 1);
+                        if (trail < 0)
+                            throw new IOException("corrupt compressed block");
+                    }
+                    int len = 32 - lead - trail;
+                    cur = prev ^ ((int) r.read(len) << trail);
+                }
+                vs[i * channels + c] = Float.intBitsToFloat(cur);
+                prev = cur;
+            }
+        }
+    }
+
+    /** Reads a bit stream most significant bit first; reusable. */
+    static class BitReader {
+        private ByteBuffer in;
+        private long acc;
+        private int bits;
+
+        void reset(ByteBuffer in) {
+            this.in = in;
+            acc = 0;
+            bits = 0;
+        }
+
+        // n <= 32
+        long read(int n) throws IOException {
+            while (bits < n) {
+                if (!in.hasRemaining())
+                    throw new IOException("truncated compressed block");
+                acc = (acc << 8) | (in.get() & 0xff);
+                bits += 8;
+            }
+            bits -= n;
+            return (acc >>> bits) & ((1L << n) - 1);
+        }
+    }
+
+    private static void putVarLong(ByteBuffer out, long v) {
+        while ((v & ~0x7fL) != 0) {
+            out.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private static long getVarLong(ByteBuffer in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (!in.hasRemaining())
+                throw new IOException("truncated compressed block");
+            byte b = in.get();
+            v |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                return v;
+        }
+        throw new IOException("bad varint in compressed block");
+    }
+}
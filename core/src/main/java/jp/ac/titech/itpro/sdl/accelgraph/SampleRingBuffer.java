@@ -0,0 +1,144 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Preallocated ring buffer of sensor samples (timestamp + channel values).
+ * <p>
+ * Written by a single producer (the sensor callback) without allocating, and
+ * read by any number of {@link Cursor}s, each at its own pace. A reader that
+ * falls more than {@code capacity} samples behind loses the oldest samples and
+ * the loss is counted in {@link Cursor#getDropped()}.
+ */
+public class SampleRingBuffer {
+
+    private final int channels;
+    private final int capacity;
+    private final int mask;
+    private final long[] timestamps;
+    private final float[] values;
+
+    // number of samples ever written; published after the slot is filled
+    private volatile long head = 0;
+
+    public SampleRingBuffer(int channels, int capacity) {
+        if (channels <= 0)
+            throw new IllegalArgumentException("channels must be positive: " + channels);
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        this.channels = channels;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.timestamps = new long[capacity];
+        this.values = new float[capacity * channels];
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHead() {
+        return head;
+    }
+
+    /**
+     * Appends one sample. Must only be called from the producer thread.
+     * {@code vals} must hold at least {@code channels} values.
+     */
+    public void put(long timestamp, float[] vals) {
+        put(timestamp, vals, 0);
+    }
+
+    /** Same as {@link #put(long, float[])} with values from {@code vals[offset]}. */
+    public void put(long timestamp, float[] vals, int offset) {
+        long h = head;
+        int slot = (int) (h & mask);
+        timestamps[slot] = timestamp;
+        System.arraycopy(vals, offset, values, slot * channels, channels);
+        head = h + 1;
+    }
+
+    /**
+     * Returns a cursor positioned at the current head, so it only sees
+     * samples written from now on.
+     */
+    public Cursor newCursor() {
+        return new Cursor(head);
+    }
+
+    public class Cursor {
+        private long pos;
+        private long dropped = 0;
+
+        private Cursor(long pos) {
+            this.pos = pos;
+        }
+
+        /** Number of samples written but not yet read by this cursor. */
+        public int available() {
+            return (int) Math.min(head - pos, capacity);
+        }
+
+        /** Number of samples this cursor lost because it fell behind. */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * Sequence number of the next sample to read; the samples returned
+         * by the last {@link #read} end just before it. The first sample
+         * ever put has number 0.
+         */
+        public long getPosition() {
+            return pos;
+        }
+
+        /** Skips everything written so far. */
+        public void skipToHead() {
+            pos = head;
+        }
+
+        /**
+         * Copies up to {@code max} unread samples into {@code ts} and
+         * {@code vs} ({@code channels} interleaved values per sample) and
+         * returns the number of samples copied.
+         */
+        public int read(long[] ts, float[] vs, int max) {
+            while (true) {
+                long h = head;
+                if (h - pos > capacity) {
+                    dropped += h - capacity - pos;
+                    pos = h - capacity;
+                }
+                int n = (int) Math.min(h - pos, max);
+                if (n <= 0)
+                    return 0;
+                for (int i = 0; i < n; i++) {
+                    int slot = (int) ((pos + i) & mask);
+                    ts[i] = timestamps[slot];
+                    System.arraycopy(values, slot * channels, vs, i * channels, channels);
+                }
+
+                // the producer may have lapped us while copying; discard the
+                // samples whose slots were (or are being) overwritten
+                long stale = head - capacity + 1 - pos;
+                if (stale <= 0) {
+                    pos += n;
+                    return n;
+                }
+                dropped += Math.min(stale, n);
+                if (stale >= n) {
+                    pos += n;
+                    continue;
+                }
+                int k = (int) stale;
+                System.arraycopy(ts, k, ts, 0, n - k);
+                System.arraycopy(vs, k * channels, vs, 0, (n - k) * channels);
+                pos += n;
+                return n - k;
+            }
+        }
+    }
+}
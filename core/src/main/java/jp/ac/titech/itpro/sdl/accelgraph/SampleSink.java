@@ -0,0 +1,13 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Receives the samples of a {@link SampleSource}.
+ */
+public interface SampleSink {
+
+    /**
+     * Called for every sample of stream {@code stream}, whose values start
+     * at {@code values[offset]}. The array is only valid during the call.
+     */
+    void onSample(int stream, long timestamp, float[] values, int offset);
+}
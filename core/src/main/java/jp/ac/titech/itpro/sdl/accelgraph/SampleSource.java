@@ -0,0 +1,17 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * A producer of one or more sample streams, such as the device sensors.
+ * Streams are numbered from 0 and all samples are delivered to the sinks on
+ * the same thread.
+ */
+public interface SampleSource {
+
+    int getStreamCount();
+
+    SensorInfo getStreamInfo(int stream);
+
+    void addSink(SampleSink sink);
+
+    void removeSink(SampleSink sink);
+}
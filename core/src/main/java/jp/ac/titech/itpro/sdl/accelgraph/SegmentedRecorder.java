@@ -0,0 +1,331 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Records a session as a directory of segment files, each written by its
+ * own {@link Recorder}, plus a {@link SessionManifest}.
+ * <p>
+ * A new segment is started on the producer thread once the current one
+ * spans {@code maxSegmentNs} of event time or has grown to
+ * {@code maxSegmentBytes}; the old recorder finishes its file in the
+ * background meanwhile, so no sample is lost at the cut. The recorder of the
+ * next segment is made and started ahead of time, and the manifest is
+ * written by a housekeeping thread, so a cut only swaps recorders on the
+ * producer thread; should the next recorder not be ready yet, the current
+ * segment runs on a little longer. A finished segment and its
+ * {@link RecordingIndex} are made read-only and entered into the manifest
+ * as closed, and are never touched again.
+ * <p>
+ * Sessions live side by side under one root directory, named after their
+ * start time. Whenever a segment is closed, the oldest sessions are deleted
+ * until all of them fit in {@code quotaBytes}; the session being recorded
+ * is never deleted, even if it alone exceeds the quota.
+ */
+public class SegmentedRecorder implements SampleSink {
+
+    private final static String SEGMENT_PREFIX = "segment-";
+
+    private final File root;
+    private final File dir;
+    private final RecordingHeader header;
+    private final long maxSegmentNs;
+    private final long maxSegmentBytes;
+    private final long quotaBytes;
+    private final SessionManifest manifest;
+
+    private volatile IOException error = null;
+    // guarded by manifest
+    private long closedWritten = 0;
+    private boolean manifestChanged = false;
+    private boolean stopped = false;
+
+    // housekeeping thread: writes the manifest and prepares the next
+    // recorder
+    private final BackgroundTask housekeeper;
+    private volatile Recorder spare;
+    private int prepared = 0;
+
+    // set on the producer thread
+    private volatile Recorder current;
+    private boolean producerStopped = false;
+    private SessionManifest.Segment segment;
+    private long segmentStart;
+    private long lastTimestamp;
+    private int segments = 0;
+
+    private final Recorder.Listener closer = new Recorder.Listener() {
+        @Override
+        public void onFinished(Recorder recorder) {
+            close(recorder);
+        }
+    };
+
+    private final Runnable housekeeping = new Runnable() {
+        @Override
+        public void run() {
+            housekeep();
+        }
+    };
+
+    /**
+     * Creates the session directory under {@code root} and its manifest,
+     * and the recorder of the first segment. Segments are started by the
+     * first sample.
+     */
+    public SegmentedRecorder(File root, RecordingHeader header, long maxSegmentNs,
+                             long maxSegmentBytes, long quotaBytes) throws IOException {
+        if (maxSegmentNs <= 0 || maxSegmentBytes <= 0)
+            throw new IllegalArgumentException("segment limits must be positive");
+        this.root = root;
+        this.header = header;
+        this.maxSegmentNs = maxSegmentNs;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.quotaBytes = quotaBytes;
+        if (!root.isDirectory() && !root.mkdirs())
+            throw new IOException("cannot create " + root);
+        this.dir = newSessionDir(root, header.getStartWallMs());
+        this.manifest = new SessionManifest(header.getStartNs(), header.getStartWallMs());
+        manifest.write(dir);
+        enforceQuota();
+        spare = newRecorder();
+        housekeeper = new BackgroundTask("Session-" + dir.getName(), housekeeping);
+        housekeeper.start();
+    }
+
+    private static File newSessionDir(File root, long wallMs) throws IOException {
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date(wallMs));
+        File d = new File(root, name);
+        for (int i = 2; d.exists(); i++)
+            d = new File(root, name + "-" + i);
+        if (!d.mkdir())
+            throw new IOException("cannot create " + d);
+        return d;
+    }
+
+    /** The session directory. */
+    public File getDirectory() {
+        return dir;
+    }
+
+    public RecordingHeader getHeader() {
+        return header;
+    }
+
+    /** The recorder of the segment being written, or null before the first sample. */
+    public Recorder getCurrent() {
+        return current;
+    }
+
+    /** Number of segments started so far. Producer thread only. */
+    public int getSegmentCount() {
+        return segments;
+    }
+
+    /**
+     * Number of samples handed to the files so far, over all segments; may
+     * briefly lag behind while a rotated segment is being finished.
+     */
+    public long getWritten() {
+        Recorder r = current;
+        synchronized (manifest) {
+            return closedWritten + (r == null || r.isFinished() ? 0 : r.getWritten());
+        }
+    }
+
+    /** The first error of any segment or of the manifest, or null. */
+    public IOException getError() {
+        return error;
+    }
+
+    @Override
+    public void onSample(int stream, long timestamp, float[] values, int offset) {
+        if (producerStopped)
+            return;
+        Recorder r = current;
+        if (r == null || timestamp - segmentStart >= maxSegmentNs
+                || r.getBytesWritten() >= maxSegmentBytes) {
+            if (error != null)
+                return;
+            r = rotate(timestamp);
+            if (r == null)
+                return;
+        }
+        r.append(stream, timestamp, values, offset);
+        lastTimestamp = timestamp;
+    }
+
+    // producer thread; only swaps in the spare recorder, or keeps the
+    // current one if the spare is not ready yet
+    private Recorder rotate(long timestamp) {
+        Recorder old = current;
+        Recorder r = spare;
+        if (r == null)
+            return old;
+        spare = null;
+        synchronized (manifest) {
+            if (segment != null)
+                segment.extend(lastTimestamp);
+            segment = new SessionManifest.Segment(r.getFile().getName(), timestamp);
+            manifest.addSegment(segment);
+            manifestChanged = true;
+        }
+        housekeeper.request();
+        segments++;
+        segmentStart = timestamp;
+        current = r;
+        if (old != null)
+            old.stop();
+        return r;
+    }
+
+    // each segment is a complete recording starting at its first sample
+    private Recorder newRecorder() {
+        String name = String.format(Locale.US, "%s%04d%s", SEGMENT_PREFIX, prepared++,
+                RecordingFormat.FILE_EXTENSION);
+        Recorder r = new Recorder(new File(dir, name), header);
+        r.setStartAtFirstSample();
+        r.setListener(closer);
+        r.start();
+        return r;
+    }
+
+    // housekeeping thread
+    private void housekeep() {
+        String text = null;
+        boolean stopping, complete;
+        synchronized (manifest) {
+            if (manifestChanged) {
+                text = manifest.format();
+                manifestChanged = false;
+            }
+            stopping = stopped;
+            complete = manifest.isComplete();
+        }
+        if (text != null) {
+            try {
+                SessionManifest.write(dir, text);
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+        if (stopping) {
+            // never used, so it leaves no file
+            Recorder s = spare;
+            spare = null;
+            if (s != null)
+                s.stop();
+        } else if (spare == null) {
+            spare = newRecorder();
+        }
+        if (complete)
+            housekeeper.stop();
+    }
+
+    /**
+     * Finishes the current segment and the session in the background.
+     * Called from the producer thread.
+     */
+    public void stop() {
+        if (producerStopped)
+            return;
+        producerStopped = true;
+        Recorder r = current;
+        synchronized (manifest) {
+            stopped = true;
+            if (segment != null)
+                segment.extend(lastTimestamp);
+            if (r == null || r.isFinished())
+                finishSession();
+            manifestChanged = true;
+        }
+        housekeeper.request();
+        if (r != null)
+            r.stop();
+    }
+
+    // writer thread of the finished segment
+    private void close(Recorder r) {
+        File f = r.getFile();
+        SessionManifest.Segment closed = null;
+        synchronized (manifest) {
+            for (SessionManifest.Segment s : manifest.getSegments())
+                if (s.getName().equals(f.getName()))
+                    closed = s;
+        }
+        // a spare recorder that was never used
+        if (closed == null)
+            return;
+        if (r.getError() != null && error == null)
+            error = r.getError();
+        makeReadOnly(f);
+        makeReadOnly(RecordingIndex.fileOf(f));
+        // before the session is marked complete, so the space is freed by
+        // the time anyone sees it
+        enforceQuota();
+        synchronized (manifest) {
+            closedWritten += r.getWritten();
+            closed.close(r.getWritten(), r.getBytesWritten());
+            if (stopped && r == current)
+                finishSession();
+            manifestChanged = true;
+        }
+        housekeeper.request();
+    }
+
+    private void makeReadOnly(File f) {
+        if (f.exists() && !f.setReadOnly() && error == null)
+            error = new IOException("cannot make " + f + " read-only");
+    }
+
+    // holding the manifest lock
+    private void finishSession() {
+        manifest.setComplete();
+    }
+
+    /** Deletes the oldest sessions under the root until the rest fit the quota. */
+    private void enforceQuota() {
+        if (quotaBytes <= 0)
+            return;
+        synchronized (SegmentedRecorder.class) {
+            File[] sessions = SessionManifest.listSessions(root);
+            long[] sizes = new long[sessions.length];
+            long total = 0;
+            for (int i = 0; i < sessions.length; i++) {
+                sizes[i] = sizeOf(sessions[i]);
+                total += sizes[i];
+            }
+            for (int i = 0; i < sessions.length && total > quotaBytes; i++) {
+                if (sessions[i].equals(dir))
+                    continue;
+                if (delete(sessions[i]))
+                    total -= sizes[i];
+            }
+        }
+    }
+
+    private static long sizeOf(File dir) {
+        long n = 0;
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                n += f.length();
+        return n;
+    }
+
+    // deletes the manifest last, so a half-deleted session is still listed
+    // and goes next time
+    private static boolean delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                if (!f.getName().equals(SessionManifest.FILE_NAME))
+                    f.delete();
+        return new File(dir, SessionManifest.FILE_NAME).delete() && dir.delete();
+    }
+}
@@ -0,0 +1,57 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Static description of a sample stream, stored in the recording header.
+ */
+public class SensorInfo {
+
+    private final int type;
+    private final String name;
+    private final String vendor;
+    private final float resolution;
+    private final float maximumRange;
+    private final int channels;
+
+    public SensorInfo(int type, String name, String vendor,
+                      float resolution, float maximumRange, int channels) {
+        if (channels <= 0)
+            throw new IllegalArgumentException("channels must be positive: " + channels);
+        this.type = type;
+        this.name = name == null ? "" : name;
+        this.vendor = vendor == null ? "" : vendor;
+        this.resolution = resolution;
+        this.maximumRange = maximumRange;
+        this.channels = channels;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getVendor() {
+        return vendor;
+    }
+
+    public float getResolution() {
+        return resolution;
+    }
+
+    public float getMaximumRange() {
+        return maximumRange;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public String toString() {
+        return "SensorInfo{type=" + type + ", name=" + name + ", vendor=" + vendor
+                + ", resolution=" + resolution + ", maximumRange=" + maximumRange
+                + ", channels=" + channels + "}";
+    }
+}
@@ -0,0 +1,221 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Table of contents of a recording session directory written by
+ * {@link SegmentedRecorder}: the segment files in order, each with the time
+ * span it covers and whether it has been closed. A plain text file, one
+ * entry per line:
+ * <pre>
+ *   agr-session 1
+ *   start &lt;start ns&gt; &lt;wall clock ms&gt;
+ *   segment &lt;file name&gt; &lt;first ns&gt; &lt;last ns&gt; &lt;samples&gt; &lt;bytes&gt; open|closed
+ *   ...
+ *   end
+ * </pre>
+ * {@code end} is present once the session was stopped and every segment
+ * closed; a session without it was cut short, but its closed segments are
+ * complete. The manifest is replaced atomically on every change.
+ */
+public class SessionManifest {
+
+    public final static String FILE_NAME = "manifest.txt";
+    private final static String MAGIC = "agr-session 1";
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    public static class Segment {
+        private final String name;
+        private long firstNs, lastNs, samples, bytes;
+        private boolean closed;
+
+        public Segment(String name, long firstNs) {
+            this.name = name;
+            this.firstNs = firstNs;
+            this.lastNs = firstNs;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getFirstNs() {
+            return firstNs;
+        }
+
+        public long getLastNs() {
+            return lastNs;
+        }
+
+        public long getSamples() {
+            return samples;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        void extend(long lastNs) {
+            this.lastNs = Math.max(this.lastNs, lastNs);
+        }
+
+        void close(long samples, long bytes) {
+            this.samples = samples;
+            this.bytes = bytes;
+            this.closed = true;
+        }
+    }
+
+    private final long startNs;
+    private final long startWallMs;
+    private final List<Segment> segments = new ArrayList<>();
+    private boolean complete = false;
+
+    public SessionManifest(long startNs, long startWallMs) {
+        this.startNs = startNs;
+        this.startWallMs = startWallMs;
+    }
+
+    public long getStartNs() {
+        return startNs;
+    }
+
+    public long getStartWallMs() {
+        return startWallMs;
+    }
+
+    public List<Segment> getSegments() {
+        return Collections.unmodifiableList(segments);
+    }
+
+    void addSegment(Segment segment) {
+        segments.add(segment);
+    }
+
+    /** True if the session ended normally. */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    void setComplete() {
+        complete = true;
+    }
+
+    /** Segment files in {@code dir} in recording order. */
+    public File[] getSegmentFiles(File dir) {
+        File[] files = new File[segments.size()];
+        for (int i = 0; i < files.length; i++)
+            files[i] = new File(dir, segments.get(i).getName());
+        return files;
+    }
+
+    /** Writes the manifest into {@code dir}, replacing the previous one. */
+    public void write(File dir) throws IOException {
+        write(dir, format());
+    }
+
+    // the contents of the file, so that it can be written outside a lock
+    String format() {
+        StringBuilder b = new StringBuilder();
+        b.append(MAGIC).append('\n');
+        b.append("start ").append(startNs).append(' ').append(startWallMs).append('\n');
+        for (Segment s : segments)
+            b.append("segment ").append(s.name).append(' ').append(s.firstNs).append(' ')
+                    .append(s.lastNs).append(' ').append(s.samples).append(' ').append(s.bytes)
+                    .append(s.closed ? " closed" : " open").append('\n');
+        if (complete)
+            b.append("end\n");
+        return b.toString();
+    }
+
+    // writes what format() returned into dir, replacing the previous file
+    static void write(File dir, String text) throws IOException {
+        File tmp = new File(dir, FILE_NAME + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            Writer w = new OutputStreamWriter(out, UTF8);
+            w.write(text);
+            w.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(new File(dir, FILE_NAME)))
+            throw new IOException("cannot replace the manifest in " + dir);
+    }
+
+    /** Reads the manifest of the session in {@code dir}. */
+    public static SessionManifest read(File dir) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(new File(dir, FILE_NAME)), UTF8));
+        try {
+            if (!MAGIC.equals(in.readLine()))
+                throw new IOException("not a session manifest: " + dir);
+            String[] start = fields(in.readLine(), "start", 3);
+            SessionManifest m = new SessionManifest(Long.parseLong(start[1]), Long.parseLong(start[2]));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.equals("end")) {
+                    m.complete = true;
+                    continue;
+                }
+                String[] f = fields(line, "segment", 7);
+                Segment s = new Segment(f[1], Long.parseLong(f[2]));
+                s.lastNs = Long.parseLong(f[3]);
+                s.samples = Long.parseLong(f[4]);
+                s.bytes = Long.parseLong(f[5]);
+                s.closed = f[6].equals("closed");
+                m.segments.add(s);
+            }
+            return m;
+        } catch (NumberFormatException e) {
+            throw new IOException("bad session manifest in " + dir + ": " + e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String[] fields(String line, String key, int count) throws IOException {
+        String[] f = line == null ? new String[0] : line.split(" ");
+        if (f.length != count || !f[0].equals(key))
+            throw new IOException("bad session manifest line: " + line);
+        return f;
+    }
+
+    /** Session directories under {@code root}, oldest first. */
+    public static File[] listSessions(File root) {
+        File[] dirs = root.listFiles();
+        if (dirs == null)
+            return new File[0];
+        List<File> sessions = new ArrayList<>();
+        for (File d : dirs)
+            if (d.isDirectory() && new File(d, FILE_NAME).isFile())
+                sessions.add(d);
+        File[] a = sessions.toArray(new File[sessions.size()]);
+        // directory names start with the start time, see SegmentedRecorder
+        Arrays.sort(a);
+        return a;
+    }
+
+    /** The most recent session directory under {@code root}, or null. */
+    public static File latestSession(File root) {
+        File[] sessions = listSessions(root);
+        return sessions.length == 0 ? null : sessions[sessions.length - 1];
+    }
+}
@@ -0,0 +1,150 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Magnitude spectrum of the last {@code size} samples of each channel.
+ * <p>
+ * Samples go into a preallocated ring as they arrive; {@link #compute()}
+ * takes the current window of each channel, removes its mean so gravity
+ * and other offsets do not swamp bin 0, applies a Hann window and runs a
+ * {@link RealFft}. Magnitudes are scaled to the amplitude of a sinusoid
+ * centred on a bin. The sample rate is estimated from the timestamps of the
+ * window, as sensor rates are only nominal. Nothing allocates after
+ * construction.
+ */
+public class SpectrumAnalyzer {
+
+    private final int channels;
+    private final int size;
+    private final int bins;
+    private final RealFft fft;
+    private final float[] hann;
+    private final float scale;
+
+    // last size samples, channel-major, and their timestamps
+    private final float[] samples;
+    private final long[] timestamps;
+    private int slot = 0; // where the next sample goes
+    private long count = 0;
+
+    private final float[] work;
+    private final float[] magnitudes;
+    private float sampleRate = 0;
+
+    public SpectrumAnalyzer(int channels, int size) {
+        if (channels <= 0)
+            throw new IllegalArgumentException("channels must be positive: " + channels);
+        this.channels = channels;
+        this.size = size;
+        this.fft = new RealFft(size);
+        this.bins = size / 2 + 1;
+        hann = new float[size];
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            hann[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / size));
+            sum += hann[i];
+        }
+        // a sinusoid of amplitude a gives a peak of a * sum / 2
+        scale = (float) (2 / sum);
+        samples = new float[channels * size];
+        timestamps = new long[size];
+        work = new float[size];
+        magnitudes = new float[channels * bins];
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /** Number of frequency bins per channel, from 0 to the Nyquist rate. */
+    public int getBins() {
+        return bins;
+    }
+
+    public void reset() {
+        slot = 0;
+        count = 0;
+        sampleRate = 0;
+    }
+
+    /** Adds one sample, whose values start at {@code vals[offset]}. */
+    public void add(long timestamp, float[] vals, int offset) {
+        int slot = this.slot;
+        for (int c = 0; c < channels; c++)
+            samples[c * size + slot] = vals[offset + c];
+        timestamps[slot] = timestamp;
+        this.slot = slot + 1 == size ? 0 : slot + 1;
+        count++;
+    }
+
+    /** True once {@code size} samples have been added since the last reset. */
+    public boolean isFull() {
+        return count >= size;
+    }
+
+    /**
+     * Transforms the current window into {@link #getMagnitudes()}.
+     *
+     * @return false, leaving the magnitudes as they were, while the window
+     * has not filled yet
+     */
+    public boolean compute() {
+        if (!isFull())
+            return false;
+        // slot is now the oldest sample
+        long span = timestamps[slot == 0 ? size - 1 : slot - 1] - timestamps[slot];
+        sampleRate = span > 0 ? (size - 1) * 1e9f / span : 0;
+        int first = size - slot;
+        for (int c = 0; c < channels; c++) {
+            int base = c * size;
+            double sum = 0;
+            for (int i = 0; i < size; i++)
+                sum += samples[base + i];
+            float mean = (float) (sum / size);
+            // unroll the ring into window order
+            for (int i = 0; i < first; i++)
+                work[i] = (samples[base + slot + i] - mean) * hann[i];
+            for (int i = first; i < size; i++)
+                work[i] = (samples[base + i - first] - mean) * hann[i];
+            fft.forward(work);
+            fft.magnitudes(work, magnitudes, c * bins, scale);
+        }
+        return true;
+    }
+
+    /**
+     * Magnitudes from the last {@link #compute()}, {@link #getBins()} per
+     * channel: bin {@code k} of channel {@code c} is at
+     * {@code c * getBins() + k}. Do not modify.
+     */
+    public float[] getMagnitudes() {
+        return magnitudes;
+    }
+
+    public float getMagnitude(int channel, int bin) {
+        return magnitudes[channel * bins + bin];
+    }
+
+    /** Sample rate in Hz estimated at the last {@link #compute()}, 0 if unknown. */
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    /** Width of one bin in Hz at the estimated sample rate. */
+    public float getBinHz() {
+        return sampleRate / size;
+    }
+
+    /** Bin of the largest magnitude of {@code channel}, skipping bin 0. */
+    public int getPeakBin(int channel) {
+        int base = channel * bins;
+        int peak = 1;
+        for (int k = 2; k < bins; k++)
+            if (magnitudes[base + k] > magnitudes[base + peak])
+                peak = k;
+        return peak;
+    }
+}
@@ -0,0 +1,54 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer
+ * thread. Neither side blocks or allocates.
+ */
+public class SpscQueue<E> {
+
+    private final Object[] items;
+    private final int mask;
+
+    // next slot to poll; written by the consumer only
+    private volatile long head = 0;
+    // next slot to offer; written by the producer only
+    private volatile long tail = 0;
+
+    public SpscQueue(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        this.items = new Object[capacity];
+        this.mask = capacity - 1;
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    public int size() {
+        return (int) (tail - head);
+    }
+
+    /** Producer side. Returns false if the queue is full. */
+    public boolean offer(E e) {
+        long t = tail;
+        if (t - head == items.length)
+            return false;
+        items[(int) (t & mask)] = e;
+        tail = t + 1;
+        return true;
+    }
+
+    /** Consumer side. Returns null if the queue is empty. */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head;
+        if (h == tail)
+            return null;
+        int slot = (int) (h & mask);
+        E e = (E) items[slot];
+        items[slot] = null;
+        head = h + 1;
+        return e;
+    }
+}
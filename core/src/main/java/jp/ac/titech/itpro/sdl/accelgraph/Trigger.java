@@ -0,0 +1,182 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decides, sample by sample, whether a stream shows an event worth
+ * recording. A trigger is one or more conditions and fires while any of
+ * them holds; see {@link #parse(int, String)}. Updating does not allocate.
+ */
+public class Trigger {
+
+    private final static int THRESHOLD = 0;
+    private final static int MAGNITUDE = 1;
+    private final static int SLOPE = 2;
+    private final static int RMS = 3;
+
+    private final int channels;
+    private final int[] kinds;
+    private final float[] levels;
+    // per RMS condition, null for the others
+    private final WindowStats[] stats;
+
+    // last sample, for the slopes
+    private final float[] last;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    private Trigger(int channels, int[] kinds, float[] levels, WindowStats[] stats) {
+        this.channels = channels;
+        this.kinds = kinds;
+        this.levels = levels;
+        this.stats = stats;
+        this.last = new float[channels];
+    }
+
+    /**
+     * Builds a trigger from a comma separated list of conditions, any of
+     * which fires it. Levels are in the units of the stream, times in
+     * seconds:
+     * <pre>
+     *   threshold(level)       a value of any channel reaches +-level
+     *   magnitude(level)       the vector of all channels reaches level
+     *   slope(level)           a channel changes by level per second
+     *   rms(level, samples)    the RMS of the deviation from the mean over
+     *                          the last samples reaches level in a channel
+     * </pre>
+     * The RMS leaves out the mean of the window, so a constant offset such
+     * as gravity does not count.
+     *
+     * @throws IllegalArgumentException if the spec cannot be parsed or is
+     * empty
+     */
+    public static Trigger parse(int channels, String spec) {
+        if (channels <= 0)
+            throw new IllegalArgumentException("channels must be positive: " + channels);
+        List<double[]> conditions = new ArrayList<>();
+        String rest = spec.trim();
+        while (!rest.isEmpty()) {
+            int open = rest.indexOf('(');
+            int close = rest.indexOf(')');
+            if (open <= 0 || close < open)
+                throw new IllegalArgumentException("bad trigger spec: " + spec);
+            String name = rest.substring(0, open).trim().toLowerCase(Locale.US);
+            String[] args = rest.substring(open + 1, close).split(",");
+            // kind, then the arguments
+            double[] c = new double[args.length + 1];
+            c[0] = kindOf(name);
+            for (int i = 0; i < args.length; i++) {
+                try {
+                    c[i + 1] = Double.parseDouble(args[i].trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("bad argument in " + name + ": " + args[i]);
+                }
+            }
+            checkArgs(name, c.length - 1, c[0] == RMS ? 2 : 1);
+            conditions.add(c);
+            rest = rest.substring(close + 1).trim();
+            if (rest.startsWith(","))
+                rest = rest.substring(1).trim();
+            else if (!rest.isEmpty())
+                throw new IllegalArgumentException("bad trigger spec: " + spec);
+        }
+        if (conditions.isEmpty())
+            throw new IllegalArgumentException("empty trigger spec");
+
+        int n = conditions.size();
+        int[] kinds = new int[n];
+        float[] levels = new float[n];
+        WindowStats[] stats = new WindowStats[n];
+        for (int i = 0; i < n; i++) {
+            double[] c = conditions.get(i);
+            kinds[i] = (int) c[0];
+            levels[i] = (float) c[1];
+            if (kinds[i] == RMS) {
+                if (c[2] < 2)
+                    throw new IllegalArgumentException("rms needs a window of 2 samples or more");
+                stats[i] = new WindowStats(channels, (int) c[2], 1);
+            }
+        }
+        return new Trigger(channels, kinds, levels, stats);
+    }
+
+    private static int kindOf(String name) {
+        switch (name) {
+        case "threshold":
+            return THRESHOLD;
+        case "magnitude":
+            return MAGNITUDE;
+        case "slope":
+            return SLOPE;
+        case "rms":
+            return RMS;
+        default:
+            throw new IllegalArgumentException("unknown trigger: " + name);
+        }
+    }
+
+    private static void checkArgs(String name, int count, int n) {
+        if (count != n)
+            throw new IllegalArgumentException(name + " takes " + n + " argument(s)");
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public void reset() {
+        lastTimestamp = Long.MIN_VALUE;
+        for (WindowStats s : stats)
+            if (s != null)
+                s.reset();
+    }
+
+    /**
+     * Takes one sample, whose values start at {@code vals[offset]}, and
+     * tells whether any condition holds for it. Every condition sees every
+     * sample, so windows and slopes stay continuous.
+     */
+    public boolean update(long timestamp, float[] vals, int offset) {
+        boolean fired = false;
+        for (int i = 0; i < kinds.length; i++) {
+            float level = levels[i];
+            switch (kinds[i]) {
+            case THRESHOLD:
+                for (int c = 0; c < channels; c++)
+                    if (Math.abs(vals[offset + c]) >= level)
+                        fired = true;
+                break;
+            case MAGNITUDE:
+                double sq = 0;
+                for (int c = 0; c < channels; c++)
+                    sq += (double) vals[offset + c] * vals[offset + c];
+                if (sq >= (double) level * level)
+                    fired = true;
+                break;
+            case SLOPE:
+                long dt = timestamp - lastTimestamp;
+                if (lastTimestamp != Long.MIN_VALUE && dt > 0) {
+                    // |dv| / dt >= level, without dividing
+                    float max = level * (dt / 1e9f);
+                    for (int c = 0; c < channels; c++)
+                        if (Math.abs(vals[offset + c] - last[c]) >= max)
+                            fired = true;
+                }
+                break;
+            case RMS:
+                WindowStats s = stats[i];
+                if (s.update(timestamp, vals, offset)) {
+                    for (int c = 0; c < channels; c++)
+                        if (s.get(c, WindowStats.VARIANCE) >= level * level)
+                            fired = true;
+                }
+                break;
+            }
+        }
+        for (int c = 0; c < channels; c++)
+            last[c] = vals[offset + c];
+        lastTimestamp = timestamp;
+        return fired;
+    }
+}
@@ -0,0 +1,280 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Records only around events. Every sample goes into an in-memory
+ * pre-trigger ring first; when the {@link Trigger} fires on the trigger
+ * stream, a new session is started under the root (see
+ * {@link SegmentedRecorder}) with the last {@code preNs} from the ring,
+ * and the live samples follow until {@code postNs} after the trigger last
+ * fired. Then it goes back to filling the ring until the next event.
+ * <p>
+ * Nothing touches storage while it is quiet, yet the onset of an event,
+ * which is what fires the trigger, is recorded with what led up to it.
+ * The session of an event is created on a thread of its own while the
+ * ring goes on filling, and the ring is handed over once it is ready, so
+ * the producer never waits for storage. The ring is allocated once for
+ * {@code ringSamples} samples of all streams; if they arrive faster than
+ * that over {@code preNs} plus the time the session takes to create, the
+ * recorded lead-up is shorter. If a session cannot be created, it stops
+ * for good rather than trying again on every trigger; see
+ * {@link #isFailed()}. Called from the producer thread only, like any
+ * {@link SampleSink}.
+ */
+public class TriggeredRecorder implements SampleSink {
+
+    private final File root;
+    private final RecordingHeader header;
+    private final int triggerStream;
+    private final Trigger trigger;
+    private final long preNs;
+    private final long postNs;
+    private final long maxSegmentNs;
+    private final long maxSegmentBytes;
+    private final long quotaBytes;
+
+    // pre-trigger ring: stream, timestamp and values of each sample, the
+    // values stride wide
+    private final int capacity;
+    private final int stride;
+    private final int[] ringStreams;
+    private final long[] ringTimestamps;
+    private final float[] ringValues;
+    private int head = 0; // oldest sample
+    private int size = 0;
+
+    private SegmentedRecorder event;
+    private SegmentedRecorder lastEvent;
+    private long captureUntil;
+    private int events = 0;
+    private boolean stopped = false; // written under the lock
+    private volatile boolean failed = false;
+    private volatile IOException error = null;
+
+    // an event waiting for its session: from when it is recorded, and the
+    // session once the creating thread has made it
+    private boolean pending = false;
+    private long from;
+    private volatile long eventStart;
+    private volatile SegmentedRecorder prepared;
+    private final BackgroundTask creator;
+
+    public TriggeredRecorder(File root, RecordingHeader header, int triggerStream,
+                             Trigger trigger, long preNs, long postNs, int ringSamples,
+                             long maxSegmentNs, long maxSegmentBytes, long quotaBytes) {
+        if (trigger.getChannels() != header.getStream(triggerStream).getChannels())
+            throw new IllegalArgumentException("trigger has " + trigger.getChannels()
+                    + " channels, stream has " + header.getStream(triggerStream).getChannels());
+        if (preNs < 0 || postNs < 0 || ringSamples <= 0)
+            throw new IllegalArgumentException("pre, post and ring size must not be negative");
+        this.root = root;
+        this.header = header;
+        this.triggerStream = triggerStream;
+        this.trigger = trigger;
+        this.preNs = preNs;
+        this.postNs = postNs;
+        this.maxSegmentNs = maxSegmentNs;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.quotaBytes = quotaBytes;
+        int stride = 1;
+        for (int s = 0; s < header.getStreamCount(); s++)
+            stride = Math.max(stride, header.getStream(s).getChannels());
+        this.stride = stride;
+        this.capacity = ringSamples;
+        ringStreams = new int[capacity];
+        ringTimestamps = new long[capacity];
+        ringValues = new float[capacity * stride];
+        creator = new BackgroundTask("Trigger", new Runnable() {
+            @Override
+            public void run() {
+                createEvent();
+            }
+        });
+        creator.start();
+    }
+
+    /** True between a trigger and the end of its post-trigger window. */
+    public boolean isCapturing() {
+        return event != null || pending;
+    }
+
+    /**
+     * True while the session of a triggered event is still being created;
+     * the ring keeps its samples meanwhile.
+     */
+    public boolean isCreatingSession() {
+        return pending && prepared == null;
+    }
+
+    /** Number of events recorded or being recorded. */
+    public int getEventCount() {
+        return events;
+    }
+
+    /** The session being recorded, or null while waiting for the trigger. */
+    public SegmentedRecorder getEvent() {
+        return event;
+    }
+
+    /** The recorder of the segment being written, or null while waiting. */
+    public Recorder getCurrent() {
+        SegmentedRecorder e = event;
+        return e == null ? null : e.getCurrent();
+    }
+
+    /**
+     * True once an event could not be started; nothing is recorded after
+     * that and {@link #getError()} tells why.
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /** The error starting an event or the first one writing the last, or null. */
+    public IOException getError() {
+        if (error != null)
+            return error;
+        SegmentedRecorder e = lastEvent;
+        return e == null ? null : e.getError();
+    }
+
+    @Override
+    public void onSample(int stream, long timestamp, float[] values, int offset) {
+        if (stopped)
+            return;
+        if (failed) {
+            stop();
+            return;
+        }
+        boolean fired = stream == triggerStream && trigger.update(timestamp, values, offset);
+        if (event != null) {
+            if (fired)
+                captureUntil = Math.max(captureUntil, timestamp + postNs);
+            if (timestamp > captureUntil) {
+                endEvent();
+            } else {
+                event.onSample(stream, timestamp, values, offset);
+                return;
+            }
+        }
+        // the ring keeps filling while the session of an event is created
+        store(stream, timestamp, values, offset);
+        if (pending) {
+            if (fired)
+                captureUntil = Math.max(captureUntil, timestamp + postNs);
+            SegmentedRecorder r = prepared;
+            if (r != null) {
+                prepared = null;
+                startEvent(r);
+            }
+        } else if (fired) {
+            requestEvent(timestamp);
+        }
+    }
+
+    private void store(int stream, long timestamp, float[] values, int offset) {
+        int slot = head + size;
+        if (slot >= capacity)
+            slot -= capacity;
+        if (size == capacity)
+            head = head + 1 == capacity ? 0 : head + 1;
+        else
+            size++;
+        ringStreams[slot] = stream;
+        ringTimestamps[slot] = timestamp;
+        int channels = header.getStream(stream).getChannels();
+        System.arraycopy(values, offset, ringValues, slot * stride, channels);
+    }
+
+    // has the session of an event that starts preNs before the trigger at
+    // timestamp created in the background
+    private void requestEvent(long timestamp) {
+        from = timestamp - preNs;
+        long start = timestamp;
+        for (int i = 0; i < size; i++) {
+            long t = ringTimestamps[index(i)];
+            if (t >= from)
+                start = Math.min(start, t);
+        }
+        eventStart = start;
+        captureUntil = timestamp + postNs;
+        pending = true;
+        creator.request();
+    }
+
+    // creating thread; storage I/O that must not stall the producer
+    private void createEvent() {
+        SegmentedRecorder r;
+        try {
+            r = new SegmentedRecorder(root, header.startingAt(eventStart), maxSegmentNs,
+                    maxSegmentBytes, quotaBytes);
+        } catch (IOException e) {
+            // the next trigger would only redo the same I/O and fail again
+            error = e;
+            failed = true;
+            return;
+        }
+        synchronized (this) {
+            if (!stopped) {
+                prepared = r;
+                return;
+            }
+        }
+        // stopped meanwhile, before anything could be recorded
+        r.stop();
+    }
+
+    // hands the ring from the start of the event up to the end of its
+    // window to the new session
+    private void startEvent(SegmentedRecorder r) {
+        for (int i = 0; i < size; i++) {
+            int slot = index(i);
+            long t = ringTimestamps[slot];
+            if (t >= from && t <= captureUntil)
+                r.onSample(ringStreams[slot], t, ringValues, slot * stride);
+        }
+        head = 0;
+        size = 0;
+        pending = false;
+        event = r;
+        lastEvent = r;
+        events++;
+    }
+
+    private int index(int i) {
+        int slot = head + i;
+        return slot >= capacity ? slot - capacity : slot;
+    }
+
+    private void endEvent() {
+        event.stop();
+        event = null;
+    }
+
+    /**
+     * Stops waiting for events and finishes the one being recorded, if any,
+     * in the background. What is in the ring is dropped, unless it is the
+     * lead-up of an event whose session is ready. Called from the producer
+     * thread.
+     */
+    public void stop() {
+        if (stopped)
+            return;
+        SegmentedRecorder r;
+        synchronized (this) {
+            stopped = true;
+            r = prepared;
+            prepared = null;
+        }
+        // an event whose session is ready still gets what led up to it
+        if (r != null)
+            startEvent(r);
+        if (event != null)
+            endEvent();
+        pending = false;
+        size = 0;
+        creator.stop();
+    }
+}
@@ -0,0 +1,217 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+/**
+ * Rolling statistics over the last {@code window} samples of each channel:
+ * mean, variance, RMS, minimum, maximum and peak-to-peak. They are updated
+ * on every sample in constant time and fixed memory, and handed out every
+ * {@code hop} samples, which makes a derived stream of {@link #VALUES}
+ * values per input channel at a fraction of the input rate.
+ * <p>
+ * Mean and (population) variance follow Welford's update for a sliding
+ * window, in double, one sample added and one removed per step. Minimum
+ * and maximum come from monotonic deques of sample slots kept in fixed
+ * rings. Nothing allocates after construction.
+ * <p>
+ * Unlike a {@link FilterStage} this does not filter samples in place; it
+ * is fed the same raw samples and produces its own, slower stream.
+ */
+public class WindowStats {
+
+    public final static int MEAN = 0;
+    public final static int VARIANCE = 1;
+    public final static int RMS = 2;
+    public final static int MIN = 3;
+    public final static int MAX = 4;
+    public final static int PEAK_TO_PEAK = 5;
+    /** Values per channel in {@link #getValues()}. */
+    public final static int VALUES = 6;
+
+    /**
+     * Set in the sensor type of the source to make the type of its stats
+     * stream in a recording header, see {@link #streamType(int)}.
+     */
+    public final static int STREAM_TYPE_FLAG = 0x40000000;
+
+    private final int channels;
+    private final int window;
+    private final int hop;
+    private final double invWindow;
+
+    // last window samples, channel-major
+    private final float[] samples;
+    private final double[] mean;
+    private final double[] m2;
+    // per channel: ring of window + 1 sample slots, head and tail (tail
+    // exclusive)
+    private final int queueSize;
+    private final int[] minQueue, maxQueue;
+    private final int[] minHead, minTail, maxHead, maxTail;
+
+    private long count = 0; // samples seen since reset
+    private int slot = 0; // where the next sample goes
+    private int sinceEmit = 0;
+    private long timestamp;
+    private final float[] values;
+
+    public WindowStats(int channels, int window, int hop) {
+        if (channels <= 0)
+            throw new IllegalArgumentException("channels must be positive: " + channels);
+        if (window <= 0 || hop <= 0)
+            throw new IllegalArgumentException("window and hop must be positive");
+        this.channels = channels;
+        this.window = window;
+        this.hop = hop;
+        this.invWindow = 1.0 / window;
+        samples = new float[channels * window];
+        mean = new double[channels];
+        m2 = new double[channels];
+        queueSize = window + 1;
+        minQueue = new int[channels * queueSize];
+        maxQueue = new int[channels * queueSize];
+        minHead = new int[channels];
+        minTail = new int[channels];
+        maxHead = new int[channels];
+        maxTail = new int[channels];
+        values = new float[channels * VALUES];
+    }
+
+    /** Type to record the statistics of a {@code sourceType} stream as. */
+    public static int streamType(int sourceType) {
+        return sourceType | STREAM_TYPE_FLAG;
+    }
+
+    /** True if {@code type} is that of a stats stream. */
+    public static boolean isStreamType(int type) {
+        return (type & STREAM_TYPE_FLAG) != 0;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public int getHop() {
+        return hop;
+    }
+
+    public void reset() {
+        count = 0;
+        slot = 0;
+        sinceEmit = 0;
+        for (int c = 0; c < channels; c++) {
+            mean[c] = 0;
+            m2[c] = 0;
+            minHead[c] = minTail[c] = maxHead[c] = maxTail[c] = 0;
+        }
+    }
+
+    /**
+     * Adds one sample, whose values start at {@code vals[offset]}.
+     *
+     * @return true if a new set of statistics is ready in
+     * {@link #getValues()}: every {@code hop} samples once the window has
+     * filled for the first time
+     */
+    public boolean update(long timestamp, float[] vals, int offset) {
+        int slot = this.slot;
+        boolean full = count >= window;
+        for (int c = 0; c < channels; c++) {
+            int base = c * window;
+            double x = vals[offset + c];
+            if (full) {
+                // replace the oldest sample, the window size stays the same
+                double y = samples[base + slot];
+                double m = mean[c];
+                double next = m + (x - y) * invWindow;
+                m2[c] += (x - y) * (x - next + y - m);
+                mean[c] = next;
+            } else {
+                double d = x - mean[c];
+                mean[c] += d / (count + 1);
+                m2[c] += d * (x - mean[c]);
+            }
+            samples[base + slot] = (float) x;
+            push(minQueue, minHead, minTail, c, slot, full, true);
+            push(maxQueue, maxHead, maxTail, c, slot, full, false);
+        }
+        count++;
+        this.slot = slot + 1 == window ? 0 : slot + 1;
+        this.timestamp = timestamp;
+        if (count < window)
+            return false;
+        if (count > window && ++sinceEmit < hop)
+            return false;
+        sinceEmit = 0;
+        emit();
+        return true;
+    }
+
+    // appends the sample just stored in slot of channel c to its deque,
+    // dropping the one it replaced in the window from the front and those
+    // it makes irrelevant from the back
+    private void push(int[] q, int[] head, int[] tail, int c, int slot, boolean full,
+                      boolean min) {
+        int base = c * queueSize;
+        int sbase = c * window;
+        float x = samples[sbase + slot];
+        int h = head[c], t = tail[c];
+        // the other entries are of the last window - 1 samples, whose slots
+        // all differ from this one
+        if (full && h != t && q[base + h] == slot)
+            h = next(h);
+        while (h != t) {
+            int last = t == 0 ? queueSize - 1 : t - 1;
+            float v = samples[sbase + q[base + last]];
+            if (min ? v < x : v > x)
+                break;
+            t = last;
+        }
+        // at most window entries, so the ring never overflows
+        q[base + t] = slot;
+        head[c] = h;
+        tail[c] = next(t);
+    }
+
+    private int next(int i) {
+        return i + 1 == queueSize ? 0 : i + 1;
+    }
+
+    private void emit() {
+        int n = (int) Math.min(count, window);
+        for (int c = 0; c < channels; c++) {
+            int base = c * window;
+            int qbase = c * queueSize;
+            double m = mean[c];
+            double var = Math.max(0, m2[c] / n);
+            float min = samples[base + minQueue[qbase + minHead[c]]];
+            float max = samples[base + maxQueue[qbase + maxHead[c]]];
+            int o = c * VALUES;
+            values[o + MEAN] = (float) m;
+            values[o + VARIANCE] = (float) var;
+            values[o + RMS] = (float) Math.sqrt(var + m * m);
+            values[o + MIN] = min;
+            values[o + MAX] = max;
+            values[o + PEAK_TO_PEAK] = max - min;
+        }
+    }
+
+    /** Timestamp of the last sample of the window the values describe. */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * The latest statistics, {@link #VALUES} per channel: value {@code v}
+     * of channel {@code c} is at {@code c * VALUES + v}. Do not modify.
+     */
+    public float[] getValues() {
+        return values;
+    }
+
+    public float get(int channel, int value) {
+        return values[channel * VALUES + value];
+    }
+}
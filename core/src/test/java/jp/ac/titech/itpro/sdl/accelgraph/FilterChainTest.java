@@ -0,0 +1,92 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FilterChainTest {
+
+    private final static long MS = 1000 * 1000;
+
+    // value after one time constant of a unit step, sampled every periodNs
+    private static float stepAfterTau(long periodNs) {
+        FilterChain chain = FilterChain.parse(1, "lowpass(0.1)");
+        float[] v = {0};
+        chain.update(0, v, 0);
+        v[0] = 1;
+        for (long t = periodNs; t <= 100 * MS; t += periodNs)
+            chain.update(t, v, 0);
+        return chain.get(0);
+    }
+
+    @Test
+    public void lowPassCutoffDoesNotDependOnRate() {
+        float slow = stepAfterTau(10 * MS);
+        float fast = stepAfterTau(MS);
+        assertEquals(1 - Math.exp(-1), slow, 0.03);
+        assertEquals(1 - Math.exp(-1), fast, 0.03);
+        assertEquals(slow, fast, 0.03);
+    }
+
+    @Test
+    public void highPassAndGravityRemoveConstantOffset() {
+        FilterChain hp = FilterChain.parse(2, "highpass(0.05)");
+        FilterChain gravity = FilterChain.parse(2, "gravity(0.05)");
+        float[] v = {9.8f, -3};
+        for (int i = 0; i < 500; i++) {
+            hp.update(i * 5 * MS, v, 0);
+            gravity.update(i * 5 * MS, v, 0);
+        }
+        for (int c = 0; c < 2; c++) {
+            assertEquals(0, hp.get(c), 1e-3);
+            assertEquals(0, gravity.get(c), 1e-3);
+        }
+    }
+
+    @Test
+    public void medianDropsSpikes() {
+        FilterChain chain = FilterChain.parse(1, "median(5)");
+        float[] in = {1, 2, 100, 3, 4, -50, 5, 6, 7};
+        float[] want = {1, 1.5f, 2, 2.5f, 3, 3, 4, 4, 5};
+        for (int i = 0; i < in.length; i++)
+            assertEquals(want[i], chain.update(i, in, i)[0], 0);
+    }
+
+    @Test
+    public void biquadLowPassSettlesAndAttenuates() {
+        FilterChain chain = FilterChain.parse(1, "biquad_lowpass(200, 5, 0.7071)");
+        float[] v = new float[1];
+        float peak = 0;
+        for (int i = 0; i < 2000; i++) {
+            // DC of 2 with 50 Hz on top
+            v[0] = 2 + (float) Math.sin(2 * Math.PI * 50 * i / 200.0 + 0.3);
+            chain.update(i * 5 * MS, v, 0);
+            if (i >= 1000)
+                peak = Math.max(peak, Math.abs(chain.get(0) - 2));
+        }
+        assertEquals(0, peak, 0.02);
+    }
+
+    @Test
+    public void emptyChainPassesThrough() {
+        FilterChain chain = FilterChain.parse(3, " ");
+        assertEquals(0, chain.getStageCount());
+        float[] out = chain.update(0, new float[]{0, 1, 2, 3}, 1);
+        assertEquals(1, out[0], 0);
+        assertEquals(3, out[2], 0);
+    }
+
+    @Test
+    public void rejectsBadSpecs() {
+        String[] bad = {"lowpass", "lowpass(x)", "lowpass(1, 2)", "notch(1)",
+                "median(5) lowpass(1)", "biquad_lowpass(200, 150, 1)"};
+        for (String spec : bad) {
+            try {
+                FilterChain.parse(3, spec);
+                fail(spec);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverTheRangeInOrder() {
+        long prev = -1;
+        for (int b = 0; b < LatencyHistogram.BUCKETS; b++) {
+            long upper = LatencyHistogram.upperBound(b);
+            assertTrue(upper > prev);
+            assertEquals(b, LatencyHistogram.bucketOf(prev + 1));
+            assertEquals(b, LatencyHistogram.bucketOf(upper));
+            prev = upper;
+        }
+        assertEquals(Long.MAX_VALUE, prev);
+    }
+
+    @Test
+    public void percentilesAreWithinOneBucket() {
+        LatencyHistogram h = new LatencyHistogram();
+        Random rnd = new Random(3);
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            // mostly around 5 ms with a long tail
+            values[i] = 4000000 + rnd.nextInt(2000000) + (i % 100 == 0 ? rnd.nextInt(50000000) : 0);
+            h.record(values[i]);
+        }
+        Arrays.sort(values);
+        assertEquals(values.length, h.getCount());
+        assertEquals(values[values.length - 1], h.getMax());
+        long p50 = values[values.length / 2 - 1], p99 = values[values.length * 99 / 100 - 1];
+        assertTrue(h.getPercentile(0.5) >= p50 && h.getPercentile(0.5) <= p50 * 1.125);
+        assertTrue(h.getPercentile(0.99) >= p99 && h.getPercentile(0.99) <= p99 * 1.125);
+    }
+
+    @Test
+    public void emptyAndReset() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getPercentile(0.5));
+        h.record(-5);
+        h.record(7);
+        assertEquals(0, h.getPercentile(0.5));
+        assertEquals(7, h.getPercentile(1));
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMax());
+        assertEquals(0, h.getPercentile(0.99));
+    }
+}
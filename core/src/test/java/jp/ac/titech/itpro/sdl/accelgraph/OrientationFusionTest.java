@@ -0,0 +1,78 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OrientationFusionTest {
+
+    private final static float EPS = 1e-3f;
+
+    @Test
+    public void flatDevicePointingNorth() {
+        OrientationFusion fusion = new OrientationFusion();
+        assertFalse(fusion.updateAccel(new float[]{0, 0, 9.8f}, 0));
+        assertTrue(fusion.updateMagnetic(new float[]{0, 20, -40}, 0));
+        assertEquals(0, fusion.getAzimuth(), EPS);
+        assertEquals(0, fusion.getPitch(), EPS);
+        assertEquals(0, fusion.getRoll(), EPS);
+        assertEquals(1, fusion.getQuaternion()[0], EPS);
+    }
+
+    @Test
+    public void flatDevicePointingEast() {
+        OrientationFusion fusion = new OrientationFusion();
+        fusion.updateAccel(new float[]{0, 0, 9.8f}, 0);
+        // north is now to the device's left
+        assertTrue(fusion.updateMagnetic(new float[]{-20, 0, -40}, 0));
+        assertEquals(Math.PI / 2, fusion.getAzimuth(), EPS);
+    }
+
+    @Test
+    public void rejectsFreeFall() {
+        OrientationFusion fusion = new OrientationFusion();
+        fusion.updateMagnetic(new float[]{0, 20, -40}, 0);
+        assertFalse(fusion.updateAccel(new float[]{0, 0, 0.1f}, 0));
+        assertFalse(fusion.isValid());
+    }
+
+    @Test
+    public void rotationVectorMatchesAccelMagnetic() {
+        OrientationFusion a = new OrientationFusion();
+        a.updateAccel(new float[]{3, 2, 9}, 0);
+        a.updateMagnetic(new float[]{10, 25, -30}, 0);
+        float[] q = a.getQuaternion();
+
+        OrientationFusion b = new OrientationFusion();
+        b.updateRotationVector(new float[]{q[1], q[2], q[3]}, 0);
+        assertEquals(a.getAzimuth(), b.getAzimuth(), EPS);
+        assertEquals(a.getPitch(), b.getPitch(), EPS);
+        assertEquals(a.getRoll(), b.getRoll(), EPS);
+    }
+
+    @Test
+    public void madgwickConvergesToAccelMagneticAttitude() {
+        float[] accel = {3, 2, 9};
+        float[] magnetic = {10, 25, -30};
+        OrientationFusion expected = new OrientationFusion();
+        expected.updateAccel(accel, 0);
+        expected.updateMagnetic(magnetic, 0);
+
+        MadgwickFilter filter = new MadgwickFilter(0.5f);
+        filter.setAccel(accel, 0);
+        filter.setMagnetic(magnetic, 0);
+        float[] still = new float[3];
+        for (int i = 0; i < 5000; i++)
+            filter.updateGyro(1 + i * 5000000L, still, 0);
+
+        float[] q = new float[4];
+        filter.getQuaternion(q, 0);
+        OrientationFusion actual = new OrientationFusion();
+        actual.updateQuaternion(q, 0);
+        assertEquals(expected.getAzimuth(), actual.getAzimuth(), EPS);
+        assertEquals(expected.getPitch(), actual.getPitch(), EPS);
+        assertEquals(expected.getRoll(), actual.getRoll(), EPS);
+    }
+}
@@ -0,0 +1,233 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecordingTest {
+
+    private final static int BLOCK_SIZE = 16;
+
+    private File file;
+    private RecordingHeader header;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("recording", RecordingFormat.FILE_EXTENSION);
+        header = new RecordingHeader(new SensorInfo[]{
+                new SensorInfo(1, "accel", "test", 0.01f, 20, 3),
+                new SensorInfo(5, "light", "test", 1, 1000, 1),
+        }, 123, 456);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        RecordingIndex.fileOf(file).delete();
+    }
+
+    @Test
+    public void writerOutputReadsBack() throws IOException {
+        writeAndReadBack(false);
+    }
+
+    @Test
+    public void compressedWriterOutputReadsBack() throws IOException {
+        writeAndReadBack(true);
+    }
+
+    private void writeAndReadBack(boolean compress) throws IOException {
+        RecordingWriter writer = new RecordingWriter(file, header, BLOCK_SIZE, 1024, compress);
+        float[] v = new float[3];
+        for (int i = 0; i < 100; i++) {
+            v[0] = i;
+            v[1] = i + 0.5f;
+            v[2] = -i;
+            writer.append(i % 3 == 0 ? 1 : 0, 1000L * i, v, 0);
+        }
+        writer.close();
+        assertEquals(100, writer.getSampleCount());
+
+        int[] seen = readBack();
+        assertEquals(66, seen[0]);
+        assertEquals(34, seen[1]);
+    }
+
+    @Test
+    public void rangeReadUsesTheIndex() throws IOException {
+        // accel every ms, light every 7 ms, 16 samples per block
+        RecordingWriter writer = new RecordingWriter(file, header, BLOCK_SIZE, 1024, true);
+        float[] v = new float[3];
+        for (int i = 0; i < 10000; i++) {
+            v[0] = i;
+            writer.append(0, 1000000L * i, v, 0);
+            if (i % 7 == 0)
+                writer.append(1, 1000000L * i + 1, v, 0);
+        }
+        writer.close();
+
+        RecordingIndex index = RecordingIndex.open(file);
+        assertEquals(10000 / BLOCK_SIZE + (10000 / 7 + 1 + BLOCK_SIZE - 1) / BLOCK_SIZE, index.size());
+        long from = 5000 * 1000000L, to = 5030 * 1000000L;
+        long start = index.startOf(from);
+        long end = index.endOf(to);
+        index.close();
+        // only the neighbourhood of the range is read
+        assertTrue(start > file.length() / 3);
+        assertTrue(end - start < file.length() / 50);
+
+        RecordingReader reader = new RecordingReader(file);
+        reader.setRange(from, to + 1);
+        long[] ts = new long[BLOCK_SIZE];
+        float[] vs = new float[BLOCK_SIZE * 3];
+        int[] seen = new int[2];
+        int n;
+        while ((n = reader.readBlock(ts, vs)) >= 0) {
+            int s = reader.getBlockStream();
+            int channels = header.getStream(s).getChannels();
+            for (int i = 0; i < n; i++) {
+                assertTrue(ts[i] >= from && ts[i] <= to + 1);
+                assertEquals(ts[i] / 1000000L, (long) vs[i * channels]);
+                seen[s]++;
+            }
+        }
+        reader.close();
+        assertEquals(31, seen[0]);
+        assertEquals(4, seen[1]); // 5005, 5012, 5019 and 5026
+
+        // without the index the range still comes out the same
+        assertTrue(RecordingIndex.fileOf(file).delete());
+        assertNull(RecordingIndex.open(file));
+        reader = new RecordingReader(file);
+        reader.setRange(from, to + 1);
+        seen = new int[2];
+        while ((n = reader.readBlock(ts, vs)) >= 0)
+            seen[reader.getBlockStream()] += n;
+        reader.close();
+        assertEquals(31, seen[0]);
+        assertEquals(4, seen[1]);
+    }
+
+    @Test
+    public void recorderWritesEverySample() throws IOException, InterruptedException {
+        Recorder recorder = new Recorder(file, header, BLOCK_SIZE, true);
+        recorder.start();
+        float[] v = new float[3];
+        for (int i = 0; i < 1000; i++) {
+            v[0] = i;
+            v[1] = i + 0.5f;
+            v[2] = -i;
+            recorder.onSample(i % 3 == 0 ? 1 : 0, 1000L * i, v, 0);
+            if (i % BLOCK_SIZE == 0)
+                Thread.sleep(1); // let the writer keep up with the pool
+        }
+        recorder.stop();
+        while (recorder.getWritten() + recorder.getDropped() < 1000 && recorder.getError() == null)
+            Thread.sleep(10);
+        Thread.sleep(50); // the file is closed after the last count update
+        assertNull(recorder.getError());
+
+        int[] seen = readBack();
+        assertEquals(recorder.getWritten(), seen[0] + seen[1]);
+
+        RecordingReader reader = new RecordingReader(file);
+        while (reader.readBlock(new long[BLOCK_SIZE], new float[BLOCK_SIZE * 3]) >= 0) {
+        }
+        reader.close();
+        List<LatencyStats> latencies = reader.getLatencies();
+        assertEquals(4, latencies.size());
+        for (LatencyStats st : latencies) {
+            int s = st.getStream();
+            assertTrue(st.getP50() <= st.getP99() && st.getP99() <= st.getMax());
+            if (st.getKind() == LatencyStats.KIND_INTERVAL) {
+                // every third sample goes to stream 1, 1 us apart
+                assertEquals(s == 0 ? 665 : 333, st.getCount());
+                assertEquals(s == 0 ? 2000 : 3000, st.getMax());
+            } else {
+                assertEquals(LatencyStats.KIND_DISK, st.getKind());
+                assertEquals(seen[s], st.getCount());
+            }
+        }
+    }
+
+    @Test
+    public void compressionIsExactAndSmaller() throws IOException {
+        // 400 Hz with a little jitter, values on a 0.01 grid like a real
+        // accelerometer, plus some special values
+        int samples = 4000;
+        long[] ts = new long[samples];
+        float[] vs = new float[samples * 3];
+        Random rnd = new Random(5);
+        long t = 1000000000L;
+        for (int i = 0; i < samples; i++) {
+            t += 2500000 + rnd.nextInt(20000) - 10000;
+            ts[i] = t;
+            vs[3 * i] = Math.round(100 * (float) Math.sin(i * 0.01) + rnd.nextInt(5)) * 0.01f;
+            vs[3 * i + 1] = i < 2000 ? 0.5f : Math.round(rnd.nextGaussian() * 20) * 0.01f;
+            vs[3 * i + 2] = i % 500 == 7 ? Float.NaN : i % 500 == 9 ? -0f : 9.81f;
+        }
+        long[] sizes = new long[2];
+        for (int k = 0; k < 2; k++) {
+            RecordingWriter writer = new RecordingWriter(file, header, 512, 4096, k == 1);
+            for (int i = 0; i < samples; i++)
+                writer.append(0, ts[i], vs, 3 * i);
+            writer.close();
+            sizes[k] = file.length();
+
+            RecordingReader reader = new RecordingReader(file);
+            long[] rts = new long[512];
+            float[] rvs = new float[512 * 3];
+            int i = 0, n;
+            while ((n = reader.readBlock(rts, rvs)) >= 0) {
+                for (int j = 0; j < n; j++, i++) {
+                    assertEquals(ts[i], rts[j]);
+                    for (int c = 0; c < 3; c++)
+                        assertEquals(Float.floatToRawIntBits(vs[3 * i + c]),
+                                Float.floatToRawIntBits(rvs[3 * j + c]));
+                }
+            }
+            reader.close();
+            assertEquals(samples, i);
+        }
+        assertTrue("raw " + sizes[0] + " compressed " + sizes[1], sizes[1] * 2 < sizes[0]);
+    }
+
+    // checks the samples against what the tests wrote, returns the count per stream
+    private int[] readBack() throws IOException {
+        RecordingReader reader = new RecordingReader(file);
+        assertEquals(2, reader.getHeader().getStreamCount());
+        assertEquals("light", reader.getHeader().getStream(1).getName());
+        assertEquals(123, reader.getHeader().getStartNs());
+        assertEquals(456, reader.getHeader().getStartWallMs());
+
+        long[] ts = new long[BLOCK_SIZE];
+        float[] vs = new float[BLOCK_SIZE * 3];
+        int[] seen = new int[2];
+        int n;
+        while ((n = reader.readBlock(ts, vs)) >= 0) {
+            int stream = reader.getBlockStream();
+            int channels = stream == 0 ? 3 : 1;
+            for (int k = 0; k < n; k++) {
+                int i = (int) (ts[k] / 1000);
+                assertEquals(stream, i % 3 == 0 ? 1 : 0);
+                assertEquals(i, vs[k * channels], 0);
+                if (channels == 3) {
+                    assertEquals(i + 0.5f, vs[k * channels + 1], 0);
+                    assertEquals(-i, vs[k * channels + 2], 0);
+                }
+            }
+            seen[stream] += n;
+        }
+        reader.close();
+        return seen;
+    }
+}
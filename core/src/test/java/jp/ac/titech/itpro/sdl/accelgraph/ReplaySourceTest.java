@@ -0,0 +1,112 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReplaySourceTest {
+
+    private final static long MS = 1000L * 1000;
+    private final static long START = 1000 * MS;
+    private final static int SAMPLES = 2000;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        file = File.createTempFile("replay", RecordingFormat.FILE_EXTENSION);
+        RecordingHeader header = new RecordingHeader(new SensorInfo[]{
+                new SensorInfo(1, "accel", "test", 0.01f, 20, 3),
+                new SensorInfo(5, "light", "test", 1, 1000, 1),
+        }, START, 0);
+        // accel at 200 Hz, light every 300 ms: the light blocks are only
+        // closed by the block span limit, long after their first sample
+        Recorder recorder = new Recorder(file, header, 64, true);
+        recorder.start();
+        float[] v = new float[3];
+        for (int i = 0; i < SAMPLES; i++) {
+            long ts = START + i * 5 * MS;
+            v[0] = i;
+            recorder.append(0, ts, v, 0);
+            if (i % 60 == 0)
+                recorder.append(1, ts + 1, v, 0);
+            if (i % 64 == 0)
+                Thread.sleep(1);
+        }
+        recorder.stop();
+        while (recorder.getWritten() + recorder.getDropped() < SAMPLES + SAMPLES / 60 + 1)
+            Thread.sleep(10);
+        Thread.sleep(50);
+        assertEquals(0, recorder.getDropped());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        RecordingIndex.fileOf(file).delete();
+    }
+
+    private static class Collector implements SampleSink {
+        long last = Long.MIN_VALUE;
+        int[] counts = new int[2];
+        boolean ordered = true;
+
+        @Override
+        public void onSample(int stream, long timestamp, float[] values, int offset) {
+            if (timestamp < last)
+                ordered = false;
+            last = timestamp;
+            counts[stream]++;
+            if (stream == 0)
+                assertEquals((timestamp - START) / (5 * MS), (long) values[offset]);
+        }
+    }
+
+    @Test
+    public void maxSpeedReplaysEverythingInOrder() throws IOException {
+        ReplaySource replay = new ReplaySource(file);
+        replay.setSpeed(ReplaySource.MAX_SPEED);
+        Collector c = new Collector();
+        replay.addSink(c);
+        final ReplaySource[] told = new ReplaySource[1];
+        replay.setListener(new ReplaySource.Listener() {
+            @Override
+            public void onFinished(ReplaySource source) {
+                told[0] = source;
+            }
+        });
+        replay.run();
+        assertNull(replay.getError());
+        assertTrue(replay.isFinished());
+        assertSame(replay, told[0]);
+        assertTrue(c.ordered);
+        assertEquals(SAMPLES, c.counts[0]);
+        assertEquals(SAMPLES / 60 + 1, c.counts[1]);
+        assertEquals(SAMPLES + SAMPLES / 60 + 1, replay.getReplayed());
+    }
+
+    @Test
+    public void acceleratedReplayFollowsTimestamps() throws IOException, InterruptedException {
+        // 10 s of data at 50x takes about 200 ms
+        ReplaySource replay = new ReplaySource(file);
+        replay.setSpeed(50);
+        Collector c = new Collector();
+        replay.addSink(c);
+        long t0 = System.nanoTime();
+        replay.start();
+        while (!replay.isFinished())
+            Thread.sleep(5);
+        long elapsed = System.nanoTime() - t0;
+        assertNull(replay.getError());
+        assertTrue(c.ordered);
+        assertTrue("too fast: " + elapsed, elapsed >= 190 * MS);
+    }
+}
@@ -0,0 +1,52 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SampleRingBufferTest {
+
+    @Test
+    public void readsSamplesInOrder() {
+        SampleRingBuffer ring = new SampleRingBuffer(2, 8);
+        SampleRingBuffer.Cursor cursor = ring.newCursor();
+        for (int i = 0; i < 5; i++)
+            ring.put(i, new float[]{i, -i});
+
+        long[] ts = new long[8];
+        float[] vs = new float[16];
+        assertEquals(5, cursor.available());
+        assertEquals(5, cursor.read(ts, vs, 8));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, ts[i]);
+            assertEquals(i, vs[2 * i], 0);
+            assertEquals(-i, vs[2 * i + 1], 0);
+        }
+        assertEquals(0, cursor.read(ts, vs, 8));
+    }
+
+    @Test
+    public void slowCursorDropsOldestSamples() {
+        SampleRingBuffer ring = new SampleRingBuffer(1, 4);
+        SampleRingBuffer.Cursor cursor = ring.newCursor();
+        for (int i = 0; i < 10; i++)
+            ring.put(i, new float[]{i});
+
+        long[] ts = new long[4];
+        float[] vs = new float[4];
+        // the oldest slot may be the one being overwritten, so a lapped
+        // cursor gets one sample less than the capacity
+        assertEquals(3, cursor.read(ts, vs, 4));
+        assertEquals(7, cursor.getDropped());
+        assertEquals(7, ts[0]);
+        assertEquals(9, vs[2], 0);
+    }
+
+    @Test
+    public void cursorStartsAtHead() {
+        SampleRingBuffer ring = new SampleRingBuffer(1, 4);
+        ring.put(0, new float[]{1});
+        SampleRingBuffer.Cursor cursor = ring.newCursor();
+        assertEquals(0, cursor.available());
+    }
+}
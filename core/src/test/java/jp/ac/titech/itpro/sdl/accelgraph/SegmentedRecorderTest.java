@@ -0,0 +1,173 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static jp.ac.titech.itpro.sdl.accelgraph.SessionFixtures.ACCEL;
+import static jp.ac.titech.itpro.sdl.accelgraph.SessionFixtures.MS;
+import static jp.ac.titech.itpro.sdl.accelgraph.SessionFixtures.START;
+import static jp.ac.titech.itpro.sdl.accelgraph.SessionFixtures.WALL;
+import static jp.ac.titech.itpro.sdl.accelgraph.SessionFixtures.deleteTree;
+import static jp.ac.titech.itpro.sdl.accelgraph.SessionFixtures.newRoot;
+
+public class SegmentedRecorderTest {
+
+    private File root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = newRoot("sessions");
+    }
+
+    @After
+    public void tearDown() {
+        deleteTree(root);
+    }
+
+    private static RecordingHeader header(long wallMs) {
+        return SessionFixtures.header(wallMs, ACCEL);
+    }
+
+    // records n samples 5 ms apart and waits until the session is complete
+    private static SessionManifest record(SegmentedRecorder recorder, int n)
+            throws IOException, InterruptedException {
+        feed(recorder, 0, n);
+        return finish(recorder);
+    }
+
+    // samples from to to, 5 ms apart; slowly enough that the recorder of
+    // the next segment is ready in time for every cut
+    private static void feed(SegmentedRecorder recorder, int from, int to)
+            throws InterruptedException {
+        float[] v = new float[3];
+        for (int i = from; i < to; i++) {
+            v[0] = i;
+            recorder.onSample(0, START + i * 5 * MS, v, 0);
+            if (i % 32 == 0)
+                Thread.sleep(5);
+        }
+    }
+
+    private static SessionManifest finish(SegmentedRecorder recorder)
+            throws IOException, InterruptedException {
+        recorder.stop();
+        SessionManifest m = SessionManifest.read(recorder.getDirectory());
+        for (int i = 0; i < 500 && !m.isComplete(); i++) {
+            Thread.sleep(10);
+            m = SessionManifest.read(recorder.getDirectory());
+        }
+        assertNull(recorder.getError());
+        assertTrue(m.isComplete());
+        return m;
+    }
+
+    @Test
+    public void rotatesByTimeIntoClosedSegments() throws IOException, InterruptedException {
+        // 2000 samples 5 ms apart, 1 s per segment
+        SegmentedRecorder recorder = new SegmentedRecorder(root, header(WALL), 1000 * MS,
+                Long.MAX_VALUE, 0);
+        SessionManifest m = record(recorder, 2000);
+        assertEquals(10, recorder.getSegmentCount());
+        assertEquals(2000, recorder.getWritten());
+
+        List<SessionManifest.Segment> segments = m.getSegments();
+        assertEquals(10, segments.size());
+        assertEquals(START, m.getStartNs());
+        assertEquals(WALL, m.getStartWallMs());
+        File[] files = m.getSegmentFiles(recorder.getDirectory());
+        for (int i = 0; i < segments.size(); i++) {
+            SessionManifest.Segment s = segments.get(i);
+            assertTrue(s.isClosed());
+            assertEquals(200, s.getSamples());
+            assertEquals(START + i * 1000 * MS, s.getFirstNs());
+            assertEquals(START + i * 1000 * MS + 995 * MS, s.getLastNs());
+            assertEquals(files[i].length(), s.getBytes());
+
+            RecordingReader reader = new RecordingReader(files[i]);
+            assertEquals(s.getFirstNs(), reader.getHeader().getStartNs());
+            assertEquals(WALL + i * 1000, reader.getHeader().getStartWallMs());
+            reader.close();
+        }
+        // the recorder kept ready for the next segment leaves no file
+        assertFalse(new File(recorder.getDirectory(), "segment-0010.agr").exists());
+    }
+
+    @Test
+    public void rotatesBySize() throws IOException, InterruptedException {
+        SegmentedRecorder recorder = new SegmentedRecorder(root, header(WALL), Long.MAX_VALUE,
+                1, 0);
+        // the size is only known once the writer has written a block of the
+        // segment, so how many segments there are depends on timing; none
+        // may lose samples
+        feed(recorder, 0, 200);
+        for (int i = 0; i < 200 && recorder.getCurrent().getBytesWritten() == 0; i++)
+            Thread.sleep(10);
+        feed(recorder, 200, 1000);
+        SessionManifest m = finish(recorder);
+        assertTrue(m.getSegments().size() > 1);
+        long samples = 0;
+        for (SessionManifest.Segment s : m.getSegments())
+            samples += s.getSamples();
+        assertEquals(1000, samples);
+    }
+
+    @Test
+    public void replaysAllSegmentsInOrder() throws IOException, InterruptedException {
+        SegmentedRecorder recorder = new SegmentedRecorder(root, header(WALL), 700 * MS,
+                Long.MAX_VALUE, 0);
+        SessionManifest m = record(recorder, 2000);
+        ReplaySource replay = new ReplaySource(m.getSegmentFiles(recorder.getDirectory()));
+        replay.setSpeed(ReplaySource.MAX_SPEED);
+        final long[] expected = {0};
+        replay.addSink(new SampleSink() {
+            @Override
+            public void onSample(int stream, long timestamp, float[] values, int offset) {
+                assertEquals(START + expected[0] * 5 * MS, timestamp);
+                assertEquals(expected[0], (long) values[offset]);
+                expected[0]++;
+            }
+        });
+        replay.run();
+        assertNull(replay.getError());
+        assertEquals(2000, expected[0]);
+    }
+
+    @Test
+    public void quotaDeletesOldestSessionsOnly() throws IOException, InterruptedException {
+        File[] old = {
+                fakeSession("20170101-000000", 4000),
+                fakeSession("20170102-000000", 4000),
+                fakeSession("20170103-000000", 4000),
+        };
+        // the first old session goes right away, the second once the new
+        // one (two segments of some 700 bytes) has grown past the quota
+        SegmentedRecorder recorder = new SegmentedRecorder(root, header(WALL), 1000 * MS,
+                Long.MAX_VALUE, 9000);
+        assertEquals(3, SessionManifest.listSessions(root).length);
+        record(recorder, 400);
+        File[] sessions = SessionManifest.listSessions(root);
+        assertArrayEquals(new File[]{old[2], recorder.getDirectory()}, sessions);
+        assertEquals(recorder.getDirectory(), SessionManifest.latestSession(root));
+    }
+
+    private File fakeSession(String name, int bytes) throws IOException {
+        File dir = new File(root, name);
+        assertTrue(dir.mkdir());
+        new SessionManifest(0, 0).write(dir);
+        FileOutputStream out = new FileOutputStream(new File(dir, "segment-0000.agr"));
+        out.write(new byte[bytes]);
+        out.close();
+        return dir;
+    }
+}
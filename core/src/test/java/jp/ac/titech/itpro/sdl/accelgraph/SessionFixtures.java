@@ -0,0 +1,41 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertTrue;
+
+/** Roots, headers and clean-up shared by the tests of recording sessions. */
+class SessionFixtures {
+
+    final static long MS = 1000L * 1000;
+    final static long START = 1000 * MS;
+    final static long WALL = 1500000000000L;
+
+    final static SensorInfo ACCEL = new SensorInfo(1, "accel", "test", 0.01f, 20, 3);
+    final static SensorInfo LIGHT = new SensorInfo(5, "light", "test", 1, 1000, 1);
+
+    private SessionFixtures() {
+    }
+
+    /** A new empty directory for sessions. */
+    static File newRoot(String prefix) throws IOException {
+        File root = File.createTempFile(prefix, "");
+        assertTrue(root.delete());
+        assertTrue(root.mkdir());
+        return root;
+    }
+
+    static void deleteTree(File f) {
+        File[] files = f.listFiles();
+        if (files != null)
+            for (File c : files)
+                deleteTree(c);
+        f.delete();
+    }
+
+    /** A header of the given streams starting at {@link #START}. */
+    static RecordingHeader header(long wallMs, SensorInfo... streams) {
+        return new RecordingHeader(streams, START, wallMs);
+    }
+}
@@ -0,0 +1,72 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpectrumTest {
+
+    @Test
+    public void realFftMatchesNaiveDft() {
+        Random random = new Random(5);
+        for (int n = 4; n <= 1024; n *= 2) {
+            float[] x = new float[n];
+            for (int i = 0; i < n; i++)
+                x[i] = (float) random.nextGaussian();
+            double[] re = new double[n / 2 + 1], im = new double[n / 2 + 1];
+            for (int k = 0; k <= n / 2; k++) {
+                for (int i = 0; i < n; i++) {
+                    double a = -2 * Math.PI * k * i / n;
+                    re[k] += x[i] * Math.cos(a);
+                    im[k] += x[i] * Math.sin(a);
+                }
+            }
+            new RealFft(n).forward(x);
+            double tolerance = 1e-4 * n;
+            assertEquals(re[0], x[0], tolerance);
+            assertEquals(re[n / 2], x[1], tolerance);
+            for (int k = 1; k < n / 2; k++) {
+                assertEquals("n=" + n + " re " + k, re[k], x[2 * k], tolerance);
+                assertEquals("n=" + n + " im " + k, im[k], x[2 * k + 1], tolerance);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSizesThatAreNotPowersOfTwo() {
+        new RealFft(1000);
+    }
+
+    @Test
+    public void analyzerFindsToneAmplitudeAndRate() {
+        // 200 Hz sampling; 25 Hz of amplitude 2 on x, 50 Hz of 0.5 on z,
+        // all on top of gravity
+        int size = 256;
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer(3, size);
+        float[] v = new float[3];
+        for (int i = 0; i < size + 37; i++) {
+            double t = i / 200.0;
+            v[0] = (float) (2 * Math.sin(2 * Math.PI * 25 * t));
+            v[1] = 0;
+            v[2] = (float) (9.8 + 0.5 * Math.cos(2 * Math.PI * 50 * t));
+            analyzer.add(i * 5000000L, v, 0);
+            assertEquals(i + 1 >= size, analyzer.isFull());
+        }
+        assertTrue(analyzer.compute());
+        assertEquals(200, analyzer.getSampleRate(), 1e-3);
+        assertEquals(25 / analyzer.getBinHz(), analyzer.getPeakBin(0), 1e-3);
+        assertEquals(50 / analyzer.getBinHz(), analyzer.getPeakBin(2), 1e-3);
+        assertEquals(2, analyzer.getMagnitude(0, analyzer.getPeakBin(0)), 1e-3);
+        assertEquals(0.5, analyzer.getMagnitude(2, analyzer.getPeakBin(2)), 1e-3);
+        // the mean is removed, so gravity does not show up
+        assertEquals(0, analyzer.getMagnitude(2, 0), 1e-3);
+        assertEquals(0, analyzer.getMagnitude(1, 10), 0);
+
+        analyzer.reset();
+        assertFalse(analyzer.compute());
+    }
+}
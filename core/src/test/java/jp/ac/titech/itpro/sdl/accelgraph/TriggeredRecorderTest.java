@@ -0,0 +1,264 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static jp.ac.titech.itpro.sdl.accelgraph.SessionFixtures.ACCEL;
+import static jp.ac.titech.itpro.sdl.accelgraph.SessionFixtures.LIGHT;
+import static jp.ac.titech.itpro.sdl.accelgraph.SessionFixtures.MS;
+import static jp.ac.titech.itpro.sdl.accelgraph.SessionFixtures.START;
+import static jp.ac.titech.itpro.sdl.accelgraph.SessionFixtures.WALL;
+import static jp.ac.titech.itpro.sdl.accelgraph.SessionFixtures.deleteTree;
+import static jp.ac.titech.itpro.sdl.accelgraph.SessionFixtures.newRoot;
+
+public class TriggeredRecorderTest {
+
+    private File root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = newRoot("triggered");
+    }
+
+    @After
+    public void tearDown() {
+        deleteTree(root);
+    }
+
+    private static RecordingHeader header() {
+        return SessionFixtures.header(WALL, ACCEL, LIGHT);
+    }
+
+    private static long ts(int i) {
+        return START + i * 5 * MS;
+    }
+
+    // n accel samples 5 ms apart, 0 except for spikes of 20 at the given
+    // indexes and the index / 1000 on y, and a light sample every tenth;
+    // after a spike, waits for the session as the sensors would
+    private static void feed(TriggeredRecorder recorder, int n, int... spikes)
+            throws InterruptedException {
+        float[] v = new float[3];
+        float[] light = new float[1];
+        for (int i = 0; i < n; i++) {
+            v[0] = 0;
+            for (int s : spikes)
+                if (s == i)
+                    v[0] = 20;
+            v[1] = i / 1000f;
+            recorder.onSample(0, ts(i), v, 0);
+            for (int k = 0; k < 500 && recorder.isCreatingSession(); k++)
+                Thread.sleep(10);
+            if (i % 10 == 0) {
+                light[0] = i;
+                recorder.onSample(1, ts(i), light, 0);
+            }
+            if (i % 64 == 0)
+                Thread.sleep(1);
+        }
+        recorder.stop();
+    }
+
+    // the sessions under the root, once there are expected complete ones
+    private File[] completeSessions(int expected) throws IOException, InterruptedException {
+        File[] sessions = SessionManifest.listSessions(root);
+        for (int i = 0; i < 500; i++) {
+            sessions = SessionManifest.listSessions(root);
+            boolean complete = sessions.length == expected;
+            for (File s : sessions)
+                complete &= SessionManifest.read(s).isComplete();
+            if (complete)
+                return sessions;
+            Thread.sleep(10);
+        }
+        fail("sessions not complete");
+        return sessions;
+    }
+
+    // count, first and last index of the accel samples of a session, which
+    // must be consecutive, and the number of light samples
+    private static int[] replay(File session) throws IOException {
+        ReplaySource replay = new ReplaySource(SessionManifest.read(session).getSegmentFiles(session));
+        replay.setSpeed(ReplaySource.MAX_SPEED);
+        final int[] seen = new int[4]; // count, first, last, light count
+        seen[1] = -1;
+        replay.addSink(new SampleSink() {
+            @Override
+            public void onSample(int stream, long timestamp, float[] values, int offset) {
+                if (stream != 0) {
+                    seen[3]++;
+                    return;
+                }
+                int i = Math.round(values[offset + 1] * 1000);
+                assertEquals(ts(i), timestamp);
+                if (seen[1] < 0)
+                    seen[1] = i;
+                else
+                    assertEquals(seen[2] + 1, i);
+                seen[2] = i;
+                seen[0]++;
+            }
+        });
+        replay.run();
+        assertNull(replay.getError());
+        return seen;
+    }
+
+    private TriggeredRecorder recorder(int ringSamples) {
+        return recorder(root, ringSamples);
+    }
+
+    private static TriggeredRecorder recorder(File root, int ringSamples) {
+        return new TriggeredRecorder(root, header(), 0, Trigger.parse(3, "threshold(10)"),
+                1000 * MS, 2000 * MS, ringSamples, Long.MAX_VALUE, Long.MAX_VALUE, 0);
+    }
+
+    @Test
+    public void recordsTheLeadUpAndThePostTriggerWindow() throws Exception {
+        TriggeredRecorder recorder = recorder(1000);
+        // spike at 5 s into 10 s: 1 s before, 2 s after
+        feed(recorder, 2000, 1000);
+        assertEquals(1, recorder.getEventCount());
+        assertFalse(recorder.isCapturing());
+        File[] sessions = completeSessions(1);
+        assertNull(recorder.getError());
+
+        SessionManifest m = SessionManifest.read(sessions[0]);
+        assertEquals(ts(800), m.getStartNs());
+        assertEquals(WALL + 4000, m.getStartWallMs());
+        int[] seen = replay(sessions[0]);
+        assertEquals(800, seen[1]);
+        assertEquals(1400, seen[2]);
+        assertEquals(601, seen[0]);
+        assertEquals(61, seen[3]);
+    }
+
+    @Test
+    public void retriggeringExtendsTheEventAndLaterOnesGetSessionsOfTheirOwn()
+            throws Exception {
+        TriggeredRecorder recorder = recorder(1000);
+        feed(recorder, 4000, 500, 700, 3000);
+        assertEquals(2, recorder.getEventCount());
+        File[] sessions = completeSessions(2);
+        int[] first = replay(sessions[0]);
+        assertEquals(300, first[1]);
+        assertEquals(1100, first[2]);
+        int[] second = replay(sessions[1]);
+        assertEquals(2800, second[1]);
+        assertEquals(3400, second[2]);
+    }
+
+    @Test
+    public void smallRingShortensTheLeadUp() throws Exception {
+        // 100 slots hold 100 samples of both streams
+        TriggeredRecorder recorder = recorder(100);
+        feed(recorder, 2000, 1000);
+        int[] seen = replay(completeSessions(1)[0]);
+        assertTrue(seen[1] > 900);
+        assertEquals(1400, seen[2]);
+    }
+
+    @Test
+    public void failureToStartAnEventStopsTriggering() throws Exception {
+        // a plain file where the sessions should go
+        File file = new File(root, "file");
+        assertTrue(file.createNewFile());
+        TriggeredRecorder recorder = recorder(file, 1000);
+        float[] v = {20, 0, 0};
+        recorder.onSample(0, ts(0), v, 0);
+        for (int i = 0; i < 500 && !recorder.isFailed(); i++)
+            Thread.sleep(10);
+        assertTrue(recorder.isFailed());
+        assertNotNull(recorder.getError());
+
+        // even once the root would do, later triggers are ignored
+        assertTrue(file.delete());
+        assertTrue(file.mkdir());
+        recorder.onSample(0, ts(1), v, 0);
+        assertEquals(0, recorder.getEventCount());
+        assertFalse(recorder.isCapturing());
+        assertEquals(0, file.list().length);
+    }
+
+    @Test
+    public void sessionsAreCreatedOffTheCallingThread() throws Exception {
+        final Set<Thread> touching = Collections.synchronizedSet(new HashSet<Thread>());
+        // creating a session looks at the root first
+        File spy = new File(root.getPath()) {
+            @Override
+            public boolean isDirectory() {
+                touching.add(Thread.currentThread());
+                return super.isDirectory();
+            }
+        };
+        TriggeredRecorder recorder = recorder(spy, 1000);
+        feed(recorder, 2000, 1000);
+        assertEquals(1, recorder.getEventCount());
+        completeSessions(1);
+        assertEquals(1, touching.size());
+        assertFalse(touching.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void conditions() {
+        float[] v = new float[3];
+        Trigger t = Trigger.parse(3, "magnitude(5)");
+        v[0] = 3;
+        v[1] = 3.9f;
+        assertFalse(t.update(0, v, 0));
+        v[1] = 4;
+        assertTrue(t.update(1, v, 0));
+
+        // 10 units per second: 0.1 in 10 ms fires, 0.09 does not
+        t = Trigger.parse(3, "slope(10)");
+        v[0] = v[1] = 0;
+        assertFalse(t.update(0, v, 0));
+        v[2] = 0.09f;
+        assertFalse(t.update(10 * MS, v, 0));
+        v[2] = 0.2f;
+        assertTrue(t.update(20 * MS, v, 0));
+
+        // a large offset alone does not fire, swinging around it does
+        t = Trigger.parse(3, "rms(0.5, 4), threshold(100)");
+        v[0] = v[1] = 0;
+        for (int i = 0; i < 8; i++) {
+            v[2] = 9.8f;
+            assertFalse(t.update(i, v, 0));
+        }
+        boolean fired = false;
+        for (int i = 8; i < 12; i++) {
+            v[2] = 9.8f + (i % 2 == 0 ? 1 : -1);
+            fired = t.update(i, v, 0);
+        }
+        assertTrue(fired);
+        v[2] = -100;
+        assertTrue(Trigger.parse(3, "rms(0.5, 4), threshold(100)").update(0, v, 0));
+    }
+
+    @Test
+    public void rejectsBadSpecs() {
+        String[] bad = {"", "threshold()", "rms(1)", "spike(3)", "threshold(1) magnitude(2)",
+                "rms(1, 1)"};
+        for (String spec : bad) {
+            try {
+                Trigger.parse(3, spec);
+                fail(spec);
+            } catch (IllegalArgumentException expected) {
+                // fine
+            }
+        }
+    }
+}
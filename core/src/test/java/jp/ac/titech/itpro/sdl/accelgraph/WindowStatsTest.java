@@ -0,0 +1,87 @@
+package jp.ac.titech.itpro.sdl.accelgraph;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WindowStatsTest {
+
+    private final static int WINDOW = 50;
+    private final static int HOP = 7;
+
+    // recomputes everything over the window the slow way
+    private static void check(float[][] data, int end, WindowStats stats) {
+        for (int c = 0; c < stats.getChannels(); c++) {
+            double sum = 0, sq = 0;
+            float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+            for (int i = end - WINDOW; i < end; i++) {
+                float x = data[i][c];
+                sum += x;
+                sq += (double) x * x;
+                min = Math.min(min, x);
+                max = Math.max(max, x);
+            }
+            double mean = sum / WINDOW;
+            double var = sq / WINDOW - mean * mean;
+            assertEquals(mean, stats.get(c, WindowStats.MEAN), 1e-4);
+            assertEquals(var, stats.get(c, WindowStats.VARIANCE), 1e-3);
+            assertEquals(Math.sqrt(sq / WINDOW), stats.get(c, WindowStats.RMS), 1e-4);
+            assertEquals(min, stats.get(c, WindowStats.MIN), 0);
+            assertEquals(max, stats.get(c, WindowStats.MAX), 0);
+            assertEquals(max - min, stats.get(c, WindowStats.PEAK_TO_PEAK), 0);
+        }
+    }
+
+    @Test
+    public void matchesRecomputationEveryHop() {
+        Random random = new Random(3);
+        int n = 5000;
+        float[][] data = new float[n][];
+        for (int i = 0; i < n; i++) {
+            float t = i * 0.01f;
+            data[i] = new float[]{
+                    (float) random.nextGaussian() + 9.8f,     // noise on an offset
+                    (float) Math.sin(t * 7) * 3,             // vibration
+                    i % 400 < 200 ? i % 400 : 400 - i % 400, // long monotonic runs
+            };
+        }
+        WindowStats stats = new WindowStats(3, WINDOW, HOP);
+        int emitted = 0;
+        for (int i = 0; i < n; i++) {
+            boolean ready = stats.update(1000L * i, data[i], 0);
+            int count = i + 1;
+            assertEquals(count >= WINDOW && (count - WINDOW) % HOP == 0, ready);
+            if (ready) {
+                emitted++;
+                assertEquals(1000L * i, stats.getTimestamp());
+                check(data, count, stats);
+            }
+        }
+        assertEquals((n - WINDOW) / HOP + 1, emitted);
+    }
+
+    @Test
+    public void resetStartsAfresh() {
+        WindowStats stats = new WindowStats(1, 4, 1);
+        float[] v = new float[1];
+        for (int i = 0; i < 10; i++) {
+            v[0] = 100;
+            stats.update(i, v, 0);
+        }
+        stats.reset();
+        for (int i = 0; i < 3; i++) {
+            v[0] = i;
+            assertFalse(stats.update(i, v, 0));
+        }
+        v[0] = 3;
+        assertTrue(stats.update(3, v, 0));
+        assertEquals(1.5f, stats.get(0, WindowStats.MEAN), 1e-6);
+        assertEquals(1.25f, stats.get(0, WindowStats.VARIANCE), 1e-6);
+        assertEquals(0, stats.get(0, WindowStats.MIN), 0);
+        assertEquals(3, stats.get(0, WindowStats.MAX), 0);
+    }
+}